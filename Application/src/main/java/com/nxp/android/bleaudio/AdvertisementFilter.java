@@ -0,0 +1,194 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Matches raw advertisement records against a service UUID and/or a local name.
+ *
+ * The record is walked AD structure by AD structure directly in the byte array given by the
+ * scan callback. The UUID and the name are converted to their on-air form once, when the
+ * filter is built, so matching a packet never allocates and irrelevant devices can be
+ * dropped before reaching the UI.
+ */
+public class AdvertisementFilter {
+
+    // AD types, see the Bluetooth Core Specification Supplement
+    private static final int AD_INCOMPLETE_UUID16 = 0x02;
+    private static final int AD_COMPLETE_UUID16 = 0x03;
+    private static final int AD_INCOMPLETE_UUID32 = 0x04;
+    private static final int AD_COMPLETE_UUID32 = 0x05;
+    private static final int AD_INCOMPLETE_UUID128 = 0x06;
+    private static final int AD_COMPLETE_UUID128 = 0x07;
+    private static final int AD_SHORTENED_NAME = 0x08;
+    private static final int AD_COMPLETE_NAME = 0x09;
+    private static final int AD_SERVICE_DATA_UUID16 = 0x16;
+    private static final int AD_SERVICE_DATA_UUID32 = 0x20;
+    private static final int AD_SERVICE_DATA_UUID128 = 0x21;
+
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    // Service UUID, little endian as sent on air
+    private final byte[] mUuid128;
+    // Short forms of the service UUID, -1 if it is not derived from the Bluetooth base UUID
+    private final long mUuid32;
+    private final int mUuid16;
+
+    private final byte[] mName;
+
+    /**
+     * @param serviceUuid Service UUID to look for, or null
+     * @param name        Local name to look for, or null. A shortened name matches when it is
+     *                    a prefix of this name.
+     */
+    public AdvertisementFilter(UUID serviceUuid, String name) {
+        if (serviceUuid != null) {
+            mUuid128 = new byte[16];
+            long lsb = serviceUuid.getLeastSignificantBits();
+            long msb = serviceUuid.getMostSignificantBits();
+            for (int i = 0; i < 8; i++) {
+                mUuid128[i] = (byte) (lsb >>> (8 * i));
+                mUuid128[8 + i] = (byte) (msb >>> (8 * i));
+            }
+            if ((lsb == BASE_UUID_LSB) && ((msb & 0xffffffffL) == 0x1000L)) {
+                mUuid32 = msb >>> 32;
+                mUuid16 = (mUuid32 <= 0xffff) ? (int) mUuid32 : -1;
+            } else {
+                mUuid32 = -1;
+                mUuid16 = -1;
+            }
+        } else {
+            mUuid128 = null;
+            mUuid32 = -1;
+            mUuid16 = -1;
+        }
+
+        mName = (name != null) ? name.getBytes(Charset.forName("UTF-8")) : null;
+    }
+
+    /**
+     * Return true if the advertisement record carries the service UUID or the name of the
+     * filter. A filter without UUID nor name matches everything.
+     */
+    public boolean matches(byte[] scanRecord) {
+        if ((mUuid128 == null) && (mName == null)) {
+            return true;
+        }
+        if (scanRecord == null) {
+            return false;
+        }
+
+        int pos = 0;
+        while (pos < scanRecord.length) {
+            int length = scanRecord[pos] & 0xff;
+            if ((length == 0) || (pos + 1 + length > scanRecord.length)) {
+                // End of the significant part, or malformed structure
+                break;
+            }
+            int type = scanRecord[pos + 1] & 0xff;
+            int data = pos + 2;
+            int dataLength = length - 1;
+
+            switch (type) {
+                case AD_INCOMPLETE_UUID16:
+                case AD_COMPLETE_UUID16:
+                    for (int i = 0; i + 2 <= dataLength; i += 2) {
+                        if (matchesUuid16(scanRecord, data + i)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case AD_INCOMPLETE_UUID32:
+                case AD_COMPLETE_UUID32:
+                    for (int i = 0; i + 4 <= dataLength; i += 4) {
+                        if (matchesUuid32(scanRecord, data + i)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case AD_INCOMPLETE_UUID128:
+                case AD_COMPLETE_UUID128:
+                    for (int i = 0; i + 16 <= dataLength; i += 16) {
+                        if (matchesUuid128(scanRecord, data + i)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case AD_SERVICE_DATA_UUID16:
+                    if ((dataLength >= 2) && matchesUuid16(scanRecord, data)) {
+                        return true;
+                    }
+                    break;
+                case AD_SERVICE_DATA_UUID32:
+                    if ((dataLength >= 4) && matchesUuid32(scanRecord, data)) {
+                        return true;
+                    }
+                    break;
+                case AD_SERVICE_DATA_UUID128:
+                    if ((dataLength >= 16) && matchesUuid128(scanRecord, data)) {
+                        return true;
+                    }
+                    break;
+                case AD_SHORTENED_NAME:
+                    if (matchesName(scanRecord, data, dataLength, true)) {
+                        return true;
+                    }
+                    break;
+                case AD_COMPLETE_NAME:
+                    if (matchesName(scanRecord, data, dataLength, false)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos += 1 + length;
+        }
+        return false;
+    }
+
+    private boolean matchesUuid16(byte[] record, int offset) {
+        if (mUuid16 < 0) {
+            return false;
+        }
+        int uuid = (record[offset] & 0xff) | ((record[offset + 1] & 0xff) << 8);
+        return uuid == mUuid16;
+    }
+
+    private boolean matchesUuid32(byte[] record, int offset) {
+        if (mUuid32 < 0) {
+            return false;
+        }
+        long uuid = (record[offset] & 0xffL) | ((record[offset + 1] & 0xffL) << 8)
+                | ((record[offset + 2] & 0xffL) << 16) | ((record[offset + 3] & 0xffL) << 24);
+        return uuid == mUuid32;
+    }
+
+    private boolean matchesUuid128(byte[] record, int offset) {
+        if (mUuid128 == null) {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            if (record[offset + i] != mUuid128[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesName(byte[] record, int offset, int length, boolean shortened) {
+        // An empty name would be a prefix of any name
+        if ((mName == null) || (length == 0)) {
+            return false;
+        }
+        if (shortened ? (length > mName.length) : (length != mName.length)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (record[offset + i] != mName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses fixed duration frames of 16 bit little endian PCM for the link.
+ *
+ * Every encoded frame has the same size and can be decoded on its own, and the receiver finds
+ * the start of the frames again from the frame offsets of the packets (see {@link Reassembler}),
+ * so a lost packet never corrupts the frames following it. PCM comes in arrays, or in little
+ * endian buffers of a {@link FramePool}, read and written from their start.
+ */
+public interface AudioCodec {
+
+    /**
+     * Return the size of an encoded frame, in bytes.
+     */
+    int getEncodedFrameSize();
+
+    /**
+     * Encode one frame of PCM.
+     *
+     * @return The number of bytes written to the output
+     */
+    int encode(byte[] pcm, int offset, byte[] out, int outOffset);
+
+    /**
+     * Encode one frame of PCM, from the start of the buffer.
+     *
+     * @return The number of bytes written to the output
+     */
+    int encode(ByteBuffer pcm, byte[] out, int outOffset);
+
+    /**
+     * Decode one frame.
+     *
+     * @param length Number of encoded bytes available, a partial frame may not be decodable
+     * @return The number of PCM bytes written to the output, 0 if nothing could be decoded
+     */
+    int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset);
+
+    /**
+     * Decode one frame, to the start of the buffer.
+     *
+     * @param length Number of encoded bytes available, a partial frame may not be decodable
+     * @return The number of PCM bytes written to the buffer, 0 if nothing could be decoded
+     */
+    int decode(byte[] data, int offset, int length, ByteBuffer pcm);
+}
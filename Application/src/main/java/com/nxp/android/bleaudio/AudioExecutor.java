@@ -0,0 +1,486 @@
+package com.nxp.android.bleaudio;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the long-lived tasks of the service, each on its own named thread, and keeps track of
+ * them so they can be cancelled and waited for.
+ *
+ * Audio tasks run at audio priority. Cancellation is cooperative: the task is flagged (see
+ * {@link #isCancelled()}), its own {@link Task#cancel()} unblocks it, typically by closing
+ * its socket, and its thread is interrupted. {@link #shutdown(long)} cancels every task and
+ * joins its thread.
+ *
+ * The steps of the pipeline which must keep up with the audio register as a {@link Stage}:
+ * each run of a stage is timed against its frame deadline, and a watchdog flags the stages
+ * stuck in a run for longer than their deadline, while they are stuck. The watchdog sleeps
+ * once no stage ran for a while, so an idle service does not poll, and stops on
+ * {@link #shutdown(long)}. The stages also
+ * account for their CPU cost in the {@link StageStats} of the executor, if it has one.
+ */
+public class AudioExecutor {
+    private final static String TAG = AudioExecutor.class.getSimpleName();
+
+    public static final int PRIORITY_DEFAULT = Process.THREAD_PRIORITY_DEFAULT;
+    public static final int PRIORITY_AUDIO = Process.THREAD_PRIORITY_URGENT_AUDIO;
+    public static final int PRIORITY_BACKGROUND = Process.THREAD_PRIORITY_BACKGROUND;
+
+    // Interval between two checks of the watchdog
+    private static final long WATCHDOG_INTERVAL_MS = 20;
+    // Time without any run of a stage after which the watchdog sleeps
+    private static final long WATCHDOG_IDLE_US = 1000000;
+
+    /**
+     * Work run by the executor.
+     */
+    public interface Task {
+        /**
+         * Run the task, on a thread of the executor, until it completes or is cancelled.
+         */
+        void run();
+
+        /**
+         * Unblock the task, it has been cancelled. Called from any thread.
+         */
+        void cancel();
+    }
+
+    /**
+     * A step of the pipeline run once per frame, which must complete within its deadline.
+     * A stage is run by a single thread at a time.
+     */
+    public static class Stage {
+        private final String mName;
+        private final StageStats.Probe mProbe;
+        private final AudioExecutor mExecutor;
+        private long mDeadlineUs;
+        private long mPeriodUs;
+
+        private long mBeginUs;
+        private long mLastBeginUs;
+        private boolean mStallReported;
+
+        private long mRuns;
+        private long mDeadlineMisses;
+        private long mStalls;
+        private long mMaxRunUs;
+        private long mTotalRunUs;
+        private long mMaxLatencyUs;
+        private long mTotalLatencyUs;
+
+        private Stage(AudioExecutor executor, String name, long deadlineUs, long periodUs,
+                      StageStats.Probe probe) {
+            mExecutor = executor;
+            mName = name;
+            mProbe = probe;
+            mDeadlineUs = deadlineUs;
+            mPeriodUs = periodUs;
+        }
+
+        private synchronized void setTiming(long deadlineUs, long periodUs) {
+            mDeadlineUs = deadlineUs;
+            mPeriodUs = periodUs;
+            // A new timing starts a new run of periods
+            mLastBeginUs = 0;
+        }
+
+        /**
+         * Mark the start of a run. For periodic stages, the time elapsed past the period
+         * since the previous run is the scheduling latency.
+         */
+        public void begin() {
+            synchronized (this) {
+                long now = ClockSync.now();
+                if ((mPeriodUs > 0) && (mLastBeginUs > 0)) {
+                    long latencyUs = Math.max(0, now - mLastBeginUs - mPeriodUs);
+                    mMaxLatencyUs = Math.max(mMaxLatencyUs, latencyUs);
+                    mTotalLatencyUs += latencyUs;
+                }
+                mBeginUs = now;
+                mLastBeginUs = now;
+                if (mProbe != null) {
+                    mProbe.begin();
+                }
+            }
+            // Outside the lock of the stage, the watchdog takes it while holding its own
+            mExecutor.wakeWatchdog();
+        }
+
+        /**
+         * Mark the end of a run.
+         */
+        public void end() {
+            end(0, 0);
+        }
+
+        /**
+         * Mark the end of a run, and account for the data it processed.
+         *
+         * @param bytesIn  Data consumed by the run
+         * @param bytesOut Data produced by the run
+         */
+        public synchronized void end(long bytesIn, long bytesOut) {
+            if (mBeginUs == 0) {
+                return;
+            }
+            if (mProbe != null) {
+                mProbe.end(bytesIn, bytesOut);
+            }
+            long runUs = ClockSync.now() - mBeginUs;
+            mBeginUs = 0;
+            mRuns++;
+            mMaxRunUs = Math.max(mMaxRunUs, runUs);
+            mTotalRunUs += runUs;
+            if (runUs > mDeadlineUs) {
+                mDeadlineMisses++;
+            }
+            mStallReported = false;
+        }
+
+        /**
+         * Return true if the stage is in a run, or began one recently.
+         */
+        private synchronized boolean isActive(long now) {
+            return (mBeginUs != 0) || (now - mLastBeginUs < WATCHDOG_IDLE_US);
+        }
+
+        /**
+         * Return true the first time the run in progress is found past its deadline.
+         */
+        private synchronized boolean checkStall(long now) {
+            if ((mBeginUs == 0) || mStallReported || (now - mBeginUs <= mDeadlineUs)) {
+                return false;
+            }
+            mStallReported = true;
+            mStalls++;
+            return true;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public synchronized long getDeadlineUs() {
+            return mDeadlineUs;
+        }
+
+        public synchronized long getRuns() {
+            return mRuns;
+        }
+
+        /**
+         * Return the number of runs which completed past their deadline.
+         */
+        public synchronized long getDeadlineMisses() {
+            return mDeadlineMisses;
+        }
+
+        /**
+         * Return the number of runs the watchdog found stuck past their deadline.
+         */
+        public synchronized long getStalls() {
+            return mStalls;
+        }
+
+        public synchronized long getMaxRunUs() {
+            return mMaxRunUs;
+        }
+
+        public synchronized long getAverageRunUs() {
+            return (mRuns > 0) ? mTotalRunUs / mRuns : 0;
+        }
+
+        /**
+         * Return the largest delay of a run past its period.
+         */
+        public synchronized long getMaxLatencyUs() {
+            return mMaxLatencyUs;
+        }
+
+        public synchronized long getAverageLatencyUs() {
+            return (mRuns > 1) ? mTotalLatencyUs / (mRuns - 1) : 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + ": " + mRuns + " runs, " + mDeadlineMisses + " late, " + mStalls
+                    + " stalls, max " + mMaxRunUs + "us of " + mDeadlineUs + "us, latency avg "
+                    + getAverageLatencyUs() + "us max " + mMaxLatencyUs + "us";
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Task mmTask;
+        private final int mmPriority;
+        private final long mmSubmitUs;
+        private volatile boolean mmCancelled;
+
+        Worker(String name, int priority, Task task) {
+            super(name);
+            mmTask = task;
+            mmPriority = priority;
+            mmSubmitUs = ClockSync.now();
+        }
+
+        @Override
+        public void run() {
+            onStarted(ClockSync.now() - mmSubmitUs);
+            try {
+                Process.setThreadPriority(mmPriority);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cannot set the priority of " + getName(), e);
+            }
+            try {
+                mmTask.run();
+            } finally {
+                onFinished(this);
+            }
+        }
+    }
+
+    private final String mName;
+    private final StageStats mStats;
+    private final ArrayList<Worker> mWorkers = new ArrayList<Worker>();
+    private final ArrayList<Stage> mStages = new ArrayList<Stage>();
+    private Thread mWatchdog;
+    // Set while the watchdog sleeps, waiting for a stage to begin a run
+    private final Object mWatchdogLock = new Object();
+    private volatile boolean mWatchdogParked;
+
+    private long mStartedTasks;
+    private long mMaxStartLatencyUs;
+    private long mTotalStartLatencyUs;
+
+    /**
+     * @param name Prefix of the names of the threads
+     */
+    public AudioExecutor(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param name  Prefix of the names of the threads
+     * @param stats Registry the stages account their cost in, or null
+     */
+    public AudioExecutor(String name, StageStats stats) {
+        mName = name;
+        mStats = stats;
+    }
+
+    /**
+     * Run a task on a new thread.
+     *
+     * @param name     Name of the thread, after the prefix of the executor
+     * @param priority Priority of the thread, PRIORITY_AUDIO for the audio pipeline
+     */
+    public synchronized void execute(String name, int priority, Task task) {
+        Worker worker = new Worker(mName + "-" + name, priority, task);
+        mWorkers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Cancel a task. It is unblocked and asked to stop, but may still be running on return,
+     * see {@link #join}.
+     */
+    public void cancel(Task task) {
+        Worker worker = find(task);
+        if (worker != null) {
+            worker.mmCancelled = true;
+            worker.interrupt();
+        }
+        task.cancel();
+    }
+
+    /**
+     * Return true if the task running on the calling thread has been cancelled.
+     */
+    public static boolean isCancelled() {
+        Thread thread = Thread.currentThread();
+        return (thread instanceof Worker) && ((Worker) thread).mmCancelled;
+    }
+
+    /**
+     * Wait for a task to complete. A task cannot wait for itself.
+     *
+     * @return True if the task is not running any more
+     */
+    public boolean join(Task task, long timeoutMs) {
+        Worker worker = find(task);
+        if (worker == null) {
+            return true;
+        }
+        if (worker == Thread.currentThread()) {
+            return false;
+        }
+        try {
+            worker.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !worker.isAlive();
+    }
+
+    /**
+     * Cancel all the tasks, and wait for them to complete.
+     *
+     * @param timeoutMs Time given to each task to complete
+     * @return True if all the tasks completed, besides the calling one
+     */
+    public boolean shutdown(long timeoutMs) {
+        Worker[] workers;
+        Thread watchdog;
+        synchronized (this) {
+            workers = mWorkers.toArray(new Worker[mWorkers.size()]);
+            watchdog = mWatchdog;
+            mWatchdog = null;
+        }
+        if (watchdog != null) {
+            watchdog.interrupt();
+        }
+        for (Worker worker : workers) {
+            cancel(worker.mmTask);
+        }
+        boolean completed = true;
+        for (Worker worker : workers) {
+            if (!join(worker.mmTask, timeoutMs) && (worker != Thread.currentThread())) {
+                Log.w(TAG, worker.getName() + " did not stop in " + timeoutMs + "ms");
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    private synchronized Worker find(Task task) {
+        for (Worker worker : mWorkers) {
+            if (worker.mmTask == task) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void onStarted(long latencyUs) {
+        mStartedTasks++;
+        mMaxStartLatencyUs = Math.max(mMaxStartLatencyUs, latencyUs);
+        mTotalStartLatencyUs += latencyUs;
+    }
+
+    private synchronized void onFinished(Worker worker) {
+        mWorkers.remove(worker);
+    }
+
+    /**
+     * Return the stage of the given name, created on first use. Its statistics are kept
+     * across the tasks running it.
+     *
+     * @param deadlineUs Time a run may take, usually the duration of the frame processed
+     * @param periodUs   Interval between two runs, 0 if the stage is not periodic
+     */
+    public synchronized Stage getStage(String name, long deadlineUs, long periodUs) {
+        startWatchdog();
+        for (Stage stage : mStages) {
+            if (stage.getName().equals(name)) {
+                stage.setTiming(deadlineUs, periodUs);
+                return stage;
+            }
+        }
+        Stage stage = new Stage(this, name, deadlineUs, periodUs,
+                (mStats != null) ? mStats.getProbe(name) : null);
+        mStages.add(stage);
+        return stage;
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<Stage>(mStages);
+    }
+
+    private void startWatchdog() {
+        if (mWatchdog != null) {
+            return;
+        }
+        mWatchdog = new Thread(mName + "-Watchdog") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(WATCHDOG_INTERVAL_MS);
+                        long now = ClockSync.now();
+                        for (Stage stage : getStages()) {
+                            if (stage.checkStall(now)) {
+                                Log.w(TAG, "Stage " + stage.getName() + " stalled past its "
+                                        + stage.getDeadlineUs() + "us deadline");
+                            }
+                        }
+                        park(now);
+                    }
+                } catch (InterruptedException e) {
+                    // Shut down
+                }
+            }
+        };
+        mWatchdog.setDaemon(true);
+        mWatchdog.start();
+    }
+
+    /**
+     * Sleep until a stage begins a run, if none is active.
+     */
+    private void park(long now) throws InterruptedException {
+        // Parked before looking, so a stage beginning meanwhile sees it and wakes us
+        mWatchdogParked = true;
+        for (Stage stage : getStages()) {
+            if (stage.isActive(now)) {
+                mWatchdogParked = false;
+                return;
+            }
+        }
+        synchronized (mWatchdogLock) {
+            while (mWatchdogParked) {
+                mWatchdogLock.wait();
+            }
+        }
+    }
+
+    private void wakeWatchdog() {
+        if (mWatchdogParked) {
+            synchronized (mWatchdogLock) {
+                mWatchdogParked = false;
+                mWatchdogLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Return the number of tasks running.
+     */
+    public synchronized int getActiveCount() {
+        return mWorkers.size();
+    }
+
+    /**
+     * Return the largest delay between the submission of a task and the start of its thread.
+     */
+    public synchronized long getMaxStartLatencyUs() {
+        return mMaxStartLatencyUs;
+    }
+
+    public synchronized long getAverageStartLatencyUs() {
+        return (mStartedTasks > 0) ? mTotalStartLatencyUs / mStartedTasks : 0;
+    }
+
+    /**
+     * Return the total number of runs which completed past their deadline, over all stages.
+     */
+    public synchronized long getDeadlineMisses() {
+        long misses = 0;
+        for (Stage stage : mStages) {
+            misses += stage.getDeadlineMisses();
+        }
+        return misses;
+    }
+}
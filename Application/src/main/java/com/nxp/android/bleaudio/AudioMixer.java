@@ -0,0 +1,382 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mixes several incoming PCM 16 bit streams into a single output stream.
+ *
+ * Every remote talker owns a {@link Source}, which is a small jitter buffer filled by its
+ * AudioRxThread. The playout thread calls {@link #mix(short[], int, long)} once per period: each
+ * source contributing to the mix is kept at the same buffer depth so all talkers are heard
+ * with the same latency, and samples are summed in fixed point with saturation.
+ * All buffers are allocated up-front, nothing is allocated per frame.
+ *
+ * Sources fed with presentation timestamps are scheduled instead: their samples are played
+ * at the local time they are stamped with, so several receivers sharing the sender clock
+ * play the same sample at the same time. The scheduling error left after each period is
+ * kept as the residual skew of the source.
+ */
+public class AudioMixer {
+
+    // Unity gain in Q15 fixed point
+    public static final int UNITY_GAIN = 1 << 15;
+
+    // Timestamp of the data written by sources which are not scheduled
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final Source[] mSources;
+    private final int[] mAccumulator;
+    private final int mSampleRate;
+    private final int mChannels;
+    private volatile int mTargetDepth;
+    private volatile int mMaxDepth;
+    private final int mMaxDepthLimit;
+    private final int mCapacity;
+    private final long mToleranceUs;
+
+    /**
+     * @param maxSources  Maximum number of sources mixed together
+     * @param sampleRate  Sample rate of all the streams
+     * @param channels    Number of interleaved channels
+     * @param periodSize  Number of samples (all channels) mixed per call
+     * @param targetDepth Number of samples a source buffers before being mixed
+     * @param maxDepth    Depth above which the oldest samples of a source are dropped, and
+     *                    largest depth {@link #setDepth} may set
+     * @param delayMs     Playout delay scheduled sources are written ahead of
+     * @param toleranceUs Scheduling error tolerated before a scheduled source is corrected
+     */
+    public AudioMixer(int maxSources, int sampleRate, int channels, int periodSize,
+                      int targetDepth, int maxDepth, int delayMs, long toleranceUs) {
+        mSources = new Source[maxSources];
+        mAccumulator = new int[periodSize];
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mTargetDepth = targetDepth;
+        mMaxDepth = maxDepth;
+        mMaxDepthLimit = maxDepth;
+        mToleranceUs = toleranceUs;
+
+        // Scheduled sources hold the whole playout delay
+        int delayFrames = (int) ((long) delayMs * sampleRate / 1000);
+        mCapacity = Math.max(maxDepth, delayFrames * channels + maxDepth) + periodSize;
+    }
+
+    /**
+     * Register a new source.
+     *
+     * @return The new source, or null if the mixer is already full.
+     */
+    public synchronized Source addSource() {
+        for (int i = 0; i < mSources.length; i++) {
+            if (mSources[i] == null) {
+                mSources[i] = new Source(mCapacity);
+                return mSources[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Unregister a source. Its pending samples are discarded.
+     */
+    public synchronized void removeSource(Source source) {
+        for (int i = 0; i < mSources.length; i++) {
+            if (mSources[i] == source) {
+                mSources[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Resize the buffering of the unscheduled sources, within the depth given at creation.
+     */
+    public void setDepth(int targetDepth, int maxDepth) {
+        mMaxDepth = Math.min(maxDepth, mMaxDepthLimit);
+        mTargetDepth = Math.min(targetDepth, mMaxDepth);
+    }
+
+    /**
+     * Return the total number of times a source ran dry.
+     */
+    public synchronized int getUnderrunCount() {
+        int count = 0;
+        for (Source source : mSources) {
+            if (source != null) {
+                count += source.getUnderruns();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of sources currently registered.
+     */
+    public synchronized int getSourceCount() {
+        int count = 0;
+        for (Source source : mSources) {
+            if (source != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the largest residual skew of the scheduled sources, in microseconds.
+     */
+    public synchronized long getMaxSkewUs() {
+        long max = 0;
+        for (Source source : mSources) {
+            if (source != null) {
+                max = Math.max(max, Math.abs(source.getSkewUs()));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Mix one period of all the sources into the output buffer. Sources which are not primed
+     * yet, or which ran dry, contribute silence.
+     *
+     * @param out       Output buffer
+     * @param length    Number of samples to produce, at most the period size
+     * @param outTimeUs Local time at which the first sample of the period will be played
+     */
+    public void mix(short[] out, int length, long outTimeUs) {
+        final int[] acc = mAccumulator;
+        for (int i = 0; i < length; i++) {
+            acc[i] = 0;
+        }
+
+        synchronized (this) {
+            for (Source source : mSources) {
+                if (source != null) {
+                    source.mixInto(acc, length, outTimeUs);
+                }
+            }
+        }
+
+        // Saturate back to 16 bit
+        for (int i = 0; i < length; i++) {
+            int sample = acc[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            out[i] = (short) sample;
+        }
+    }
+
+    /**
+     * Jitter buffer of one incoming stream. Written by its AudioRxThread, read by the mixer.
+     */
+    public class Source {
+        private final short[] mmRing;
+        private int mmReadPos;
+        private int mmCount;
+        private boolean mmPrimed;
+        private int mmGain = UNITY_GAIN;
+
+        // Scheduled source: local time at which the sample at the read position is due
+        private boolean mmScheduled;
+        private long mmHeadTimeUs;
+        private long mmSkewUs;
+
+        // Low byte of a sample split across two socket reads
+        private int mmPendingByte = -1;
+
+        private int mmUnderruns;
+        private int mmDropped;
+
+        private Source(int capacity) {
+            mmRing = new short[capacity];
+        }
+
+        /**
+         * Set the gain applied to this source in Q15 fixed point.
+         */
+        public synchronized void setGain(int gainQ15) {
+            mmGain = gainQ15;
+        }
+
+        /**
+         * Queue little endian PCM 16 bit data received from the socket.
+         */
+        public void write(byte[] buffer, int offset, int length) {
+            write(buffer, offset, length, NO_TIMESTAMP);
+        }
+
+        /**
+         * Queue little endian PCM 16 bit data received from the socket.
+         *
+         * @param timeUs Local time at which the first sample is due, or NO_TIMESTAMP
+         */
+        public synchronized void write(byte[] buffer, int offset, int length, long timeUs) {
+            int end = offset + length;
+            int i = offset;
+
+            if (mmPendingByte >= 0 && i < end) {
+                put((short) ((buffer[i++] << 8) | mmPendingByte));
+                mmPendingByte = -1;
+            }
+            for (; i + 1 < end; i += 2) {
+                put((short) ((buffer[i + 1] << 8) | (buffer[i] & 0xff)));
+            }
+            if (i < end) {
+                mmPendingByte = buffer[i] & 0xff;
+            }
+            anchor(length, timeUs);
+        }
+
+        /**
+         * Queue whole samples of little endian PCM 16 bit data from the start of a buffer,
+         * see {@link FramePool}.
+         *
+         * @param timeUs Local time at which the first sample is due, or NO_TIMESTAMP
+         */
+        public synchronized void write(ByteBuffer buffer, int length, long timeUs) {
+            for (int i = 0; i + 1 < length; i += 2) {
+                put(buffer.getShort(i));
+            }
+            anchor(length, timeUs);
+        }
+
+        private void anchor(int length, long timeUs) {
+            if (timeUs != NO_TIMESTAMP) {
+                // Anchor the buffered samples on the end of the data just received
+                int frames = (length / 2) / mChannels;
+                mmHeadTimeUs = timeUs + framesToUs(frames) - framesToUs(mmCount / mChannels);
+                mmScheduled = true;
+            }
+        }
+
+        private void put(short sample) {
+            final int capacity = mmRing.length;
+            if (mmCount == capacity) {
+                // Ring full: overwrite the oldest frame
+                mmReadPos = (mmReadPos + mChannels) % capacity;
+                mmCount -= mChannels;
+                mmDropped += mChannels;
+            }
+            mmRing[(mmReadPos + mmCount) % capacity] = sample;
+            mmCount++;
+        }
+
+        private synchronized void mixInto(int[] acc, int length, long outTimeUs) {
+            if (mmScheduled) {
+                mixScheduled(acc, length, outTimeUs);
+                return;
+            }
+
+            final int capacity = mmRing.length;
+
+            if (!mmPrimed) {
+                if (mmCount < mTargetDepth) {
+                    return;
+                }
+                mmPrimed = true;
+            }
+
+            // Too much buffered: drop the oldest samples to come back to the common depth
+            if (mmCount > mMaxDepth) {
+                int excess = mmCount - mTargetDepth;
+                excess -= excess % mChannels;
+                mmReadPos = (mmReadPos + excess) % capacity;
+                mmCount -= excess;
+                mmDropped += excess;
+            }
+
+            int available = Math.min(length, mmCount);
+            int pos = mmReadPos;
+            final int gain = mmGain;
+            for (int i = 0; i < available; i++) {
+                acc[i] += (mmRing[pos] * gain) >> 15;
+                if (++pos == capacity) {
+                    pos = 0;
+                }
+            }
+            mmReadPos = pos;
+            mmCount -= available;
+
+            if (available < length) {
+                // Ran dry: wait for the buffer to refill to the target depth
+                mmPrimed = false;
+                mmUnderruns++;
+            }
+        }
+
+        private void mixScheduled(int[] acc, int length, long outTimeUs) {
+            final int channels = mChannels;
+            int buffered = mmCount - mmCount % channels;
+            if (buffered == 0) {
+                return;
+            }
+
+            int start = 0;
+            long leadUs = mmHeadTimeUs - outTimeUs;
+            if (leadUs > mToleranceUs) {
+                // Early: start playing later in this period
+                long leadFrames = leadUs * mSampleRate / 1000000L;
+                if (leadFrames * channels >= length) {
+                    return;
+                }
+                start = (int) leadFrames * channels;
+            } else if (leadUs < -mToleranceUs) {
+                // Late: drop what should already have been played
+                long lateFrames = -leadUs * mSampleRate / 1000000L;
+                int late = (int) Math.min(lateFrames * channels, buffered);
+                mmReadPos = (mmReadPos + late) % mmRing.length;
+                mmCount -= late;
+                mmDropped += late;
+                buffered -= late;
+                mmHeadTimeUs += framesToUs(late / channels);
+            }
+            mmSkewUs = mmHeadTimeUs - outTimeUs - framesToUs(start / channels);
+
+            int available = Math.min(length - start, buffered);
+            int pos = mmReadPos;
+            final int capacity = mmRing.length;
+            final int gain = mmGain;
+            for (int i = start; i < start + available; i++) {
+                acc[i] += (mmRing[pos] * gain) >> 15;
+                if (++pos == capacity) {
+                    pos = 0;
+                }
+            }
+            mmReadPos = pos;
+            mmCount -= available;
+            mmHeadTimeUs += framesToUs(available / channels);
+
+            if (available < length - start) {
+                mmUnderruns++;
+            }
+        }
+
+        private long framesToUs(int frames) {
+            return frames * 1000000L / mSampleRate;
+        }
+
+        /**
+         * Return the scheduling error left after the last period, in microseconds.
+         */
+        public synchronized long getSkewUs() {
+            return mmSkewUs;
+        }
+
+        public synchronized int getUnderruns() {
+            return mmUnderruns;
+        }
+
+        /**
+         * Return the duration of the audio waiting to be played.
+         */
+        public synchronized long getBufferedUs() {
+            return framesToUs(mmCount / mChannels);
+        }
+
+        public synchronized int getDroppedSamples() {
+            return mmDropped;
+        }
+    }
+}
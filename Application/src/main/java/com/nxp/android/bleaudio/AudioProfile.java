@@ -0,0 +1,419 @@
+package com.nxp.android.bleaudio;
+
+import android.media.AudioFormat;
+
+/**
+ * Audio settings of a streaming session: where the audio comes from and goes to, its format,
+ * how it is coded on the link and how much of it is buffered.
+ *
+ * The format of a selected profile is a preference: the format actually streamed is agreed on
+ * with the peer at connect time, as the cheapest one meeting the quality of the profile (see
+ * {@link FormatNegotiator}). Profiles are immutable. The service uses the profile selected
+ * when a session starts until the session ends, so profiles can be switched between sessions
+ * on the same build to compare their latency and bandwidth.
+ */
+public class AudioProfile {
+
+    public static final int CODEC_PCM = 0;
+    public static final int CODEC_IMA_ADPCM = 1;
+
+    // Quality levels a negotiated format must meet
+    public static final int QUALITY_ANY = 0;
+    // 16 kHz or more
+    public static final int QUALITY_VOICE = 1;
+    // 44.1 kHz or more, stereo
+    public static final int QUALITY_MUSIC = 2;
+    // 44.1 kHz or more, stereo, not compressed
+    public static final int QUALITY_LOSSLESS = 3;
+
+    // Channels played by a receiver, to split a stereo stream over two devices
+    public static final int PLAYOUT_CHANNEL_BOTH = 0;
+    public static final int PLAYOUT_CHANNEL_LEFT = 1;
+    public static final int PLAYOUT_CHANNEL_RIGHT = 2;
+
+    public static final AudioProfile DEFAULT = new Builder("Music").build();
+
+    public static final AudioProfile LOSSLESS = new Builder("Lossless")
+            .setQuality(QUALITY_LOSSLESS)
+            .build();
+
+    public static final AudioProfile LOW_LATENCY = new Builder("Low latency")
+            .setFrameDurationMs(5)
+            .setPlayoutDelayMs(40)
+            .setSendQueueMs(20)
+            .build();
+
+    public static final AudioProfile LOW_BANDWIDTH = new Builder("Low bandwidth")
+            .setQuality(QUALITY_VOICE)
+            .setSampleRate(16000)
+            .setChannelCount(1)
+            .setCodec(CODEC_IMA_ADPCM)
+            .setFrameDurationMs(20)
+            .setPlayoutDelayMs(150)
+            .setSendQueueMs(100)
+            .setBufferLevel(2)
+            .build();
+
+    public static final AudioProfile LOSSY_LINK = new Builder("Lossy link")
+            .setFecGroupSize(4)
+            .setPlayoutDelayMs(150)
+            .build();
+
+    public static final AudioProfile LOOPBACK = new Builder("Loopback test")
+            .setLoopback(true)
+            .build();
+
+    public static final AudioProfile LEFT_SPEAKER = new Builder("Left speaker")
+            .setPlayoutChannel(PLAYOUT_CHANNEL_LEFT)
+            .build();
+
+    public static final AudioProfile RIGHT_SPEAKER = new Builder("Right speaker")
+            .setPlayoutChannel(PLAYOUT_CHANNEL_RIGHT)
+            .build();
+
+    private static final AudioProfile[] PRESETS = {
+            DEFAULT, LOSSLESS, LOW_LATENCY, LOW_BANDWIDTH, LOSSY_LINK, LOOPBACK, LEFT_SPEAKER,
+            RIGHT_SPEAKER
+    };
+
+    private final String mName;
+    private final boolean mFromMic;
+    private final boolean mToSpeaker;
+    private final boolean mLoopback;
+    private final boolean mToFile;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mCodec;
+    private final int mFrameDurationMs;
+    private final int mBufferLevel;
+    private final int mPlayoutDelayMs;
+    private final int mSendQueueMs;
+    private final int mFecGroupSize;
+    private final int mQuality;
+    private final int mPlayoutChannel;
+
+    private AudioProfile(Builder builder) {
+        mName = builder.mName;
+        mFromMic = builder.mFromMic;
+        mToSpeaker = builder.mToSpeaker;
+        mLoopback = builder.mLoopback;
+        mToFile = builder.mToFile;
+        mSampleRate = builder.mSampleRate;
+        mChannelCount = builder.mChannelCount;
+        mCodec = builder.mCodec;
+        mFrameDurationMs = builder.mFrameDurationMs;
+        mBufferLevel = builder.mBufferLevel;
+        mPlayoutDelayMs = builder.mPlayoutDelayMs;
+        mSendQueueMs = builder.mSendQueueMs;
+        mFecGroupSize = builder.mFecGroupSize;
+        mQuality = builder.mQuality;
+        mPlayoutChannel = builder.mPlayoutChannel;
+    }
+
+    /**
+     * Return the predefined profiles.
+     */
+    public static AudioProfile[] getPresets() {
+        return PRESETS.clone();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return true to stream from the microphone, false to stream {@link Constants#FILE_INPUT}.
+     */
+    public boolean isFromMic() {
+        return mFromMic;
+    }
+
+    public boolean isToSpeaker() {
+        return mToSpeaker;
+    }
+
+    /**
+     * Return true if the receiver sends the audio back to the sender.
+     */
+    public boolean isLoopback() {
+        return mLoopback;
+    }
+
+    /**
+     * Return true if the receiver archives the audio, see {@link CaptureStore}.
+     */
+    public boolean isToFile() {
+        return mToFile;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getChannelInConfig() {
+        return (mChannelCount == 2) ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    public int getChannelOutConfig() {
+        return (mChannelCount == 2) ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+    }
+
+    /**
+     * Return the encoding of the captured and played PCM. The codec only applies on the link.
+     */
+    public int getEncoding() {
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    public int getCodec() {
+        return mCodec;
+    }
+
+    public int getFrameDurationMs() {
+        return mFrameDurationMs;
+    }
+
+    /**
+     * Return the number of samples per channel in a frame.
+     */
+    public int getSamplesPerFrame() {
+        return mSampleRate * mFrameDurationMs / 1000;
+    }
+
+    /**
+     * Return the size of a PCM frame, in bytes.
+     */
+    public int getFrameSize() {
+        return getSamplesPerFrame() * mChannelCount * 2;
+    }
+
+    /**
+     * Return the PCM byte rate.
+     */
+    public int getBytesPerSecond() {
+        return mSampleRate * mChannelCount * 2;
+    }
+
+    /**
+     * Return the byte rate on the link, headers excluded.
+     */
+    public int getEncodedBytesPerSecond() {
+        return createCodec().getEncodedFrameSize() * (1000 / mFrameDurationMs);
+    }
+
+    /**
+     * Return the buffer level used with devices not tuned yet, see {@link BufferTuner}.
+     */
+    public int getBufferLevel() {
+        return mBufferLevel;
+    }
+
+    /**
+     * Return the delay between the capture on the sender and the playout on the receivers.
+     */
+    public int getPlayoutDelayMs() {
+        return mPlayoutDelayMs;
+    }
+
+    /**
+     * Return the time captured audio may wait for the link before it is dropped, see
+     * {@link FrameQueue}.
+     */
+    public int getSendQueueMs() {
+        return mSendQueueMs;
+    }
+
+    /**
+     * Return the number of audio packets protected by each parity packet, 0 for none. See
+     * {@link FecEncoder}.
+     */
+    public int getFecGroupSize() {
+        return mFecGroupSize;
+    }
+
+    /**
+     * Return the quality the negotiated format must meet.
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Return the channels of a stereo stream this receiver plays, on both its speakers.
+     */
+    public int getPlayoutChannel() {
+        return mPlayoutChannel;
+    }
+
+    /**
+     * Create a codec for a stream of this profile. Codecs hold state, each stream needs its own.
+     */
+    public AudioCodec createCodec() {
+        if (mCodec == CODEC_IMA_ADPCM) {
+            return new ImaAdpcmCodec(mChannelCount, getSamplesPerFrame());
+        }
+        return new PcmCodec(getFrameSize());
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * Builds profiles, starting from the settings of {@link #DEFAULT}.
+     */
+    public static class Builder {
+        private String mName;
+        private boolean mFromMic = true;
+        private boolean mToSpeaker = true;
+        private boolean mLoopback = false;
+        private boolean mToFile = false;
+        private int mSampleRate = 48000;
+        private int mChannelCount = 2;
+        private int mCodec = CODEC_PCM;
+        private int mFrameDurationMs = 10;
+        private int mBufferLevel = 0;
+        private int mPlayoutDelayMs = 100;
+        private int mSendQueueMs = 60;
+        private int mFecGroupSize = 0;
+        private int mQuality = QUALITY_MUSIC;
+        private int mPlayoutChannel = PLAYOUT_CHANNEL_BOTH;
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        /**
+         * Start from the settings of an existing profile.
+         */
+        public Builder(String name, AudioProfile profile) {
+            mName = name;
+            mFromMic = profile.mFromMic;
+            mToSpeaker = profile.mToSpeaker;
+            mLoopback = profile.mLoopback;
+            mToFile = profile.mToFile;
+            mSampleRate = profile.mSampleRate;
+            mChannelCount = profile.mChannelCount;
+            mCodec = profile.mCodec;
+            mFrameDurationMs = profile.mFrameDurationMs;
+            mBufferLevel = profile.mBufferLevel;
+            mPlayoutDelayMs = profile.mPlayoutDelayMs;
+            mSendQueueMs = profile.mSendQueueMs;
+            mFecGroupSize = profile.mFecGroupSize;
+            mQuality = profile.mQuality;
+            mPlayoutChannel = profile.mPlayoutChannel;
+        }
+
+        public Builder setFromMic(boolean fromMic) {
+            mFromMic = fromMic;
+            return this;
+        }
+
+        public Builder setToSpeaker(boolean toSpeaker) {
+            mToSpeaker = toSpeaker;
+            return this;
+        }
+
+        public Builder setLoopback(boolean loopback) {
+            mLoopback = loopback;
+            return this;
+        }
+
+        public Builder setToFile(boolean toFile) {
+            mToFile = toFile;
+            return this;
+        }
+
+        public Builder setSampleRate(int sampleRate) {
+            mSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * @param channelCount 1 or 2
+         */
+        public Builder setChannelCount(int channelCount) {
+            mChannelCount = channelCount;
+            return this;
+        }
+
+        public Builder setCodec(int codec) {
+            mCodec = codec;
+            return this;
+        }
+
+        /**
+         * @param frameDurationMs Duration of the frames coded on the link, a divisor of 1000
+         */
+        public Builder setFrameDurationMs(int frameDurationMs) {
+            mFrameDurationMs = frameDurationMs;
+            return this;
+        }
+
+        public Builder setBufferLevel(int bufferLevel) {
+            mBufferLevel = bufferLevel;
+            return this;
+        }
+
+        public Builder setPlayoutDelayMs(int playoutDelayMs) {
+            mPlayoutDelayMs = playoutDelayMs;
+            return this;
+        }
+
+        public Builder setSendQueueMs(int sendQueueMs) {
+            mSendQueueMs = sendQueueMs;
+            return this;
+        }
+
+        /**
+         * @param fecGroupSize Audio packets per parity packet, up to
+         *                     {@link FecEncoder#MAX_GROUP_SIZE}, or 0 for no protection
+         */
+        public Builder setFecGroupSize(int fecGroupSize) {
+            mFecGroupSize = fecGroupSize;
+            return this;
+        }
+
+        public Builder setQuality(int quality) {
+            mQuality = quality;
+            return this;
+        }
+
+        /**
+         * @param playoutChannel PLAYOUT_CHANNEL_LEFT or PLAYOUT_CHANNEL_RIGHT for this receiver
+         *                       to play a single channel of a stereo stream
+         */
+        public Builder setPlayoutChannel(int playoutChannel) {
+            mPlayoutChannel = playoutChannel;
+            return this;
+        }
+
+        public AudioProfile build() {
+            if ((mChannelCount != 1) && (mChannelCount != 2)) {
+                throw new IllegalArgumentException("Unsupported channel count " + mChannelCount);
+            }
+            if ((mFrameDurationMs <= 0) || (1000 % mFrameDurationMs != 0)) {
+                throw new IllegalArgumentException("Unsupported frame duration "
+                        + mFrameDurationMs);
+            }
+            if ((mSampleRate * mFrameDurationMs) % 1000 != 0) {
+                throw new IllegalArgumentException("Frames of " + mFrameDurationMs
+                        + "ms do not hold a whole number of samples at " + mSampleRate + "Hz");
+            }
+            mBufferLevel = Math.max(0, Math.min(mBufferLevel, BufferTuner.MAX_LEVEL));
+            mSendQueueMs = Math.max(mSendQueueMs, mFrameDurationMs);
+            mFecGroupSize = Math.max(0, Math.min(mFecGroupSize, FecEncoder.MAX_GROUP_SIZE));
+            if ((mPlayoutChannel < PLAYOUT_CHANNEL_BOTH)
+                    || (mPlayoutChannel > PLAYOUT_CHANNEL_RIGHT)) {
+                throw new IllegalArgumentException("Unsupported playout channel "
+                        + mPlayoutChannel);
+            }
+            return new AudioProfile(this);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapts the bitrate of the stream to what the link carries, so latency stays bounded when the
+ * radio degrades instead of piling up in the send queue.
+ *
+ * The stream can be sent on a ladder of rungs, from the negotiated format down to mono, half
+ * or third sample rate and ADPCM (see {@link Rung}). The controller watches the send queue
+ * (see {@link FrameQueue}), the time frames wait in it and the frames it drops, and the
+ * feedback of the receiver: lost audio, and the depth and underruns of its jitter buffer.
+ * Congestion steps one rung down at once. A clean link steps one rung up after a hold time,
+ * which doubles every time a step up is followed by congestion, so the stream does not
+ * oscillate.
+ *
+ * Time is passed in by the callers, in milliseconds of any monotonic clock.
+ */
+public class BitrateController {
+    private final static String TAG = BitrateController.class.getSimpleName();
+
+    // Share of the send queue length which, once waited by a frame, means congestion
+    private static final int BACKLOG_HIGH_DIVISOR = 2;
+    // Share of the send queue length under which the link is clean
+    private static final int BACKLOG_LOW_DIVISOR = 8;
+    // Share of the audio lost by the receiver above which the link is congested, in 1/1000
+    private static final int LOSS_HIGH_PERMILLE = 20;
+    private static final int LOSS_LOW_PERMILLE = 2;
+    // Share of the playout delay left in the receiver buffer under which audio arrives late
+    private static final int DEPTH_LOW_DIVISOR = 4;
+
+    // Each rung must cut the bitrate by this share at least, in %
+    private static final int MIN_STEP_PERCENT = 15;
+
+    // Minimum time between two steps down, to let the queue drain
+    private static final long DOWN_HOLD_MS = 500;
+    private static final long INITIAL_UP_HOLD_MS = 5000;
+    private static final long MAX_UP_HOLD_MS = 120000;
+    // A step up followed by congestion within this time is seen as failed
+    private static final long UP_PROBE_MS = 3000;
+
+    /**
+     * One configuration of the stream: the session format reduced in sample rate and channel
+     * count, then coded. Reduction happens on whole frames of the session format, so frame
+     * boundaries and time stamps do not change from rung to rung.
+     */
+    public static class Rung {
+        // Codec, divisor and channel count, on the wire
+        public static final int SIZE = 3;
+
+        private final int mCodec;
+        private final int mDivisor;
+        private final int mChannels;
+
+        public Rung(int codec, int divisor, int channels) {
+            mCodec = codec;
+            mDivisor = divisor;
+            mChannels = channels;
+        }
+
+        public int getCodec() {
+            return mCodec;
+        }
+
+        /**
+         * Return the sample rate divisor.
+         */
+        public int getDivisor() {
+            return mDivisor;
+        }
+
+        public int getChannels() {
+            return mChannels;
+        }
+
+        /**
+         * Return true if the rung keeps the session format, whatever its codec.
+         */
+        public boolean isFullFormat(AudioProfile session) {
+            return (mDivisor == 1) && (mChannels == session.getChannelCount());
+        }
+
+        /**
+         * Return true if the rung codes the audio exactly like the session: same format and
+         * same codec, so frames coded for the session go out as they are.
+         */
+        public boolean isSessionCoding(AudioProfile session) {
+            return isFullFormat(session) && (mCodec == session.getCodec());
+        }
+
+        public AudioCodec createCodec(AudioProfile session) {
+            int samples = session.getSamplesPerFrame() / mDivisor;
+            if (mCodec == AudioProfile.CODEC_IMA_ADPCM) {
+                return new ImaAdpcmCodec(mChannels, samples);
+            }
+            return new PcmCodec(samples * mChannels * 2);
+        }
+
+        /**
+         * Return the byte rate on the link, headers excluded.
+         */
+        public int getEncodedBytesPerSecond(AudioProfile session) {
+            return createCodec(session).getEncodedFrameSize() * (1000 / session.getFrameDurationMs());
+        }
+
+        /**
+         * Reduce a frame of the session format: downmix, then average groups of samples.
+         *
+         * @return The number of bytes written
+         */
+        public int reduce(ByteBuffer pcm, int length, int sessionChannels, byte[] out) {
+            int frames = length / (2 * sessionChannels) / mDivisor;
+            int pos = 0;
+            for (int f = 0; f < frames; f++) {
+                for (int c = 0; c < mChannels; c++) {
+                    int sum = 0;
+                    for (int d = 0; d < mDivisor; d++) {
+                        int in = (f * mDivisor + d) * sessionChannels;
+                        if (mChannels == sessionChannels) {
+                            sum += pcm.getShort(2 * (in + c));
+                        } else {
+                            // Downmix to mono
+                            for (int s = 0; s < sessionChannels; s++) {
+                                sum += pcm.getShort(2 * (in + s));
+                            }
+                        }
+                    }
+                    int count = (mChannels == sessionChannels) ? mDivisor : mDivisor * sessionChannels;
+                    putSample(out, pos++, sum / count);
+                }
+            }
+            return 2 * pos;
+        }
+
+        /**
+         * Expand a reduced frame back to the session format: interpolate from the last sample
+         * of the previous frame, then copy mono to all the channels.
+         *
+         * @param last Last sample of each reduced channel, carried from frame to frame
+         * @return The number of bytes written
+         */
+        public int expand(byte[] reduced, int length, int sessionChannels, int[] last,
+                          ByteBuffer out) {
+            int frames = length / (2 * mChannels);
+            int pos = 0;
+            for (int f = 0; f < frames; f++) {
+                for (int d = 1; d <= mDivisor; d++) {
+                    for (int s = 0; s < sessionChannels; s++) {
+                        int c = (mChannels == sessionChannels) ? s : 0;
+                        int target = getSample(reduced, f * mChannels + c);
+                        out.putShort(2 * pos++, (short) (last[c] + (target - last[c]) * d / mDivisor));
+                    }
+                }
+                for (int c = 0; c < mChannels; c++) {
+                    last[c] = getSample(reduced, f * mChannels + c);
+                }
+            }
+            return 2 * pos;
+        }
+
+        public void write(byte[] buffer, int offset) {
+            buffer[offset] = (byte) mCodec;
+            buffer[offset + 1] = (byte) mDivisor;
+            buffer[offset + 2] = (byte) mChannels;
+        }
+
+        public static Rung read(byte[] buffer, int offset) {
+            return new Rung(buffer[offset] & 0xff, buffer[offset + 1] & 0xff,
+                    buffer[offset + 2] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Rung)) {
+                return false;
+            }
+            Rung rung = (Rung) o;
+            return (mCodec == rung.mCodec) && (mDivisor == rung.mDivisor)
+                    && (mChannels == rung.mChannels);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mCodec << 16) | (mDivisor << 8) | mChannels;
+        }
+
+        @Override
+        public String toString() {
+            return (mCodec == AudioProfile.CODEC_IMA_ADPCM ? "ADPCM" : "PCM") + " /" + mDivisor
+                    + " " + mChannels + "ch";
+        }
+
+        private static int getSample(byte[] buffer, int index) {
+            return (short) ((buffer[2 * index] & 0xff) | (buffer[2 * index + 1] << 8));
+        }
+
+        private static void putSample(byte[] buffer, int index, int sample) {
+            buffer[2 * index] = (byte) sample;
+            buffer[2 * index + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    private final AudioProfile mSession;
+    private final List<Rung> mLadder;
+    private final long mBacklogHighUs;
+    private final long mBacklogLowUs;
+
+    private int mRung;
+    private long mBacklogUs;
+    // Backlog when the last step down was taken, while it drains
+    private long mBacklogAtDownUs;
+    private int mLossPermille;
+    private boolean mDepthLow;
+    private int mUnderruns = -1;
+    private boolean mUnderrunReported;
+    private long mDroppedFrames;
+    private boolean mDropReported;
+
+    private long mLastChangeMs;
+    private long mLastCongestionMs;
+    private long mLastUpMs = -1;
+    private long mUpHoldMs = INITIAL_UP_HOLD_MS;
+
+    /**
+     * @param session Profile of the session, its format is the top of the ladder
+     */
+    public BitrateController(AudioProfile session) {
+        mSession = session;
+        mBacklogHighUs = session.getSendQueueMs() * 1000L / BACKLOG_HIGH_DIVISOR;
+        mBacklogLowUs = session.getSendQueueMs() * 1000L / BACKLOG_LOW_DIVISOR;
+        mLadder = buildLadder(session);
+    }
+
+    /**
+     * Order the reductions of the session format by decreasing bitrate, under the negotiated
+     * format itself. Sender and receiver build the same ladder from the session, so the
+     * receiver only takes the rungs of the ladder.
+     */
+    public static List<Rung> buildLadder(AudioProfile session) {
+        List<Rung> ladder = new ArrayList<Rung>();
+        Rung top = new Rung(session.getCodec(), 1, session.getChannelCount());
+        int topRate = top.getEncodedBytesPerSecond(session);
+        int[] codecs = {AudioProfile.CODEC_PCM, AudioProfile.CODEC_IMA_ADPCM};
+        int[] divisors = {1, 2, 3};
+
+        for (int codec : codecs) {
+            for (int divisor : divisors) {
+                if (session.getSamplesPerFrame() % divisor != 0) {
+                    continue;
+                }
+                for (int channels = session.getChannelCount(); channels >= 1; channels--) {
+                    Rung rung = new Rung(codec, divisor, channels);
+                    int rate = rung.getEncodedBytesPerSecond(session);
+                    if (rate >= topRate) {
+                        continue;
+                    }
+                    int i = 0;
+                    while ((i < ladder.size())
+                            && (ladder.get(i).getEncodedBytesPerSecond(session) > rate)) {
+                        i++;
+                    }
+                    ladder.add(i, rung);
+                }
+            }
+        }
+        ladder.add(0, top);
+
+        // Drop the rungs too close to the one above to relieve the link
+        int i = 1;
+        while (i < ladder.size()) {
+            long above = ladder.get(i - 1).getEncodedBytesPerSecond(session);
+            if (100L * ladder.get(i).getEncodedBytesPerSecond(session)
+                    > (100 - MIN_STEP_PERCENT) * above) {
+                ladder.remove(i);
+            } else {
+                i++;
+            }
+        }
+        return ladder;
+    }
+
+    /**
+     * Return the rung to send the next frame with.
+     */
+    public synchronized Rung getRung() {
+        return mLadder.get(mRung);
+    }
+
+    /**
+     * Account for a frame taken from the send queue.
+     *
+     * @param waitUs        Time the frame waited in the queue
+     * @param droppedFrames Frames dropped by the queue since the stream start
+     */
+    public void onFrameSent(long waitUs, long droppedFrames, long nowMs) {
+        synchronized (this) {
+            mBacklogUs = waitUs;
+            if (droppedFrames > mDroppedFrames) {
+                mDropReported = true;
+            }
+            mDroppedFrames = droppedFrames;
+        }
+        evaluate(nowMs);
+    }
+
+    /**
+     * Account for the feedback of the receiver.
+     *
+     * @param lossPermille Share of the audio lost since the last feedback, in 1/1000
+     * @param depthMs      Audio buffered by the receiver for playout, or -1 if not playing
+     * @param underruns    Underruns of the receiver jitter buffer since the stream start
+     */
+    public void onFeedback(int lossPermille, int depthMs, int underruns, long nowMs) {
+        synchronized (this) {
+            mLossPermille = lossPermille;
+            mDepthLow = (depthMs >= 0)
+                    && (depthMs < mSession.getPlayoutDelayMs() / DEPTH_LOW_DIVISOR);
+            if ((mUnderruns >= 0) && (underruns > mUnderruns)) {
+                mUnderrunReported = true;
+            }
+            mUnderruns = underruns;
+        }
+        evaluate(nowMs);
+    }
+
+    private synchronized void evaluate(long nowMs) {
+        // A backlog draining after a step down needs no further step
+        boolean queueGrowing = ((mBacklogUs > mBacklogHighUs) && (mBacklogUs >= mBacklogAtDownUs))
+                || mDropReported;
+        boolean congested = queueGrowing
+                || (mLossPermille > LOSS_HIGH_PERMILLE) || mDepthLow || mUnderrunReported;
+        boolean clean = (mBacklogUs < mBacklogLowUs) && (mLossPermille < LOSS_LOW_PERMILLE)
+                && !mDepthLow;
+        mUnderrunReported = false;
+        mDropReported = false;
+        if (mBacklogUs < mBacklogLowUs) {
+            mBacklogAtDownUs = 0;
+        }
+
+        if (congested) {
+            mLastCongestionMs = nowMs;
+            if ((mLastUpMs >= 0) && (nowMs - mLastUpMs < UP_PROBE_MS)) {
+                // The last step up was too much: wait longer before the next one
+                mUpHoldMs = Math.min(2 * mUpHoldMs, MAX_UP_HOLD_MS);
+                mLastUpMs = -1;
+            }
+            if ((mRung < mLadder.size() - 1) && (nowMs - mLastChangeMs >= DOWN_HOLD_MS)) {
+                mRung++;
+                mLastChangeMs = nowMs;
+                mBacklogAtDownUs = mBacklogUs;
+                Log.i(TAG, "Congestion, stepping down to " + mLadder.get(mRung)
+                        + " (backlog " + mBacklogUs + "us, loss " + mLossPermille + "/1000)");
+            }
+        } else if (clean && (mRung > 0) && (nowMs - mLastCongestionMs >= mUpHoldMs)
+                && (nowMs - mLastChangeMs >= mUpHoldMs)) {
+            mRung--;
+            mLastChangeMs = nowMs;
+            mLastUpMs = nowMs;
+            Log.i(TAG, "Link clean, stepping up to " + mLadder.get(mRung));
+        } else if ((mLastUpMs >= 0) && (nowMs - mLastUpMs >= UP_PROBE_MS)) {
+            // The step up held
+            mUpHoldMs = INITIAL_UP_HOLD_MS;
+            mLastUpMs = -1;
+        }
+    }
+
+    public synchronized long getBacklogUs() {
+        return mBacklogUs;
+    }
+}
@@ -20,6 +20,7 @@
 
 package com.nxp.android.bleaudio;
 
+import android.annotation.TargetApi;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -28,26 +29,32 @@ import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
-import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Service for managing connection and data communication with a
@@ -64,17 +71,83 @@ public class BluetoothLeService extends Service {
     private ListeningThread mListeningThread;
     private ConnectingThread mConnectingThread;
     private AudioTxThread mAudioTxThread;
-    private AudioRxThread mAudioRxThread;
-
+    private final ArrayList<AudioRxThread> mAudioRxThreads = new ArrayList<AudioRxThread>();
+    private AudioPlayoutThread mAudioPlayoutThread;
+    // Cost of each stage of the pipeline, and probes of the stages outside the executor
+    private final StageStats mStageStats = new StageStats();
+    private final StageStats.Probe mSocketWriteProbe = mStageStats.getProbe("Socket write");
+    private final StageStats.Probe mSocketReadProbe = mStageStats.getProbe("Socket read");
+    private final StageStats.Probe mMicReadProbe = mStageStats.getProbe("Mic read");
+    private final StageStats.Probe mPlaybackProbe = mStageStats.getProbe("Playback");
+    private final StageStats.Probe mLogProbe = mStageStats.getProbe("Log");
+    // Runs all the threads above, and watches the audio ones keep up with their frames
+    private final AudioExecutor mAudioExecutor = new AudioExecutor("BleAudio", mStageStats);
+    // Notices the connections whose peer vanished
+    private final LinkMonitor mLinkMonitor = new LinkMonitor(new LinkMonitor.Listener() {
+        @Override
+        public void onLinkLost(LinkMonitor.Link link, int cause) {
+            BluetoothLeService.this.onLinkLost(link);
+        }
+    }, Constants.HEARTBEAT_INTERVAL_MS, Constants.LINK_TIMEOUT_MS);
+    // Device to connect to again after the loss of an outgoing connection
+    private String mReconnectAddress;
+    private int mReconnectAttempts;
+    // Token of the outgoing session, kept when connecting again so the receiver resumes it
+    private long mSessionToken;
+    private final Random mRandom = new Random();
+    // Cache files being encoded in the background
+    private final HashSet<String> mCacheBuilds = new HashSet<String>();
+    // Talkers whose link dropped, still playing for a grace window in case they come back
+    private final ArrayList<AudioRxThread> mParkedRxThreads = new ArrayList<AudioRxThread>();
+    private int mResumedSessions;
+    private AudioMixer mAudioMixer;
+    private LinkProbeThread mLinkProbeThread;
+    // Probe the link instead of streaming on the next outgoing connection
+    private boolean mProbeRequested;
+    private LinkProbe.Result mLastProbeResult;
+    // Buffer sizes of the current connections
+    private BufferTuner mBufferTuner;
+
+    // Profile of the next session, and profile of the current one
+    private AudioProfile mAudioProfile = AudioProfile.DEFAULT;
+    private AudioProfile mSessionProfile = AudioProfile.DEFAULT;
+    // Files sent instead of the input file, when set
+    private List<File> mPlaylist;
+    private boolean mPlaylistLoop;
+    private boolean mPlaylistShuffle;
+    // Archives of the received audio, by talker address and stream format, and their budget
+    private final HashMap<String, CaptureStore> mCaptureStores =
+            new HashMap<String, CaptureStore>();
+    private CaptureStore.Retention mCaptureRetention;
+    // Record the traffic of the next receiving threads
+    private boolean mRecordTraffic;
+    // Emulated bad link under the next connections, and the connections impaired
+    private LinkImpairment mLinkImpairment;
+    private final ArrayList<LinkImpairment.ImpairedOutputStream> mImpairedLinks =
+            new ArrayList<LinkImpairment.ImpairedOutputStream>();
+    // Told about the peers connecting to this device
+    private IncomingListener mIncomingListener;
 
     private int mState;
 
+    private KnownDeviceCache mKnownDeviceCache;
+
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTENING = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
+    // Time given to each thread to complete when the service stops
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * Receives the connections peers open to this device, from the listening thread.
+     */
+    public interface IncomingListener {
+        void onIncomingConnection(String address);
+    }
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
@@ -121,6 +194,10 @@ public class BluetoothLeService extends Service {
 
         mState = STATE_NONE;
 
+        if (mKnownDeviceCache == null) {
+            mKnownDeviceCache = new KnownDeviceCache(this);
+        }
+
         return true;
     }
 
@@ -150,27 +227,25 @@ public class BluetoothLeService extends Service {
 
         // Cancel any thread attempting to make a connection
         if (mConnectingThread != null) {
-            mConnectingThread.cancel();
+            mAudioExecutor.cancel(mConnectingThread);
             mConnectingThread = null;
         }
 
         // Cancel any Tx thread currently running a connection
         if (mAudioTxThread != null) {
-            mAudioTxThread.cancel();
+            mAudioExecutor.cancel(mAudioTxThread);
             mAudioTxThread = null;
         }
+        cancelLinkProbe();
         // Cancel any Rx thread currently running a connection
-        if (mAudioRxThread != null) {
-            mAudioRxThread.cancel();
-            mAudioRxThread = null;
-        }
+        cancelRxThreads();
 
         setState(STATE_LISTENING);
 
         // Start the thread to listen on a BluetoothServerSocket
         if (mListeningThread == null) {
             mListeningThread = new ListeningThread();
-            mListeningThread.start();
+            mAudioExecutor.execute("Listening", AudioExecutor.PRIORITY_DEFAULT, mListeningThread);
         }
     }
 
@@ -180,37 +255,273 @@ public class BluetoothLeService extends Service {
      * @param device_address The address of the BluetoothDevice to connect
      */
     public synchronized void connect(String device_address, boolean sendToSocket) {
+        mReconnectAddress = null;
+        connect(device_address, sendToSocket, 0);
+    }
 
+    private synchronized void connect(String device_address, boolean sendToSocket,
+                                      long delayMs) {
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(device_address);
         Log.d(TAG, "connect to: " + device);
 
         // Cancel any thread attempting to make a connection
         if (mState == STATE_CONNECTING) {
             if (mConnectingThread != null) {
-                mConnectingThread.cancel();
+                mAudioExecutor.cancel(mConnectingThread);
                 mConnectingThread = null;
             }
         }
 
         // Cancel any Tx thread currently running a connection
         if (mAudioTxThread != null) {
-            mAudioTxThread.cancel();
+            mAudioExecutor.cancel(mAudioTxThread);
             mAudioTxThread = null;
         }
+        cancelLinkProbe();
         // Cancel any Rx thread currently running a connection
-        if (mAudioRxThread != null) {
-            mAudioRxThread.cancel();
-            mAudioRxThread = null;
-        }
+        cancelRxThreads();
 
         // Start the thread to connect with the given device
-        mConnectingThread = new ConnectingThread(device, sendToSocket);
-        mConnectingThread.start();
+        mConnectingThread = new ConnectingThread(device, sendToSocket, delayMs);
+        mAudioExecutor.execute("Connecting", AudioExecutor.PRIORITY_DEFAULT, mConnectingThread);
         setState(STATE_CONNECTING);
     }
 
     /**
-     * Start the AudioTxThread to begin managing a Bluetooth connection
+     * Connect to a remote device and probe the link instead of streaming audio. The result
+     * is stored with the device in the {@link KnownDeviceCache}.
+     *
+     * @param device_address The address of the BluetoothDevice to probe
+     */
+    public synchronized void probe(String device_address) {
+        mProbeRequested = true;
+        connect(device_address, true);
+    }
+
+    /**
+     * Probe a local loopback, to check the probe itself and get a reference without radio.
+     * The result is reported by {@link #getLastProbeResult()}.
+     */
+    public void probeLoopback() {
+        mAudioExecutor.execute("LoopbackProbe", AudioExecutor.PRIORITY_DEFAULT,
+                new AudioExecutor.Task() {
+                    @Override
+                    public void run() {
+                        try {
+                            LinkProbe.Result result = LinkProbe.runOverLoopback(
+                                    Constants.L2CAP_DEFAULT_MTU,
+                                    4 * Constants.L2CAP_DEFAULT_MTU);
+                            synchronized (BluetoothLeService.this) {
+                                mLastProbeResult = result;
+                            }
+                            Log.i(TAG, "Loopback knee at " + result.getKneeRate() + " B/s");
+                        } catch (IOException | InterruptedException e) {
+                            Log.e(TAG, "Loopback probe failed", e);
+                        }
+                    }
+
+                    @Override
+                    public void cancel() {
+                        // Interrupted by the executor, between two packets
+                    }
+                });
+    }
+
+    /**
+     * Return the result of the last completed link probe, or null.
+     */
+    public synchronized LinkProbe.Result getLastProbeResult() {
+        return mLastProbeResult;
+    }
+
+    /**
+     * Encode a file for a stream format in the background, so the next streams of the file
+     * cost no encoding, see {@link EncodedFileCache}. Does nothing if the file is being
+     * encoded already.
+     */
+    public void buildFileCache(final File source, final AudioProfile profile) {
+        final String key = EncodedFileCache.getCacheFile(source, profile).getPath();
+        synchronized (mCacheBuilds) {
+            if (!mCacheBuilds.add(key)) {
+                return;
+            }
+        }
+        mAudioExecutor.execute("Encode", AudioExecutor.PRIORITY_BACKGROUND,
+                new AudioExecutor.Task() {
+                    @Override
+                    public void run() {
+                        try {
+                            EncodedFileCache.build(source, profile);
+                        } catch (IOException e) {
+                            Log.e(TAG, "File cannot be cached", e);
+                        } finally {
+                            synchronized (mCacheBuilds) {
+                                mCacheBuilds.remove(key);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+    }
+
+    /**
+     * Select the audio profile of the next sessions. The running session, if any, keeps the
+     * profile it started with.
+     */
+    public synchronized void setAudioProfile(AudioProfile profile) {
+        Log.d(TAG, "setAudioProfile() " + mAudioProfile + " -> " + profile);
+        mAudioProfile = profile;
+    }
+
+    /**
+     * Return the audio profile selected for the next sessions.
+     */
+    public synchronized AudioProfile getAudioProfile() {
+        return mAudioProfile;
+    }
+
+    /**
+     * Select the files sent by the next sessions streaming from a file, played back to back
+     * without gaps.
+     *
+     * @param files   Files to play, null for the input file
+     * @param loop    Play the list again once over
+     * @param shuffle Play each pass in a random order
+     */
+    public synchronized void setPlaylist(List<File> files, boolean loop, boolean shuffle) {
+        mPlaylist = (files != null) ? new ArrayList<File>(files) : null;
+        mPlaylistLoop = loop;
+        mPlaylistShuffle = shuffle;
+    }
+
+    /**
+     * Return the archive of the audio received from a talker in a stream format, opened on
+     * first use.
+     *
+     * @return The archive, or null if it cannot be opened
+     */
+    public synchronized CaptureStore getCaptureStore(String address, AudioProfile profile) {
+        String name = address.replace(":", "") + "-" + profile.getSampleRate() + "-"
+                + profile.getChannelCount();
+        CaptureStore store = mCaptureStores.get(name);
+        if (store == null) {
+            final File sdcard = Environment.getExternalStorageDirectory();
+            File folder = new File(sdcard.getAbsolutePath() + Constants.FOLDER
+                    + Constants.CAPTURE_FOLDER);
+            if (mCaptureRetention == null) {
+                // All the archives share the budget, whatever the number of talkers
+                mCaptureRetention = new CaptureStore.Retention(folder,
+                        Constants.CAPTURE_RETENTION_BYTES);
+            }
+            try {
+                store = new CaptureStore(new File(folder, name), profile,
+                        Constants.CAPTURE_SEGMENT_MS, mCaptureRetention);
+            } catch (IOException e) {
+                Log.e(TAG, "Capture store cannot be opened", e);
+                return null;
+            }
+            mCaptureStores.put(name, store);
+        }
+        return store;
+    }
+
+    /**
+     * Record the bytes received by the next sessions, with their arrival time, to replay
+     * them in tests (see {@link TrafficTrace}). A trace per connection is written in the
+     * trace folder.
+     */
+    public synchronized void setTrafficRecording(boolean record) {
+        mRecordTraffic = record;
+    }
+
+    /**
+     * Set the listener told about the peers connecting to this device, whether their
+     * connection is accepted or not.
+     *
+     * @param listener The listener, or null for none
+     */
+    public synchronized void setIncomingListener(IncomingListener listener) {
+        mIncomingListener = listener;
+    }
+
+    /**
+     * Send the packets of the next connections through an emulated bad link, for stress
+     * tests without walking away from the device.
+     *
+     * @param impairment Settings of the link, null for the radio as it is
+     */
+    public synchronized void setLinkImpairment(LinkImpairment impairment) {
+        Log.d(TAG, "setLinkImpairment() " + impairment);
+        mLinkImpairment = impairment;
+    }
+
+    /**
+     * Return the statistics of the emulated links of the connections impaired, until the
+     * service stops.
+     */
+    public synchronized List<LinkImpairment.ImpairedOutputStream> getImpairedLinks() {
+        return new ArrayList<LinkImpairment.ImpairedOutputStream>(mImpairedLinks);
+    }
+
+    private synchronized boolean isRecordingTraffic() {
+        return mRecordTraffic;
+    }
+
+    /**
+     * Copy the audio received from a talker between two presentation times, from its
+     * archive in the format of the running session.
+     *
+     * @return The number of bytes copied
+     */
+    public long readCapture(String address, long fromUs, long toUs, OutputStream out)
+            throws IOException {
+        CaptureStore store = getCaptureStore(address, getSessionProfile());
+        return (store != null) ? store.read(fromUs, toUs, out) : 0;
+    }
+
+    /**
+     * Set the volume of the stream sent, on the receiver side. Sent as a control packet, it
+     * does not wait for the audio queued on the link.
+     *
+     * @param volume From 0 for silence to 1 for the stream as captured
+     */
+    public void setRemoteVolume(float volume) {
+        AudioTxThread txThread;
+        synchronized (this) {
+            txThread = mAudioTxThread;
+        }
+        if (txThread != null) {
+            txThread.send_volume((int) (Math.max(0, Math.min(volume, 1)) * AudioMixer.UNITY_GAIN));
+        }
+    }
+
+    /**
+     * Move the stream of the file sent to a frame, when it is streamed from its encoded
+     * cache (see {@link EncodedFileCache}). Meant for testing the playback.
+     */
+    public void seekFile(int frameIndex) {
+        AudioTxThread txThread;
+        synchronized (this) {
+            txThread = mAudioTxThread;
+        }
+        if (txThread != null) {
+            txThread.seek_file(frameIndex);
+        }
+    }
+
+    /**
+     * Return the audio profile of the running session.
+     */
+    public synchronized AudioProfile getSessionProfile() {
+        return mSessionProfile;
+    }
+
+    /**
+     * Start the HandshakeThread to agree on the stream format with the remote device. The
+     * connection is then started by {@link #startSession}.
      *
      * @param socket The BluetoothSocket on which the connection was made
      */
@@ -219,70 +530,480 @@ public class BluetoothLeService extends Service {
 
         // Cancel the thread that completed the connection
         if (mConnectingThread != null) {
-            mConnectingThread.cancel();
+            mAudioExecutor.cancel(mConnectingThread);
             mConnectingThread = null;
         }
 
-        // Cancel any Tx thread currently running a connection
-        if (mAudioTxThread != null) {
-            mAudioTxThread.cancel();
-            mAudioTxThread = null;
+        // Both threads of the connection write through the same packet writer
+        StreamProtocol.Writer writer;
+        try {
+            OutputStream outStream = socket.getOutputStream();
+            if (mLinkImpairment != null) {
+                // Everything this end sends goes through the emulated link
+                LinkImpairment.ImpairedOutputStream link = mLinkImpairment.wrap(outStream);
+                mImpairedLinks.add(link);
+                outStream = link;
+            }
+            writer = new StreamProtocol.Writer(outStream);
+            writer.setProbe(mSocketWriteProbe);
+        } catch (IOException e) {
+            Log.e(TAG, "temp sockets not created", e);
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "unable to close() unusable socket", e2);
+            }
+            return;
         }
-        // Cancel any Rx thread currently running a connection
-        if (mAudioRxThread != null) {
-            mAudioRxThread.cancel();
-            mAudioRxThread = null;
+
+        // Agree on the stream format before any audio flows
+        mAudioExecutor.execute("Handshake", AudioExecutor.PRIORITY_DEFAULT,
+                new HandshakeThread(socket, writer, sendToSocket));
+    }
+
+    /**
+     * Start the AudioTxThread to begin managing a Bluetooth connection. Incoming connections
+     * are added to the running ones (up to MAX_RX_SOURCES) and mixed together on playout, an
+     * outgoing connection replaces any existing one.
+     *
+     * @param socket The BluetoothSocket on which the connection was made
+     * @param format The stream format agreed on with the remote device
+     */
+    private synchronized void startSession(BluetoothSocket socket, StreamProtocol.Writer writer,
+                                           boolean sendToSocket, FormatNegotiator.Format format) {
+        // An outgoing connection, or the first incoming one, starts a new session
+        final AudioProfile profile;
+        if (sendToSocket || (mAudioRxThreads.isEmpty() && mParkedRxThreads.isEmpty())) {
+            mSessionProfile = format.applyTo(mAudioProfile);
+            mBufferTuner = createBufferTuner(socket.getRemoteDevice().getAddress());
+            profile = mSessionProfile;
+        } else {
+            // Same sample rate and channels as the session, the codec may differ
+            profile = format.applyTo(mSessionProfile);
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mListeningThread != null) {
-            Log.d(TAG, "Calling mListeningThread.cancel");
-            mListeningThread.cancel();
-            Log.d(TAG, "Setting mListeningThread to null");
-            mListeningThread = null;
+        // Watch the connection, both threads report its errors
+        LinkMonitor.Link link = mLinkMonitor.addLink(socket.getRemoteDevice().getAddress(),
+                writer);
+        if (mLinkMonitor.start()) {
+            mAudioExecutor.execute("LinkMonitor", AudioExecutor.PRIORITY_DEFAULT, mLinkMonitor);
         }
 
         if (sendToSocket) {
-            // Start the thread to manage the connection and perform transmissions
-            mAudioTxThread = new AudioTxThread(socket);
-            mAudioTxThread.start();
+            // A reconnection carries on with the session, the receiver may still be playing it
+            if ((mReconnectAddress == null) || (mSessionToken == 0)) {
+                mSessionToken = mRandom.nextLong() | 1;
+            }
+            // Connected again, a later loss starts the attempts over
+            mReconnectAddress = null;
+            mReconnectAttempts = 0;
+
+            // Cancel any Tx thread currently running a connection
+            if (mAudioTxThread != null) {
+                mAudioExecutor.cancel(mAudioTxThread);
+                mAudioTxThread = null;
+            }
+            cancelLinkProbe();
+            // Cancel any Rx thread currently running a connection
+            cancelRxThreads();
+
+            // Cancel the accept thread because we only send to one device
+            if (mListeningThread != null) {
+                Log.d(TAG, "Calling mListeningThread.cancel");
+                mAudioExecutor.cancel(mListeningThread);
+                Log.d(TAG, "Setting mListeningThread to null");
+                mListeningThread = null;
+            }
+
+            if (mProbeRequested) {
+                // Measure the link, the peer echoes the probe packets
+                mProbeRequested = false;
+                mLinkProbeThread = new LinkProbeThread(socket, writer, format.getMtu());
+                mAudioExecutor.execute("LinkProbe", AudioExecutor.PRIORITY_DEFAULT,
+                        mLinkProbeThread);
+            } else {
+                // Start the thread to manage the connection and perform transmissions
+                mAudioTxThread = new AudioTxThread(socket, writer, link, mSessionToken,
+                        mBufferTuner, profile, format.getMtu());
+                mAudioExecutor.execute("AudioTx", AudioExecutor.PRIORITY_AUDIO, mAudioTxThread);
+
+                // Remember the sink to reconnect to it without scanning next time
+                BluetoothDevice device = socket.getRemoteDevice();
+                mKnownDeviceCache.recordConnection(device.getAddress(), device.getName(),
+                        profile.getSampleRate(), profile.getChannelCount(), profile.getEncoding());
+            }
+        }
+
+        if (profile.isToSpeaker()) {
+            startPlayout();
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mAudioRxThread = new AudioRxThread(socket, sendToSocket);
-        mAudioRxThread.start();
+        AudioRxThread rxThread = new AudioRxThread(socket, writer, link, sendToSocket, profile);
+        mAudioRxThreads.add(rxThread);
+        mAudioExecutor.execute("AudioRx", AudioExecutor.PRIORITY_AUDIO, rxThread);
 
         setState(STATE_CONNECTED);
     }
 
     /**
-     * Stop all threads
+     * Create the buffer tuner of a connection, starting from the level settled last time
+     * with the device. The mixer depth follows the level live, the capture and player buffers
+     * are sized from it when a stream starts.
+     */
+    private BufferTuner createBufferTuner(final String address) {
+        KnownDeviceCache.Entry entry = mKnownDeviceCache.getDevice(address);
+        int level = (entry != null) ? entry.getBufferLevel() : -1;
+        if (level < 0) {
+            level = mSessionProfile.getBufferLevel();
+        }
+        Log.d(TAG, "Buffer level " + level + " for " + address);
+
+        return new BufferTuner(level, new BufferTuner.Listener() {
+            @Override
+            public void onLevelChanged(int level) {
+                Log.i(TAG, "Buffer level -> " + level);
+                synchronized (BluetoothLeService.this) {
+                    if (mAudioMixer != null && mAudioPlayoutThread != null) {
+                        int periodSize = mAudioPlayoutThread.getPeriodSize();
+                        int depth = BufferTuner.getPeriods(level) * periodSize;
+                        mAudioMixer.setDepth(depth, 2 * depth);
+                    }
+                }
+            }
+
+            @Override
+            public void onLevelSettled(int level) {
+                mKnownDeviceCache.recordBufferLevel(address, level);
+            }
+        });
+    }
+
+    /**
+     * Return true if another incoming connection can be mixed with the running ones.
+     */
+    private synchronized boolean canAcceptSource() {
+        return mAudioTxThread == null && mLinkProbeThread == null
+                && mAudioRxThreads.size() < Constants.MAX_RX_SOURCES;
+    }
+
+    /**
+     * Cancel the link probe, if one is running.
+     */
+    private synchronized void cancelLinkProbe() {
+        if (mLinkProbeThread != null) {
+            mAudioExecutor.cancel(mLinkProbeThread);
+            mLinkProbeThread = null;
+        }
+    }
+
+    /**
+     * Cancel all the Rx threads and the playout thread mixing them.
+     */
+    private synchronized void cancelRxThreads() {
+        for (AudioRxThread rxThread : mAudioRxThreads) {
+            mAudioExecutor.cancel(rxThread);
+        }
+        mAudioRxThreads.clear();
+        mParkedRxThreads.clear();
+
+        if (mAudioPlayoutThread != null) {
+            mAudioExecutor.cancel(mAudioPlayoutThread);
+            mAudioPlayoutThread = null;
+        }
+        mAudioMixer = null;
+    }
+
+    /**
+     * Create the mixer and start the thread playing it, if not already running.
+     */
+    private synchronized void startPlayout() {
+        if (mAudioPlayoutThread != null) {
+            return;
+        }
+
+        AudioProfile profile = mSessionProfile;
+        int channelNb = profile.getChannelCount();
+        int periodSize = AudioTrack.getMinBufferSize(profile.getSampleRate(),
+                profile.getChannelOutConfig(), profile.getEncoding()) / 2;
+        periodSize -= periodSize % channelNb;
+
+        // Sized for the largest buffer level, then set to the current one
+        int depth = BufferTuner.getPeriods(mBufferTuner.getLevel()) * periodSize;
+        int maxDepth = 2 * BufferTuner.getPeriods(BufferTuner.MAX_LEVEL) * periodSize;
+        mAudioMixer = new AudioMixer(Constants.MAX_RX_SOURCES, profile.getSampleRate(), channelNb,
+                periodSize, depth, maxDepth, profile.getPlayoutDelayMs(),
+                Constants.SYNC_TOLERANCE_US);
+        mAudioMixer.setDepth(depth, 2 * depth);
+        mAudioPlayoutThread = new AudioPlayoutThread(mAudioMixer, periodSize, mBufferTuner,
+                profile);
+        mAudioExecutor.execute("AudioPlayout", AudioExecutor.PRIORITY_AUDIO,
+                mAudioPlayoutThread);
+    }
+
+    /**
+     * Return the maximum packet size the link can transmit, or the default L2CAP MTU when the
+     * platform cannot tell.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getLinkMtu(BluetoothSocket socket) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            int mtu = socket.getMaxTransmitPacketSize();
+            if (mtu > 0) {
+                return mtu;
+            }
+        }
+        return Constants.L2CAP_DEFAULT_MTU;
+    }
+
+    /**
+     * Return the residual playout skew against the sender clock, in microseconds: the
+     * scheduling error left on the worst talker plus the clock sync uncertainty.
+     */
+    public synchronized long getPlayoutSkewMicros() {
+        if (mAudioMixer == null) {
+            return 0;
+        }
+        long uncertainty = 0;
+        for (AudioRxThread rxThread : mAudioRxThreads) {
+            uncertainty = Math.max(uncertainty, rxThread.getClockSync().getUncertaintyUs());
+        }
+        return mAudioMixer.getMaxSkewUs() + uncertainty;
+    }
+
+    /**
+     * Stop all threads, and wait for them to complete.
+     */
+    public void stop() {
+        cancelAll();
+        if (!mAudioExecutor.shutdown(STOP_TIMEOUT_MS)) {
+            Log.w(TAG, "stop: " + mAudioExecutor.getActiveCount() + " threads still running");
+        }
+        for (AudioExecutor.Stage stage : mAudioExecutor.getStages()) {
+            Log.i(TAG, stage.toString());
+        }
+        Log.i(TAG, mLinkMonitor.toString());
+        dumpStageStats();
+    }
+
+    /**
+     * Return the cost of each stage of the pipeline, see {@link StageStats#snapshot()}.
+     */
+    public StageStats getStageStats() {
+        return mStageStats;
+    }
+
+    /**
+     * Write the cost of each stage of the pipeline to the stats file.
+     *
+     * @return The file, or null if it cannot be written
+     */
+    public File dumpStageStats() {
+        final File sdcard = Environment.getExternalStorageDirectory();
+        File file = new File(sdcard.getAbsolutePath() + Constants.FOLDER + Constants.STATS_FILE);
+        try {
+            mStageStats.dump(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Stage stats cannot be written", e);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Log a message of the audio loops, accounting for its cost.
+     */
+    private void logFrame(String message) {
+        mLogProbe.begin();
+        Log.i(TAG, message);
+        mLogProbe.end(0, message.length());
+    }
+
+    /**
+     * Return the executor running the threads of the service, and its timing statistics.
+     */
+    public AudioExecutor getAudioExecutor() {
+        return mAudioExecutor;
+    }
+
+    /**
+     * Return the monitor of the connections, and its loss statistics.
      */
-    public synchronized void stop() {
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    private synchronized void cancelAll() {
         Log.d(TAG, "stop");
+        mReconnectAddress = null;
 
         if (mConnectingThread != null) {
-            mConnectingThread.cancel();
+            mAudioExecutor.cancel(mConnectingThread);
             mConnectingThread = null;
         }
 
         if (mAudioTxThread != null) {
-            mAudioTxThread.cancel();
+            mAudioExecutor.cancel(mAudioTxThread);
             mAudioTxThread = null;
         }
+        cancelLinkProbe();
+
+        cancelRxThreads();
 
         if (mListeningThread != null) {
-            mListeningThread.cancel();
+            mAudioExecutor.cancel(mListeningThread);
             mListeningThread = null;
         }
 
+        // Stop the delivery threads of the emulated links
+        for (LinkImpairment.ImpairedOutputStream link : mImpairedLinks) {
+            Log.i(TAG, link.toString());
+            try {
+                link.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of impaired link failed", e);
+            }
+        }
+        mImpairedLinks.clear();
+
         setState(STATE_NONE);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Tear down the connection of a lost link. An outgoing connection is made again, an
+     * incoming talker is dropped from the mix.
+     */
+    private void onLinkLost(LinkMonitor.Link link) {
+        synchronized (this) {
+            AudioRxThread lostThread = null;
+            for (AudioRxThread rxThread : mAudioRxThreads) {
+                if (rxThread.getLink() == link) {
+                    lostThread = rxThread;
+                }
+            }
+            if (lostThread == null) {
+                // Already torn down
+                return;
+            }
+            if (lostThread.isTxActive()) {
+                mReconnectAddress = link.getName();
+                mReconnectAttempts = 0;
+            } else {
+                park(lostThread);
+                if (!mAudioRxThreads.isEmpty() || !mParkedRxThreads.isEmpty()) {
+                    // The other talkers keep playing, or this one may come back
+                    return;
+                }
+            }
+        }
+        connectionFailedOrLost();
+    }
+
+    /**
+     * Stop the Rx thread of a talker. A talker which belongs to a session keeps its place in
+     * the mix, buffered audio and clock sync for RESUME_GRACE_MS, to be resumed by the next
+     * connection of the session, see {@link #resumeSession}.
+     */
+    private synchronized void park(AudioRxThread rxThread) {
+        boolean parked = rxThread.park();
+        mAudioExecutor.cancel(rxThread);
+        mAudioRxThreads.remove(rxThread);
+        if (!parked) {
+            return;
+        }
+        Log.i(TAG, "Talker parked for " + Constants.RESUME_GRACE_MS + "ms");
+        mParkedRxThreads.add(rxThread);
+        mAudioExecutor.execute("ResumeGrace", AudioExecutor.PRIORITY_DEFAULT,
+                new AudioExecutor.Task() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(Constants.RESUME_GRACE_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        expireParkedTalkers();
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+    }
+
+    /**
+     * Give up on the parked talkers which did not come back within the grace window, and
+     * start over once nobody is left.
+     */
+    private void expireParkedTalkers() {
+        synchronized (this) {
+            long now = ClockSync.now();
+            for (int i = mParkedRxThreads.size() - 1; i >= 0; i--) {
+                AudioRxThread rxThread = mParkedRxThreads.get(i);
+                if (now - rxThread.getParkedUs() >= Constants.RESUME_GRACE_MS * 1000L) {
+                    Log.i(TAG, "Parked talker expired");
+                    rxThread.leave_mix();
+                    mParkedRxThreads.remove(i);
+                }
+            }
+            if (!mAudioRxThreads.isEmpty() || !mParkedRxThreads.isEmpty()
+                    || (mState != STATE_CONNECTED)) {
+                return;
+            }
+        }
+        connectionFailedOrLost();
+    }
+
+    /**
+     * Hand over the talker of a session to the Rx thread of its new connection. A talker of
+     * the session still connected is taken over too: its peer came back before the loss of
+     * the old link was noticed.
+     *
+     * @return The parked talker, or null if the session is unknown or expired
+     */
+    private synchronized AudioRxThread resumeSession(AudioRxThread caller, long token) {
+        for (AudioRxThread rxThread : new ArrayList<AudioRxThread>(mAudioRxThreads)) {
+            if ((rxThread != caller) && (rxThread.getSessionToken() == token)) {
+                park(rxThread);
+            }
+        }
+        for (AudioRxThread rxThread : mParkedRxThreads) {
+            if (rxThread.getSessionToken() == token) {
+                mParkedRxThreads.remove(rxThread);
+                mResumedSessions++;
+                return rxThread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the number of talkers which came back within the grace window after a drop.
+     */
+    public synchronized int getResumedSessions() {
+        return mResumedSessions;
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity. A lost outgoing
+     * connection is attempted again a few times first.
      */
     private void connectionFailedOrLost() {
+        synchronized (this) {
+            if (mReconnectAddress != null) {
+                if (mReconnectAttempts < Constants.MAX_RECONNECT_ATTEMPTS) {
+                    mReconnectAttempts++;
+                    Log.i(TAG, "Reconnecting to " + mReconnectAddress + ", attempt "
+                            + mReconnectAttempts);
+                    // The first attempt is immediate, the receiver keeps the session shortly
+                    connect(mReconnectAddress, true,
+                            (mReconnectAttempts - 1) * Constants.RECONNECT_DELAY_MS);
+                    return;
+                }
+                Log.w(TAG, "Could not reconnect to " + mReconnectAddress);
+                mReconnectAddress = null;
+            }
+        }
 
         // Start the service over to restart listening mode
         BluetoothLeService.this.start();
@@ -294,7 +1015,7 @@ public class BluetoothLeService extends Service {
      * like a server-side client. It runs until a connection is accepted
      * (or until cancelled).
      */
-    private class ListeningThread extends Thread {
+    private class ListeningThread implements AudioExecutor.Task {
         // The local server socket
         private final BluetoothServerSocket mmServerSocket;
 
@@ -342,12 +1063,11 @@ public class BluetoothLeService extends Service {
 
         public void run() {
             Log.d(TAG, "BEGIN mListeningThread "+this);
-            setName("ListeningThread");
 
             BluetoothSocket socket;
 
-            // Listen to the server socket if we're not connected
-            while ((mState != STATE_CONNECTED) && (mmServerSocket != null)) {
+            // Keep listening to the server socket, more talkers can join the mix
+            while ((mmServerSocket != null) && !AudioExecutor.isCancelled()) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -360,15 +1080,31 @@ public class BluetoothLeService extends Service {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothLeService.this) {
+                        if (mIncomingListener != null) {
+                            mIncomingListener.onIncomingConnection(
+                                    socket.getRemoteDevice().getAddress());
+                        }
                         switch (mState) {
-                            case STATE_LISTENING:
-                            case STATE_CONNECTING:
+                            case STATE_CONNECTED:
+                                if (canAcceptSource()) {
+                                    // Mix the new talker with the running ones.
+                                    connected(socket, false);
+                                    break;
+                                }
+                                // Already mixing as many talkers as possible.
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                    Log.e(TAG, "Could not close unwanted socket", e);
+                                }
+                                break;
+                            case STATE_LISTENING:
+                            case STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
                                 connected(socket, false);
                                 break;
                             case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
+                                // Not ready. Terminate new socket.
                                 try {
                                     socket.close();
                                 } catch (IOException e) {
@@ -400,14 +1136,16 @@ public class BluetoothLeService extends Service {
      * with a device. It runs straight through; the connection either
      * succeeds or fails.
      */
-    private class ConnectingThread extends Thread {
+    private class ConnectingThread implements AudioExecutor.Task {
         private final BluetoothSocket mmSocket;
         private final BluetoothDevice mmDevice;
         private final boolean mmSendToSocket;
+        private final long mmDelayMs;
 
-        public ConnectingThread(BluetoothDevice device, boolean sendToSocket) {
+        public ConnectingThread(BluetoothDevice device, boolean sendToSocket, long delayMs) {
             mmDevice = device;
             mmSendToSocket = sendToSocket;
+            mmDelayMs = delayMs;
 
             BluetoothSocket tmp;
 
@@ -444,7 +1182,15 @@ public class BluetoothLeService extends Service {
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectingThread");
-            setName("ConnectingThread");
+
+            // Give a peer which just dropped the link time to come back
+            if (mmDelayMs > 0) {
+                try {
+                    Thread.sleep(mmDelayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
 
             // Always cancel discovery because it will slow down a connection
             mBluetoothAdapter.cancelDiscovery();
@@ -461,7 +1207,9 @@ public class BluetoothLeService extends Service {
                 } catch (IOException e2) {
                     Log.e(TAG, "unable to close() during connection failure", e2);
                 }
-                connectionFailedOrLost();
+                if (!AudioExecutor.isCancelled()) {
+                    connectionFailedOrLost();
+                }
                 return;
             }
 
@@ -484,48 +1232,181 @@ public class BluetoothLeService extends Service {
     }
 
 
+    /**
+     * This thread runs the handshake opening a connection, see {@link FormatNegotiator},
+     * then starts the session with the format agreed on.
+     */
+    private class HandshakeThread implements AudioExecutor.Task {
+        private final BluetoothSocket mmSocket;
+        private final StreamProtocol.Writer mmWriter;
+        private final boolean mmSendToSocket;
+
+        public HandshakeThread(BluetoothSocket socket, StreamProtocol.Writer writer,
+                               boolean sendToSocket) {
+            mmSocket = socket;
+            mmWriter = writer;
+            mmSendToSocket = sendToSocket;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mHandshakeThread");
+
+            FormatNegotiator.Format format;
+            try {
+                StreamProtocol.Reader reader = new StreamProtocol.Reader(mmSocket.getInputStream());
+                int mtu = getLinkMtu(mmSocket);
+
+                if (mmSendToSocket) {
+                    AudioProfile profile = getAudioProfile();
+                    format = FormatNegotiator.negotiateAsSender(reader, mmWriter,
+                            FormatNegotiator.Capabilities.local(true, mtu, null), profile);
+                } else {
+                    // Talkers joining a session must match the format of the mixer
+                    AudioProfile session;
+                    synchronized (BluetoothLeService.this) {
+                        session = (mAudioRxThreads.isEmpty() && mParkedRxThreads.isEmpty())
+                                ? null : mSessionProfile;
+                    }
+                    format = FormatNegotiator.negotiateAsReceiver(reader, mmWriter,
+                            FormatNegotiator.Capabilities.local(false, mtu, session));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Handshake failed", e);
+                try {
+                    mmSocket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "unable to close() socket after handshake failure", e2);
+                }
+                if (mmSendToSocket && !AudioExecutor.isCancelled()) {
+                    connectionFailedOrLost();
+                }
+                return;
+            }
+            if (AudioExecutor.isCancelled()) {
+                return;
+            }
+
+            Log.i(TAG, "Stream format: " + format);
+            startSession(mmSocket, mmWriter, mmSendToSocket, format);
+        }
+
+        public void cancel() {
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of handshake socket failed", e);
+            }
+        }
+    }
+
+
+
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class AudioTxThread extends Thread {
+    private class AudioTxThread implements AudioExecutor.Task {
         private final BluetoothSocket mmSocket;
-        private OutputStream mmOutStream;
+        private StreamProtocol.Writer mmWriter;
+        private final LinkMonitor.Link mmLink;
+        private final long mmSessionToken;
+        private final Packetizer mmPacketizer;
+        private final BufferTuner mmBufferTuner;
+        private final AudioProfile mmProfile;
+
+        // Audio is coded frame by frame on the link, at the rate the link carries
+        private final BitrateController mmBitrateController;
+        private BitrateController.Rung mmRung;
+        private AudioCodec mmCodec;
+        private final byte[] mmReducedFrame;
+        private final byte[] mmEncodedFrame;
+        // Files are streamed from frames coded once in the stream format, only coded again
+        // when the link carries a lower rung
+        private AudioCodec mmFileCodec;
+        private ByteBuffer mmFilePcm;
+        private volatile int mmSeekFrame = -1;
+
+        // Captured frames wait for the link in a bounded queue, sent by their own thread.
+        // They are pooled buffers, captured in place and coded from where they were captured.
+        private final FramePool mmFramePool;
+        private final int mmFrameSize;
+        private final FrameQueue mmQueue;
+        private final AudioExecutor.Task mmSendTask;
+        // Timing of the capture and of the coding of each frame
+        private final AudioExecutor.Stage mmCaptureStage;
+        private final AudioExecutor.Stage mmSendStage;
+        private long mmDroppedFrames;
+        private volatile boolean mmRunning = true;
 
         protected int minRecordBuffSizeInBytes;
         protected AudioRecord audioRecord;
-        protected byte[] recordingByteArray;
+
+        // Presentation time of the stream start, and amount of audio stamped since
+        private long mmStreamStartUs;
+        private long mmBytesStamped;
+        private final int mmBytesPerSecond;
 
 
-        public AudioTxThread(BluetoothSocket socket) {
-            Log.d(TAG, "create AudioTxThread");
+        public AudioTxThread(BluetoothSocket socket, StreamProtocol.Writer writer,
+                             LinkMonitor.Link link, long sessionToken, BufferTuner bufferTuner,
+                             AudioProfile profile, int mtu) {
+            Log.d(TAG, "create AudioTxThread with profile " + profile);
             mmSocket = socket;
-            OutputStream tmpOut = null;
+            mmWriter = writer;
+            mmLink = link;
+            mmSessionToken = sessionToken;
+            mmBufferTuner = bufferTuner;
+            mmProfile = profile;
+
+            mmBytesPerSecond = profile.getBytesPerSecond();
+            mmBitrateController = new BitrateController(profile);
+            mmRung = mmBitrateController.getRung();
+            mmCodec = profile.createCodec();
+            mmReducedFrame = new byte[profile.getFrameSize()];
+            // Lower rungs never code to more than the negotiated format
+            mmEncodedFrame = new byte[mmCodec.getEncodedFrameSize()];
+
+            long frameUs = profile.getFrameDurationMs() * 1000L;
+            long maxAgeUs = profile.getSendQueueMs() * 1000L;
+            mmQueue = new FrameQueue(frameUs, maxAgeUs);
+            // Room for a full queue, the frame being captured and the one being sent
+            mmFrameSize = profile.getFrameSize();
+            mmFramePool = new FramePool(FrameQueue.getCapacity(frameUs, maxAgeUs) + 2,
+                    mmFrameSize);
+            mmSendTask = new AudioExecutor.Task() {
+                @Override
+                public void run() {
+                    send_from_queue();
+                }
 
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-                mmOutStream = null;
-                return;
-            }
-            mmOutStream = tmpOut;
+                @Override
+                public void cancel() {
+                    mmQueue.clear();
+                }
+            };
+            mmCaptureStage = mAudioExecutor.getStage("Capture", frameUs, frameUs);
+            mmSendStage = mAudioExecutor.getStage("Send", frameUs, 0);
+
+            // Audio goes out in packets filling the link MTU, whatever the capture size
+            mmPacketizer = new Packetizer(writer, mtu, profile.getEncodedBytesPerSecond(),
+                    profile.getFecGroupSize());
+            mmPacketizer.setMaxDelayMs(Constants.PACKET_MAX_DELAY_MS);
+            Log.d(TAG, "Link MTU " + mtu + " bytes, "
+                    + Packetizer.getPayloadSize(mtu, profile.getFecGroupSize())
+                    + " bytes of audio per packet");
 
             // Get minimum buffer size returned for the format
-            minRecordBuffSizeInBytes = AudioRecord.getMinBufferSize(Constants.SAMPLE_RATE,
-                    Constants.CHANNEL_IN_CONFIG, Constants.AUDIO_FORMAT);
+            minRecordBuffSizeInBytes = AudioRecord.getMinBufferSize(profile.getSampleRate(),
+                    profile.getChannelInConfig(), profile.getEncoding());
 
-            // Allocate the byte array to read the audio data
-            recordingByteArray = new byte[minRecordBuffSizeInBytes];
-
-            if (Constants.AUDIO_FROM_MIC) {
+            if (profile.isFromMic()) {
                 Log.d(TAG, "Writing from microphone selected");
 
-                // Instantiate the Recorder
-                audioRecord = new AudioRecord(Constants.AUDIO_SOURCE, Constants.SAMPLE_RATE,
-                        Constants.CHANNEL_IN_CONFIG, Constants.AUDIO_FORMAT,
-                        4 * minRecordBuffSizeInBytes);
+                // Instantiate the Recorder, with room for the tuned number of reads
+                int periods = BufferTuner.getPeriods(bufferTuner.getLevel());
+                audioRecord = new AudioRecord(Constants.AUDIO_SOURCE, profile.getSampleRate(),
+                        profile.getChannelInConfig(), profile.getEncoding(),
+                        periods * minRecordBuffSizeInBytes);
                 Log.d(TAG, "microphone reader / AudioRecord initialized");
 
             }
@@ -533,32 +1414,85 @@ public class BluetoothLeService extends Service {
 
         public void run() {
             Log.i(TAG, "BEGIN mAudioTxThread");
+            // Tell the receiver which session the audio belongs to, and where it starts
+            try {
+                mmWriter.writeSession(mmSessionToken, ClockSync.now());
+            } catch (IOException e) {
+                Log.e(TAG, "Session: issue with sending the token");
+            }
+            mAudioExecutor.execute("AudioSend", AudioExecutor.PRIORITY_AUDIO, mmSendTask);
             // Input are exclusive. Either from MIC or from file
-            if (Constants.AUDIO_FROM_MIC) {
+            if (mmProfile.isFromMic()) {
                 write_from_mic();
             } else {
                 write_from_file();
             }
+            // Let the sender drain what is queued
+            mmQueue.close();
+            mAudioExecutor.join(mmSendTask, STOP_TIMEOUT_MS);
         }
 
         /**
          * Write to the connected OutStream.
          */
         public void write_from_mic() {
-            int byteRead = 0;
-            // read from the file till EOF
-            try {
-                audioRecord.startRecording();
-                while (true) {
-                    Log.i(TAG, "Prepare to read from the microphone");
-                    while ((byteRead = audioRecord.read(recordingByteArray, 0, minRecordBuffSizeInBytes)) > 0) {
-                        mmOutStream.write(recordingByteArray);
-                        Log.i(TAG, "read from microphone " + byteRead + " bytes and write them to HCI.");
-                    }
+            audioRecord.startRecording();
+            while (mmRunning) {
+                FramePool.Frame frame = mmFramePool.acquire();
+                if (frame == null) {
+                    // The pool holds more frames than the queue, this is a leak
+                    Log.e(TAG, "TLG --------- No frame to capture into -----------");
+                    break;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "TLG --------- Mic cannot read -----------");
+                mMicReadProbe.begin();
+                int byteRead = read_frame(frame);
+                mMicReadProbe.end(0, Math.max(byteRead, 0));
+                if (byteRead < 0) {
+                    // The recorder is gone, reading again fails the same way
+                    Log.e(TAG, "TLG --------- Microphone read error: " + byteRead + " -----------");
+                    frame.release();
+                    break;
+                }
+                if (byteRead < mmFrameSize) {
+                    // Only whole frames go out, never what a short read left behind
+                    Log.e(TAG, "TLG --------- Microphone read issue: " + byteRead + " -----------");
+                    frame.release();
+                    continue;
+                }
+                mmCaptureStage.begin();
+                frame.setLength(byteRead);
+                frame.setPtsUs(nextPresentationTime(byteRead));
+                mmQueue.put(frame);
+                logFrame("read from microphone " + byteRead + " bytes and queue them.");
+                check_queue_drops();
+                mmCaptureStage.end(byteRead, byteRead);
             }
+            audioRecord.stop();
+            audioRecord.release();
+        }
+
+        /**
+         * Read a whole frame from the microphone, straight into the frame buffer.
+         *
+         * @return The number of bytes read, or the error of the recorder
+         */
+        private int read_frame(FramePool.Frame frame) {
+            ByteBuffer buffer = frame.getBuffer();
+            int filled = 0;
+            while (mmRunning && (filled < mmFrameSize)) {
+                // The recorder writes at the start of the buffer it is given
+                ByteBuffer target = buffer;
+                if (filled > 0) {
+                    buffer.position(filled);
+                    target = buffer.slice();
+                }
+                int count = audioRecord.read(target, mmFrameSize - filled);
+                if (count <= 0) {
+                    return (filled > 0) ? filled : count;
+                }
+                filled += count;
+            }
+            return filled;
         }
 
         /**
@@ -568,46 +1502,349 @@ public class BluetoothLeService extends Service {
 
             // Open the file
             File fileToPlay;
-            BufferedInputStream bufInStr;
+            FileInputStream inStr;
 
             final File sdcard = Environment.getExternalStorageDirectory();
             fileToPlay = new File(sdcard.getAbsolutePath() + Constants.FOLDER + Constants.FILE_INPUT);
+
+            PlaylistSource playlist = null;
+            synchronized (BluetoothLeService.this) {
+                if (mPlaylist != null) {
+                    playlist = new PlaylistSource(mPlaylist, mmProfile,
+                            Constants.PLAYLIST_READ_AHEAD_MS, mPlaylistLoop, mPlaylistShuffle,
+                            mRandom.nextLong());
+                }
+            }
+            if (playlist != null) {
+                write_from_playlist(playlist);
+                return;
+            }
+
+            // Stream the frames coded ahead of time, once they are
+            EncodedFileCache.Reader reader = null;
             try {
-                bufInStr = new BufferedInputStream(new FileInputStream(fileToPlay));
+                reader = EncodedFileCache.openCached(fileToPlay, mmProfile);
+            } catch (IOException e) {
+                Log.e(TAG, "TLG --------- File cache cannot be opened -----------", e);
+            }
+            if (reader != null) {
+                write_from_cache(reader);
+                return;
+            }
+            buildFileCache(fileToPlay, mmProfile);
+
+            try {
+                inStr = new FileInputStream(fileToPlay);
             } catch (FileNotFoundException e) {
                 Log.e(TAG, "TLG --------- File cannot be opened -----------");
                 return;
             }
+            FileChannel channel = inStr.getChannel();
+
+            // read from the file till EOF, a frame at a time
             try {
-                Log.d(TAG, "TLG --------- File Opened: available " + bufInStr.available() + "-----------");
+                Log.d(TAG, "TLG --------- File Opened: available " + channel.size() + "-----------");
+                // Skip the WAV header, if any
+                channel.position(EncodedFileCache.WavInfo.read(fileToPlay).getDataOffset());
+                boolean endOfFile = false;
+                while (mmRunning && !endOfFile) {
+                    FramePool.Frame frame = mmFramePool.acquire();
+                    if (frame == null) {
+                        Log.e(TAG, "TLG --------- No frame to read into -----------");
+                        break;
+                    }
+                    ByteBuffer buffer = frame.getBuffer();
+                    while (buffer.hasRemaining() && !endOfFile) {
+                        endOfFile = channel.read(buffer) < 0;
+                    }
+                    int byteRead = buffer.position();
+                    if (byteRead == 0) {
+                        frame.release();
+                        break;
+                    }
+                    // The tail of the file is padded with silence to a whole frame
+                    for (int i = byteRead; i < mmFrameSize; i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    frame.setLength(mmFrameSize);
+                    frame.setPtsUs(nextPresentationTime(mmFrameSize));
+                    mmQueue.put(frame);
+                    logFrame("TLG --------- Written " + byteRead + " bytes and "
+                            + (channel.size() - channel.position()) + " bytes remaining --------");
+                    Thread.sleep(mmProfile.getFrameDurationMs());
+                }
             } catch (IOException e) {
-                Log.e(TAG, "TLG --------- File read issue with available() -----------");
+                Log.e(TAG, "TLG --------- File cannot read -----------");
+            } catch (InterruptedException e) {
+                Log.e(TAG, "TLG --------- Insomnia issue -----------");
+            } finally {
+                try {
+                    inStr.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "TLG --------- File cannot be closed -----------");
+                }
             }
+        }
 
-            // read from the file till EOF
+        /**
+         * Write the coded frames of the file cache, a frame at a time. The frames are queued
+         * as they are read, nothing is coded here.
+         */
+        private void write_from_cache(EncodedFileCache.Reader reader) {
+            Log.d(TAG, "TLG --------- Streaming " + reader.getFrameCount()
+                    + " cached frames -----------");
             try {
-                while (!(bufInStr.read(recordingByteArray, 0, minRecordBuffSizeInBytes) < 0))
-                {
-                    mmOutStream.write(recordingByteArray);
-                    Log.d(TAG, "TLG --------- Written " + minRecordBuffSizeInBytes + " bytes and "+ bufInStr.available() + " bytes remaining --------");
-                    int channelNb = (Constants.CHANNEL_IN_CONFIG == AudioFormat.CHANNEL_IN_STEREO? 2 : 1);
-                    int bytePerMSec = (Constants.SAMPLE_RATE/1000) * 2 * channelNb;
-                    int MsPerFrame = minRecordBuffSizeInBytes/bytePerMSec;
-                    Log.d(TAG, "Sleeping now " + MsPerFrame + "ms.");
-                    sleep(MsPerFrame, 0);
+                while (mmRunning) {
+                    int seekFrame = mmSeekFrame;
+                    if (seekFrame >= 0) {
+                        mmSeekFrame = -1;
+                        reader.seek(seekFrame);
+                        Log.d(TAG, "TLG --------- Seek to frame " + reader.getPosition());
+                    }
+                    FramePool.Frame frame = mmFramePool.acquire();
+                    if (frame == null) {
+                        Log.e(TAG, "TLG --------- No frame to read into -----------");
+                        break;
+                    }
+                    int length = reader.read(frame.getBuffer());
+                    if (length < 0) {
+                        frame.release();
+                        break;
+                    }
+                    frame.setLength(length);
+                    frame.setEncoded(true);
+                    frame.setPtsUs(nextPresentationTime(mmFrameSize));
+                    mmQueue.put(frame);
+                    Thread.sleep(mmProfile.getFrameDurationMs());
                 }
             } catch (IOException e) {
                 Log.e(TAG, "TLG --------- File cannot read -----------");
             } catch (InterruptedException e) {
                 Log.e(TAG, "TLG --------- Insomnia issue -----------");
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "TLG --------- File cannot be closed -----------");
+                }
             }
         }
 
+        /**
+         * Write the files of a playlist, a frame at a time. The files are read ahead on their
+         * own thread, a frame is never late for the disk.
+         */
+        private void write_from_playlist(PlaylistSource playlist) {
+            mAudioExecutor.execute("ReadAhead", AudioExecutor.PRIORITY_DEFAULT, playlist);
+            try {
+                if (!playlist.awaitReady(STOP_TIMEOUT_MS)) {
+                    Log.e(TAG, "TLG --------- Playlist has nothing to play -----------");
+                    return;
+                }
+                while (mmRunning) {
+                    FramePool.Frame frame = mmFramePool.acquire();
+                    if (frame == null) {
+                        Log.e(TAG, "TLG --------- No frame to read into -----------");
+                        break;
+                    }
+                    if (playlist.read(frame.getBuffer()) < 0) {
+                        frame.release();
+                        break;
+                    }
+                    frame.setLength(mmFrameSize);
+                    frame.setPtsUs(nextPresentationTime(mmFrameSize));
+                    mmQueue.put(frame);
+                    Thread.sleep(mmProfile.getFrameDurationMs());
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "TLG --------- Insomnia issue -----------");
+            } finally {
+                mAudioExecutor.cancel(playlist);
+                Log.d(TAG, playlist.toString());
+            }
+        }
+
+        /**
+         * Move the file stream to a frame, on the next frame read from the cache.
+         */
+        public void seek_file(int frameIndex) {
+            mmSeekFrame = Math.max(0, frameIndex);
+        }
+
+        /**
+         * Send the queued frames until the queue is closed, on the send thread. Frames which
+         * waited too long for the link are dropped by the queue, the capture never waits.
+         */
+        private void send_from_queue() {
+            StreamProtocol.Writer writer = mmWriter;
+            try {
+                FramePool.Frame frame;
+                while ((frame = mmQueue.take()) != null) {
+                    mmSendStage.begin();
+                    int encoded = 0;
+                    try {
+                        encoded = send_frame(frame);
+                    } finally {
+                        mmSendStage.end(frame.getLength(), encoded);
+                        frame.release();
+                    }
+                    mStageStats.addFrames(1);
+                }
+                mmPacketizer.flush();
+                Log.d(TAG, "Stream sent in " + mmPacketizer.getPacketCount() + " packets, "
+                        + (int) (100 * mmPacketizer.getOverheadRatio()) + "% overhead, "
+                        + (int) (100 * mmPacketizer.getFecOverheadRatio()) + "% parity, "
+                        + mmQueue.getDroppedFrames() + " of " + mmQueue.getQueuedFrames()
+                        + " frames dropped, control packets waited "
+                        + writer.getMaxControlWaitUs() + "us at most");
+            } catch (IOException e) {
+                Log.e(TAG, "Audio send: connection lost", e);
+                mmRunning = false;
+                mmQueue.clear();
+                if (!AudioExecutor.isCancelled()) {
+                    mmLink.reportError(LinkMonitor.CAUSE_WRITE_ERROR);
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Audio send: interrupted");
+            }
+        }
+
+        /**
+         * Code a frame to the link, at the rate the link carries.
+         *
+         * @return The size of the coded frame
+         */
+        private int send_frame(FramePool.Frame frame) throws IOException {
+            apply_rung();
+            if (frame.isEncoded()) {
+                return send_encoded_frame(frame);
+            }
+            int encoded;
+            if (mmRung.isFullFormat(mmProfile)) {
+                encoded = mmCodec.encode(frame.getBuffer(), mmEncodedFrame, 0);
+            } else {
+                mmRung.reduce(frame.getBuffer(), frame.getLength(), mmProfile.getChannelCount(),
+                        mmReducedFrame);
+                encoded = mmCodec.encode(mmReducedFrame, 0, mmEncodedFrame, 0);
+            }
+            mmPacketizer.write(frame.getPtsUs(), mmEncodedFrame, 0, encoded);
+
+            mmBitrateController.onFrameSent(mmQueue.getLastWaitUs(), mmQueue.getDroppedFrames(),
+                    ClockSync.now() / 1000);
+            return encoded;
+        }
+
+        /**
+         * Send a frame coded in the stream format as is, or decode it to code it again at the
+         * lower rung the link carries.
+         *
+         * @return The size of the coded frame
+         */
+        private int send_encoded_frame(FramePool.Frame frame) throws IOException {
+            ByteBuffer buffer = frame.getBuffer();
+            int length = frame.getLength();
+            buffer.clear();
+            buffer.get(mmEncodedFrame, 0, length);
+            int encoded = length;
+            if (!mmRung.isSessionCoding(mmProfile)) {
+                if (mmFileCodec == null) {
+                    mmFileCodec = mmProfile.createCodec();
+                    mmFilePcm = ByteBuffer.allocateDirect(mmFrameSize)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                }
+                int pcmLength = mmFileCodec.decode(mmEncodedFrame, 0, length, mmFilePcm);
+                if (mmRung.isFullFormat(mmProfile)) {
+                    // Same format, another codec
+                    encoded = mmCodec.encode(mmFilePcm, mmEncodedFrame, 0);
+                } else {
+                    mmRung.reduce(mmFilePcm, pcmLength, mmProfile.getChannelCount(),
+                            mmReducedFrame);
+                    encoded = mmCodec.encode(mmReducedFrame, 0, mmEncodedFrame, 0);
+                }
+            }
+            mmPacketizer.write(frame.getPtsUs(), mmEncodedFrame, 0, encoded);
+
+            mmBitrateController.onFrameSent(mmQueue.getLastWaitUs(), mmQueue.getDroppedFrames(),
+                    ClockSync.now() / 1000);
+            return encoded;
+        }
+
+        /**
+         * Switch to the rung picked by the bitrate controller, if it changed. The audio
+         * pending in the packetizer goes out first, then the receiver is told about the new
+         * coding in band, right before the first packet using it.
+         */
+        private void apply_rung() throws IOException {
+            BitrateController.Rung rung = mmBitrateController.getRung();
+            if (rung == mmRung) {
+                return;
+            }
+            mmPacketizer.setBytesPerSecond(rung.getEncodedBytesPerSecond(mmProfile));
+            byte[] payload = new byte[BitrateController.Rung.SIZE];
+            rung.write(payload, 0);
+            mmWriter.write(StreamProtocol.TYPE_RATE_CHANGE, payload, 0, payload.length);
+            mmCodec = rung.createCodec(mmProfile);
+            mmRung = rung;
+            Log.i(TAG, "Sending with " + rung + ", " + rung.getEncodedBytesPerSecond(mmProfile)
+                    + " B/s");
+        }
+
+        public BitrateController getBitrateController() {
+            return mmBitrateController;
+        }
+
+        public void send_volume(int gainQ15) {
+            StreamProtocol.Writer writer = mmWriter;
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.writeVolume(gainQ15);
+            } catch (IOException e) {
+                Log.e(TAG, "Volume: issue with sending the gain");
+            }
+        }
+
+        /**
+         * Report the frames the send queue dropped since the last capture read: the link
+         * stalled for longer than the queue holds and the peer ran out of audio.
+         */
+        private void check_queue_drops() {
+            long nowMs = ClockSync.now() / 1000;
+            long droppedFrames = mmQueue.getDroppedFrames();
+            if (droppedFrames > mmDroppedFrames) {
+                Log.w(TAG, "Send queue dropped " + (droppedFrames - mmDroppedFrames) + " frames");
+                mmBufferTuner.reportGlitch(nowMs);
+            } else {
+                mmBufferTuner.tick(nowMs);
+            }
+            mmDroppedFrames = droppedFrames;
+        }
+
+        /**
+         * Return the presentation time of the next buffer of the stream. Time stamps follow the
+         * sample count so they are free of capture jitter, and are re-anchored on the local
+         * clock when the audio clock drifts away from it.
+         */
+        private long nextPresentationTime(int bytes) {
+            long captureUs = ClockSync.now() - bytes * 1000000L / mmBytesPerSecond;
+            long ptsUs = mmStreamStartUs + mmBytesStamped * 1000000L / mmBytesPerSecond;
+
+            if ((mmBytesStamped == 0)
+                    || (Math.abs(ptsUs - captureUs) > Constants.PTS_REANCHOR_US)) {
+                mmStreamStartUs = captureUs - mmBytesStamped * 1000000L / mmBytesPerSecond;
+                ptsUs = captureUs;
+            }
+            mmBytesStamped += bytes;
+            return ptsUs;
+        }
 
         public void cancel() {
+            mmRunning = false;
+            mmQueue.clear();
             try {
                 mmSocket.close();
-                mmOutStream = null;
+                mmWriter = null;
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
@@ -620,139 +1857,502 @@ public class BluetoothLeService extends Service {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class AudioRxThread extends Thread {
+    private class AudioRxThread implements AudioExecutor.Task, RxDecoder.PcmListener {
         private final BluetoothSocket mmSocket;
-        private InputStream mmInStream;
-        private OutputStream mmOutStream;
+        private StreamProtocol.Reader mmReader;
+        private final LinkMonitor.Link mmLink;
+        private StreamProtocol.Writer mmWriter;
         private final boolean mmTxActive;
+        private final AudioProfile mmProfile;
+
+        // Frames are rebuilt from the packets and decoded back to PCM before playout
+        private final RxDecoder mmDecoder;
+
+        // Session of the sender, and time stamp of the last audio received, to resume it
+        private volatile long mmSessionToken;
+        private long mmLastPtsUs = Long.MIN_VALUE;
+        private volatile boolean mmParked;
+        private volatile long mmParkedUs;
 
-        private AudioManager mAudioManager;
-        private int minTrackBuffSizeInBytes;
-        private AudioTrack audioTrack;
+        // Reception quality reported to the sender
+        private long mmReportedLostUs;
+        private long mmLastFeedbackUs;
+        // Packets too short to parse, dropped
+        private long mmShortPackets;
+
+        // Offset between the sender clock and ours, only needed when receiving
+        private volatile ClockSync mmClockSync = new ClockSync();
+        private long mmNextSyncUs;
+
+        private AudioMixer mixer;
+        private AudioMixer.Source mixerSource;
         private byte[] trackByteArray;
 
-        private File fileToWrite;
-        BufferedOutputStream bufOutStr;
+        // Archive of the audio received, shared by the sessions of this talker
+        private CaptureStore mmCaptureStore;
+        // Trace of the traffic received, when recording
+        private TrafficTrace.Recorder mmRecorder;
 
-        public AudioRxThread(BluetoothSocket socket, boolean txActive) {
-            Log.d(TAG, "create AudioRxThread");
+        public AudioRxThread(BluetoothSocket socket, StreamProtocol.Writer writer,
+                             LinkMonitor.Link link, boolean txActive, AudioProfile profile) {
+            Log.d(TAG, "create AudioRxThread with profile " + profile);
             mmSocket = socket;
+            mmWriter = writer;
+            mmLink = link;
             mmTxActive = txActive;
+            mmProfile = profile;
+            mmDecoder = new RxDecoder(profile, 2, mAudioExecutor.getStage(
+                    "Decode " + socket.getRemoteDevice().getAddress(),
+                    profile.getFrameDurationMs() * 1000L, 0), this);
             InputStream tmpIn = null;
-            OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the BluetoothSocket input stream
             try {
                 tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
-                mmInStream = null;
-                mmOutStream = null;
+                mmReader = null;
                 return;
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            if (isRecordingTraffic()) {
+                final File sdcard = Environment.getExternalStorageDirectory();
+                File directory = new File(sdcard.getAbsolutePath() + Constants.FOLDER
+                        + Constants.TRACE_FOLDER);
+                File trace = new File(directory, socket.getRemoteDevice().getAddress()
+                        .replace(":", "") + "-" + System.currentTimeMillis() + ".trace");
+                try {
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Cannot create " + directory);
+                    }
+                    mmRecorder = new TrafficTrace.Recorder(tmpIn, trace, profile);
+                    tmpIn = mmRecorder;
+                    Log.i(TAG, "Recording the traffic to " + trace);
+                } catch (IOException e) {
+                    Log.e(TAG, "Trace cannot be opened", e);
+                }
+            }
 
-            // Get minimum buffer size returned for the format
-            minTrackBuffSizeInBytes = AudioTrack.getMinBufferSize(Constants.SAMPLE_RATE,
-                    Constants.CHANNEL_OUT_CONFIG, Constants.AUDIO_FORMAT);
+            mmReader = new StreamProtocol.Reader(tmpIn);
 
-            // Allocate the byte array to write the audio data to the track
-            trackByteArray = new byte[minTrackBuffSizeInBytes];
+            // Packets are received in place, in the reader buffer
+            trackByteArray = mmReader.getBuffer();
 
-            if (Constants.AUDIO_TO_SPEAKER) {
+            if (profile.isToSpeaker() && mAudioMixer != null) {
 
-                // Instantiate the native player
-                audioTrack = new AudioTrack(Constants.AUDIO_STREAM, Constants.SAMPLE_RATE,
-                        Constants.CHANNEL_OUT_CONFIG, Constants.AUDIO_FORMAT, 4 * minTrackBuffSizeInBytes,
-                        AudioTrack.MODE_STREAM);
-                mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-                mAudioManager.setSpeakerphoneOn(true);
+                // Register this talker on the mixer feeding the native player
+                mixer = mAudioMixer;
+                mixerSource = mixer.addSource();
             }
 
-            if (Constants.AUDIO_TO_FILE) {
+            if (profile.isToFile()) {
 
-                // Opening the file on FileSystem
-                final File sdcard = Environment.getExternalStorageDirectory();
-                fileToWrite = new File(sdcard.getAbsolutePath() + Constants.FOLDER + Constants.FILE_OUTPUT);
-                try {
-                    bufOutStr = new BufferedOutputStream(new FileOutputStream(fileToWrite));
-                } catch (FileNotFoundException e) {
-                    Log.e(TAG, "TLG --------- File cannot be opened -----------");
-                }
+                // Archive the audio in rolling segments
+                mmCaptureStore = getCaptureStore(socket.getRemoteDevice().getAddress(),
+                        profile);
             }
         }
 
+        public ClockSync getClockSync() {
+            return mmClockSync;
+        }
+
+        public LinkMonitor.Link getLink() {
+            return mmLink;
+        }
+
+        public long getSessionToken() {
+            return mmSessionToken;
+        }
+
+        /**
+         * Keep the place of this talker in the mix after its thread ends.
+         *
+         * @return False if the talker cannot be resumed
+         */
+        public boolean park() {
+            if ((mmSessionToken == 0) || (mixerSource == null)) {
+                return false;
+            }
+            mmParkedUs = ClockSync.now();
+            mmParked = true;
+            return true;
+        }
+
+        /**
+         * Return the local time the talker was parked.
+         */
+        public long getParkedUs() {
+            return mmParkedUs;
+        }
+
+        /**
+         * Drop the place of a parked talker in the mix.
+         */
+        public void leave_mix() {
+            if (mixerSource != null) {
+                mixer.removeSource(mixerSource);
+            }
+        }
+
+        /**
+         * Return true if this thread receives on the connection the session sends to.
+         */
+        public boolean isTxActive() {
+            return mmTxActive;
+        }
+
         public void run() {
-            int bytesRead = 0;
+            int type;
             Log.i(TAG, "BEGIN mAudioRxThread");
 
-            if (Constants.AUDIO_TO_SPEAKER)
-                audioTrack.play();
-
-            while (mmInStream != null) {
+            while ((mmReader != null) && !AudioExecutor.isCancelled()) {
                 try {
                     // sync reading with reloading of input stream
                     synchronized (this) {
-                        bytesRead = mmInStream.read(trackByteArray, 0, minTrackBuffSizeInBytes);
-                        Log.i(TAG, "read from HCI " + bytesRead + " bytes...");
+                        mSocketReadProbe.begin();
+                        type = mmReader.read();
+                        mSocketReadProbe.end(StreamProtocol.HEADER_SIZE
+                                + mmReader.getPayloadLength(), 0);
                     }
                 } catch (final IOException ioe) {
-                    ioe.printStackTrace();
+                    if ((mmReader != null) && !AudioExecutor.isCancelled()) {
+                        Log.e(TAG, "Audio receive: connection lost", ioe);
+                        mmLink.reportError(LinkMonitor.CAUSE_READ_ERROR);
+                    }
+                    break;
+                }
+                long receiveTimeUs = ClockSync.now();
+                mmLink.onReceive(receiveTimeUs);
+                int offset = mmReader.getPayloadOffset();
+                int length = mmReader.getPayloadLength();
+                if (length < StreamProtocol.getMinPayloadLength(type)) {
+                    if (mmShortPackets++ == 0) {
+                        Log.w(TAG, "Packet of type " + type + " too short, " + length
+                                + " bytes, dropped");
+                    }
+                    continue;
+                }
+
+                switch (type) {
+                    case StreamProtocol.TYPE_AUDIO:
+                        handle_audio(offset, length);
+                        break;
+                    case StreamProtocol.TYPE_SYNC_REQUEST:
+                        send_sync_response(StreamProtocol.getLong(trackByteArray, offset),
+                                receiveTimeUs);
+                        break;
+                    case StreamProtocol.TYPE_SYNC_RESPONSE:
+                        mmClockSync.addSample(StreamProtocol.getLong(trackByteArray, offset),
+                                StreamProtocol.getLong(trackByteArray, offset + 8),
+                                StreamProtocol.getLong(trackByteArray, offset + 16),
+                                receiveTimeUs);
+                        break;
+                    case StreamProtocol.TYPE_PROBE:
+                        send_probe_echo(offset);
+                        break;
+                    case StreamProtocol.TYPE_PROBE_ECHO:
+                        handle_probe_echo(offset);
+                        break;
+                    case StreamProtocol.TYPE_RATE_CHANGE:
+                        handle_rate_change(offset, length);
+                        break;
+                    case StreamProtocol.TYPE_FEEDBACK:
+                        handle_feedback(offset);
+                        break;
+                    case StreamProtocol.TYPE_FEC_PARITY:
+                        handle_parity(offset, length);
+                        break;
+                    case StreamProtocol.TYPE_VOLUME:
+                        if (mixerSource != null) {
+                            mixerSource.setGain(StreamProtocol.getInt(trackByteArray, offset));
+                        }
+                        break;
+                    case StreamProtocol.TYPE_HEARTBEAT:
+                        break;
+                    case StreamProtocol.TYPE_SESSION:
+                        handle_session(offset);
+                        break;
+                    default:
+                        Log.w(TAG, "Unknown packet type " + type);
+                        break;
+                }
+
+                if (!mmTxActive) {
+                    send_sync_request();
+                    send_feedback();
                 }
+            }
 
-                if (Constants.AUDIO_TO_SPEAKER) {
-                    push_to_speaker(bytesRead);
+            mLinkMonitor.removeLink(mmLink);
+            if ((mixerSource != null) && !mmParked) {
+                mixer.removeSource(mixerSource);
+            }
+            if (mmRecorder != null) {
+                try {
+                    mmRecorder.closeTrace();
+                    Log.i(TAG, "Traffic recorded: " + mmRecorder.getRecords() + " reads, "
+                            + mmRecorder.getBytes() + " bytes");
+                } catch (IOException e) {
+                    Log.e(TAG, "Trace cannot be closed", e);
+                }
+            }
+            if ((mmCaptureStore != null) && !mmParked) {
+                try {
+                    mmCaptureStore.close();
+                    Log.i(TAG, mmCaptureStore.toString());
+                } catch (IOException e) {
+                    Log.e(TAG, "TLG --------- File cannot be closed -----------");
                 }
-                if ((Constants.AUDIO_LOOPBACK) && (mmTxActive == false)) {
-                    push_back_to_sender(bytesRead);
+            }
+            if (mmShortPackets > 0) {
+                Log.w(TAG, mmShortPackets + " packets too short dropped");
+            }
+            FecDecoder fecDecoder = mmDecoder.getFecDecoder();
+            if (fecDecoder.getRecoveredPackets() + fecDecoder.getLostPackets() > 0) {
+                Log.i(TAG, "FEC rebuilt " + fecDecoder.getRecoveredPackets() + " packets, "
+                        + (int) (100 * fecDecoder.getRecoveryRatio()) + "% of the losses");
+            }
+        }
+
+        private void handle_audio(int offset, int length) {
+            int bytesRead = length - StreamProtocol.AUDIO_HEADER_SIZE;
+            logFrame("read from HCI " + bytesRead + " bytes...");
+
+            if ((mmProfile.isLoopback()) && (mmTxActive == false)) {
+                push_back_to_sender(StreamProtocol.TYPE_AUDIO, offset, length);
+            }
+            mmLastPtsUs = StreamProtocol.getLong(trackByteArray, offset);
+            mmDecoder.push(mmLastPtsUs, StreamProtocol.getShort(trackByteArray, offset + 8),
+                    trackByteArray, offset + StreamProtocol.AUDIO_HEADER_SIZE, bytesRead);
+        }
+
+        /**
+         * Join the session announced by the sender. When its talker is parked, the jitter
+         * buffer, clock sync and signal state carry on from it, and the audio lost during
+         * the drop plays as a short gap. The receiver answers with the time stamp of the
+         * last audio it got, or Long.MIN_VALUE for a new session.
+         */
+        private void handle_session(int offset) {
+            long token = StreamProtocol.getLong(trackByteArray, offset);
+            long ptsUs = StreamProtocol.getLong(trackByteArray, offset + 8);
+            mmSessionToken = token;
+
+            if (mmTxActive) {
+                if (ptsUs != Long.MIN_VALUE) {
+                    Log.i(TAG, "Session resumed by the receiver, "
+                            + (ClockSync.now() - ptsUs) / 1000 + "ms of audio missed");
                 }
-                if (Constants.AUDIO_TO_FILE) {
-                    push_to_file(bytesRead);
+                return;
+            }
+
+            long lastPtsUs = Long.MIN_VALUE;
+            AudioRxThread parked = resumeSession(this, token);
+            if (parked != null) {
+                if ((mixerSource != null) && (parked.mixerSource != null)) {
+                    mixer.removeSource(mixerSource);
+                    mixerSource = parked.mixerSource;
                 }
+                mmClockSync = parked.mmClockSync;
+                mmDecoder.resumeFrom(parked.mmDecoder);
+                lastPtsUs = parked.mmLastPtsUs;
+                Log.i(TAG, "Session resumed, " + (ptsUs - lastPtsUs) / 1000 + "ms of audio lost");
+            }
+            try {
+                mmWriter.writeSession(token, lastPtsUs);
+            } catch (IOException e) {
+                Log.e(TAG, "Session: issue with answering the token");
             }
         }
 
-        public void push_to_speaker(int bytesToWrite) {
-            if (bytesToWrite > 0) {
-                audioTrack.write(trackByteArray, 0, bytesToWrite);
-                Log.i(TAG, "...and write " + bytesToWrite + " bytes to speaker.");
+        private void handle_parity(int offset, int length) {
+            if ((mmProfile.isLoopback()) && (mmTxActive == false)) {
+                push_back_to_sender(StreamProtocol.TYPE_FEC_PARITY, offset, length);
             }
+            mmDecoder.pushParity(trackByteArray, offset, length);
         }
 
-        public void push_to_file(int bytesToWrite) {
+        /**
+         * Switch to the coding announced by the sender for the audio which follows.
+         */
+        private void handle_rate_change(int offset, int length) {
+            if ((mmProfile.isLoopback()) && (mmTxActive == false)) {
+                push_back_to_sender(StreamProtocol.TYPE_RATE_CHANGE, offset, length);
+            }
+            BitrateController.Rung rung = BitrateController.Rung.read(trackByteArray, offset);
+            if (mmDecoder.changeRate(rung)) {
+                Log.i(TAG, "Receiving with " + rung);
+            } else {
+                Log.w(TAG, "Rate change to " + rung + " off the ladder of the session, ignored");
+            }
+        }
+
+        @Override
+        public void onPcm(FramePool.Frame pcm) {
+            if (mmProfile.isToSpeaker()) {
+                push_to_speaker(pcm);
+            }
+            if (mmProfile.isToFile()) {
+                push_to_file(pcm);
+            }
+            mStageStats.addFrames(1);
+        }
+
+        public void push_to_speaker(FramePool.Frame pcm) {
+            int bytesToWrite = pcm.getLength();
+            long ptsUs = pcm.getPtsUs();
+            if ((bytesToWrite > 0) && (mixerSource != null)) {
+                // Schedule the playout on the sender clock once synchronized with it
+                long timeUs = AudioMixer.NO_TIMESTAMP;
+                if (!mmTxActive && mmClockSync.isSynchronized()) {
+                    timeUs = mmClockSync.toLocalTime(ptsUs) + mmProfile.getPlayoutDelayMs() * 1000L;
+                }
+                mixerSource.write(pcm.getBuffer(), bytesToWrite, timeUs);
+                logFrame("...and write " + bytesToWrite + " bytes to speaker.");
+            }
+        }
+
+        public void push_to_file(FramePool.Frame pcm) {
+            int bytesToWrite = pcm.getLength();
             try {
-                // Read from the InputStream
-                if (bytesToWrite > 0) {
-                    bufOutStr.write(trackByteArray, 0, bytesToWrite);
-                    Log.i(TAG, "...and write " + bytesToWrite + " bytes to file.");
+                // Write the frame in place
+                if ((bytesToWrite > 0) && (mmCaptureStore != null)) {
+                    mmCaptureStore.write(pcm.getBuffer(), bytesToWrite, pcm.getPtsUs());
+                    logFrame("...and write " + bytesToWrite + " bytes to file.");
                 }
             } catch (IOException e) {
-                Log.e(TAG, "disconnected", e);
-                connectionFailedOrLost();
-                // Start the service over to restart listening mode
-                BluetoothLeService.this.start();
+                // The capture stops, the stream plays on
+                Log.e(TAG, "Capture stopped, cannot write to " + mmCaptureStore, e);
+                try {
+                    mmCaptureStore.close();
+                } catch (IOException closeError) {
+                    Log.e(TAG, "Capture cannot be closed", closeError);
+                }
+                mmCaptureStore = null;
             }
         }
 
-        public void push_back_to_sender(int bytesToWrite) {
+        public void push_back_to_sender(int type, int offset, int length) {
             try {
-                if (bytesToWrite > 0) {
-                    mmOutStream.write(trackByteArray, 0, bytesToWrite);
-                    Log.i(TAG, "...and write " + bytesToWrite + " bytes back to sender.");
+                if (length > 0) {
+                    mmWriter.write(type, trackByteArray, offset, length);
+                    logFrame("...and write " + length + " bytes back to sender.");
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Loopback mode: issue with looping back streams");
             }
         }
 
+        /**
+         * Echo a probe packet back to the sender, next to the audio loopback.
+         */
+        private void send_probe_echo(int offset) {
+            try {
+                LinkProbe.echo(mmWriter, trackByteArray, offset);
+            } catch (IOException e) {
+                Log.e(TAG, "Link probe: issue with echoing the probe");
+            }
+        }
+
+        /**
+         * Hand a probe echo over to the probe running on this connection.
+         */
+        private void handle_probe_echo(int offset) {
+            LinkProbeThread probeThread;
+            synchronized (BluetoothLeService.this) {
+                probeThread = mLinkProbeThread;
+            }
+            if (probeThread != null) {
+                probeThread.getProbe().onEcho(trackByteArray, offset);
+            }
+        }
+
+        /**
+         * Hand the reception report of the receiver over to the bitrate controller of the
+         * stream sent on this connection.
+         */
+        private void handle_feedback(int offset) {
+            AudioTxThread txThread;
+            synchronized (BluetoothLeService.this) {
+                txThread = mAudioTxThread;
+            }
+            if (txThread != null) {
+                int lossPermille = ((trackByteArray[offset] & 0xff) << 8)
+                        | (trackByteArray[offset + 1] & 0xff);
+                int depthMs = (short) (((trackByteArray[offset + 2] & 0xff) << 8)
+                        | (trackByteArray[offset + 3] & 0xff));
+                int underruns = StreamProtocol.getInt(trackByteArray, offset + 4);
+                txThread.getBitrateController().onFeedback(lossPermille, depthMs, underruns,
+                        ClockSync.now() / 1000);
+            }
+        }
+
+        /**
+         * Report the reception quality to the sender when due: the audio lost since the last
+         * report, and the state of the playout buffer of this talker.
+         */
+        private void send_feedback() {
+            long now = ClockSync.now();
+            if (mmLastFeedbackUs == 0) {
+                mmLastFeedbackUs = now;
+                return;
+            }
+            if (now - mmLastFeedbackUs < Constants.FEEDBACK_INTERVAL_MS * 1000L) {
+                return;
+            }
+            long lostUs = mmDecoder.getLostUs();
+            int lossPermille = (int) Math.min(1000,
+                    (lostUs - mmReportedLostUs) * 1000 / (now - mmLastFeedbackUs));
+            mmReportedLostUs = lostUs;
+            mmLastFeedbackUs = now;
+
+            int depthMs = -1;
+            int underruns = 0;
+            if (mixerSource != null) {
+                depthMs = (int) Math.min(Short.MAX_VALUE, mixerSource.getBufferedUs() / 1000);
+                underruns = mixerSource.getUnderruns();
+            }
+            try {
+                mmWriter.writeFeedback(lossPermille, depthMs, underruns);
+            } catch (IOException e) {
+                Log.e(TAG, "Bitrate feedback: issue with sending the report");
+            }
+        }
+
+        /**
+         * Answer the clock sync request of a receiver.
+         */
+        private void send_sync_response(long requestTimeUs, long receiveTimeUs) {
+            try {
+                mmWriter.writeSyncResponse(requestTimeUs, receiveTimeUs);
+            } catch (IOException e) {
+                Log.e(TAG, "Clock sync: issue with answering the request");
+            }
+        }
+
+        /**
+         * Request a clock sync exchange with the sender when due.
+         */
+        private void send_sync_request() {
+            long now = ClockSync.now();
+            if (now < mmNextSyncUs) {
+                return;
+            }
+            boolean settled = mmClockSync.getSampleCount() >= 8;
+            mmNextSyncUs = now + 1000L * (settled ? Constants.SYNC_INTERVAL_MS
+                    : Constants.SYNC_FAST_INTERVAL_MS);
+            try {
+                mmWriter.writeSyncRequest();
+            } catch (IOException e) {
+                Log.e(TAG, "Clock sync: issue with sending the request");
+            }
+        }
+
         public void cancel() {
             try {
                 mmSocket.close();
-                mmInStream = null;
-                mmOutStream = null;
+                mmReader = null;
+                mmWriter = null;
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
@@ -761,6 +2361,192 @@ public class BluetoothLeService extends Service {
 
 
 
+    /**
+     * This thread probes the link of an outgoing connection with synthetic traffic, see
+     * {@link LinkProbe}, then drops the connection and goes back to listening.
+     */
+    private class LinkProbeThread implements AudioExecutor.Task {
+        private final BluetoothSocket mmSocket;
+        private final LinkProbe mmProbe;
+
+        public LinkProbeThread(BluetoothSocket socket, StreamProtocol.Writer writer, int mtu) {
+            Log.d(TAG, "create LinkProbeThread");
+            mmSocket = socket;
+            mmProbe = new LinkProbe(writer, mtu);
+        }
+
+        public LinkProbe getProbe() {
+            return mmProbe;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mLinkProbeThread");
+
+            LinkProbe.Result result;
+            try {
+                result = mmProbe.run();
+            } catch (IOException e) {
+                Log.e(TAG, "Link probe: connection lost", e);
+                return;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Link probe: interrupted");
+                return;
+            }
+
+            String address = mmSocket.getRemoteDevice().getAddress();
+            Log.i(TAG, "Link to " + address + ": knee at " + result.getKneeRate() + " B/s");
+            mKnownDeviceCache.recordProbe(address, result);
+
+            synchronized (BluetoothLeService.this) {
+                mLastProbeResult = result;
+                if (mLinkProbeThread != this) {
+                    // Cancelled meanwhile
+                    return;
+                }
+                mLinkProbeThread = null;
+            }
+            cancel();
+            // Start the service over to restart listening mode
+            BluetoothLeService.this.start();
+        }
+
+        public void cancel() {
+            mmProbe.cancel();
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
+
+
+
+    /**
+     * This thread owns the native player. It plays the mix of all the connected talkers,
+     * period after period, and plays silence when nobody talks.
+     */
+    private class AudioPlayoutThread implements AudioExecutor.Task {
+        private final AudioMixer mmMixer;
+        private final BufferTuner mmBufferTuner;
+        private final int mmPeriodSize;
+        private final int mmChannelNb;
+        private final int mmBufferFrames;
+        private final int mmSampleRate;
+        private final int mmPlayoutChannel;
+        private int mmMixerUnderruns;
+        private final short[] mmMixBuffer;
+        private final AudioTrack mmAudioTrack;
+        private final AudioTimestamp mmTimestamp = new AudioTimestamp();
+        private long mmFramesWritten;
+        private volatile boolean mmRunning = true;
+        // Timing of the mixing of each period
+        private final AudioExecutor.Stage mmMixStage;
+
+        public AudioPlayoutThread(AudioMixer mixer, int periodSize, BufferTuner bufferTuner,
+                                  AudioProfile profile) {
+            Log.d(TAG, "create AudioPlayoutThread");
+            mmMixer = mixer;
+            mmBufferTuner = bufferTuner;
+            mmPeriodSize = periodSize;
+            mmChannelNb = profile.getChannelCount();
+            mmSampleRate = profile.getSampleRate();
+            mmPlayoutChannel = profile.getPlayoutChannel();
+            mmMixBuffer = new short[periodSize];
+            long periodUs = (periodSize / mmChannelNb) * 1000000L / mmSampleRate;
+            mmMixStage = mAudioExecutor.getStage("Mix", periodUs, periodUs);
+
+            // Instantiate the native player, with room for the tuned number of periods
+            int periods = BufferTuner.getPeriods(bufferTuner.getLevel());
+            mmBufferFrames = periods * periodSize / mmChannelNb;
+            mmAudioTrack = new AudioTrack(Constants.AUDIO_STREAM, mmSampleRate,
+                    profile.getChannelOutConfig(), profile.getEncoding(), periods * 2 * periodSize,
+                    AudioTrack.MODE_STREAM);
+            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+            audioManager.setSpeakerphoneOn(true);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mAudioPlayoutThread");
+
+            mmAudioTrack.play();
+            while (mmRunning) {
+                mmMixStage.begin();
+                mmMixer.mix(mmMixBuffer, mmPeriodSize, playoutTimeOf(mmFramesWritten));
+                select_channel();
+                check_underruns();
+                mmMixStage.end(0, 2 * mmPeriodSize);
+                // Blocking write, paces the loop on the playback rate
+                mPlaybackProbe.begin();
+                mmAudioTrack.write(mmMixBuffer, 0, mmPeriodSize);
+                mPlaybackProbe.end(2 * mmPeriodSize, 0);
+                mmFramesWritten += mmPeriodSize / mmChannelNb;
+            }
+            mmAudioTrack.stop();
+            mmAudioTrack.release();
+            Log.i(TAG, "END mAudioPlayoutThread");
+        }
+
+        /**
+         * Return the local time at which the given frame will reach the speaker, from the
+         * timestamp of the player when available or from its playback position otherwise.
+         */
+        private long playoutTimeOf(long frame) {
+            long now = ClockSync.now();
+            if (mmAudioTrack.getTimestamp(mmTimestamp)) {
+                return mmTimestamp.nanoTime / 1000
+                        + (frame - mmTimestamp.framePosition) * 1000000L / mmSampleRate;
+            }
+            long played = mmAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            return now + (frame - played) * 1000000L / mmSampleRate;
+        }
+
+        /**
+         * Report the underruns of the mixer sources, and of the player itself when it played
+         * everything written so far.
+         */
+        private void check_underruns() {
+            long nowMs = ClockSync.now() / 1000;
+            int mixerUnderruns = mmMixer.getUnderrunCount();
+            long played = mmAudioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            boolean playerStarved = (mmFramesWritten > mmBufferFrames) && (played >= mmFramesWritten);
+
+            if ((mixerUnderruns > mmMixerUnderruns) || playerStarved) {
+                Log.w(TAG, "Playout underrun");
+                mmBufferTuner.reportGlitch(nowMs);
+            } else {
+                mmBufferTuner.tick(nowMs);
+            }
+            mmMixerUnderruns = mixerUnderruns;
+        }
+
+        public int getPeriodSize() {
+            return mmPeriodSize;
+        }
+
+        /**
+         * Play a single channel of a stereo stream on both speakers, to split the stream
+         * over two receivers, see {@link AudioProfile#getPlayoutChannel()}.
+         */
+        private void select_channel() {
+            if ((mmChannelNb != 2) || (mmPlayoutChannel == AudioProfile.PLAYOUT_CHANNEL_BOTH)) {
+                return;
+            }
+            int channel = (mmPlayoutChannel == AudioProfile.PLAYOUT_CHANNEL_LEFT) ? 0 : 1;
+            for (int i = 0; i < mmPeriodSize; i += 2) {
+                short sample = mmMixBuffer[i + channel];
+                mmMixBuffer[i] = sample;
+                mmMixBuffer[i + 1] = sample;
+            }
+        }
+
+        public void cancel() {
+            mmRunning = false;
+        }
+    }
+
+
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
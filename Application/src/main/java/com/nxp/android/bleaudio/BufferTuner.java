@@ -0,0 +1,127 @@
+package com.nxp.android.bleaudio;
+
+/**
+ * Picks the smallest audio buffers which play without glitches on the current device and link.
+ *
+ * Buffers are expressed as a level, each level a number of periods (see {@link #getPeriods}):
+ * the capture buffer, the player buffer and the jitter buffer of the mixer all scale with it.
+ * Tuning starts at the lowest level, and every glitch reported (player underrun, capture
+ * overrun, socket stall) raises it by one. Once a level stayed clean for a whole hold time it
+ * is settled, and the level below is tried again. A level which glitches again doubles the
+ * hold time before the next attempt, so the tuner converges instead of oscillating.
+ *
+ * Time is passed in by the callers, in milliseconds of any monotonic clock.
+ */
+public class BufferTuner {
+
+    // Buffer size of each level, in periods
+    private static final int[] LEVEL_PERIODS = {2, 3, 4, 6, 8};
+    public static final int MAX_LEVEL = LEVEL_PERIODS.length - 1;
+
+    // Time a level must stay clean before the level below is tried
+    private static final long INITIAL_HOLD_MS = 30000;
+    private static final long MAX_HOLD_MS = 600000;
+
+    /**
+     * Notified of the level changes, on the thread reporting the glitch or the tick.
+     */
+    public interface Listener {
+        /**
+         * The buffers must be resized to the given level.
+         */
+        void onLevelChanged(int level);
+
+        /**
+         * The given level stayed clean for a whole hold time, it is worth remembering.
+         */
+        void onLevelSettled(int level);
+    }
+
+    private final Listener mListener;
+
+    private int mLevel;
+    private long mLevelStartMs = -1;
+    private long mHoldMs = INITIAL_HOLD_MS;
+    // True while the current level is being tried, from a level above
+    private boolean mTrying;
+
+    private int mGlitchCount;
+
+    /**
+     * @param initialLevel Level to start from: the level settled last time with the device,
+     *                     or 0 for a device never tuned
+     */
+    public BufferTuner(int initialLevel, Listener listener) {
+        mLevel = Math.max(0, Math.min(initialLevel, MAX_LEVEL));
+        mListener = listener;
+    }
+
+    /**
+     * Return the buffer size of the given level, in periods.
+     */
+    public static int getPeriods(int level) {
+        return LEVEL_PERIODS[level];
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    public synchronized int getGlitchCount() {
+        return mGlitchCount;
+    }
+
+    /**
+     * Report a glitch: an underrun of the player, an overrun of the capture, or a write to
+     * the socket blocked long enough to starve the peer.
+     */
+    public void reportGlitch(long nowMs) {
+        int level;
+        synchronized (this) {
+            mGlitchCount++;
+            if (mTrying) {
+                // Tried too low: wait longer before trying again
+                mHoldMs = Math.min(2 * mHoldMs, MAX_HOLD_MS);
+                mTrying = false;
+            }
+            mLevelStartMs = nowMs;
+            if (mLevel == MAX_LEVEL) {
+                return;
+            }
+            level = ++mLevel;
+        }
+        mListener.onLevelChanged(level);
+    }
+
+    /**
+     * Let the tuner lower the buffers once the current level stayed clean long enough. To be
+     * called regularly, from the audio loops.
+     */
+    public void tick(long nowMs) {
+        int settled;
+        int level = -1;
+        synchronized (this) {
+            if (mLevelStartMs < 0) {
+                mLevelStartMs = nowMs;
+            }
+            if (nowMs - mLevelStartMs < mHoldMs) {
+                return;
+            }
+            settled = mLevel;
+            if (mTrying) {
+                // The level tried is fine, the next one may be as well
+                mHoldMs = INITIAL_HOLD_MS;
+                mTrying = false;
+            }
+            mLevelStartMs = nowMs;
+            if (mLevel > 0) {
+                level = --mLevel;
+                mTrying = true;
+            }
+        }
+        mListener.onLevelSettled(settled);
+        if (level >= 0) {
+            mListener.onLevelChanged(level);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Rolling archive of a received PCM stream, on disk within a size budget.
+ *
+ * The stream is written in segments of a fixed duration, each a raw PCM file with a small
+ * index file next to it. The index maps the presentation time of the stream to offsets in
+ * the segment: an entry is written when a segment starts, when the time stamps jump (audio
+ * lost or the sender re-anchored its clock), and at a regular interval, so a time range is
+ * read back from the few segments holding it, without scanning the data. The archives of a
+ * folder share a retention budget: beyond it, the oldest segments of the folder are deleted,
+ * see {@link Retention}.
+ *
+ * The archive keeps the time stamps of the stream, as long as they go forward. A session
+ * whose clock is behind the end of the archive, a sender which restarted, is re-anchored
+ * right after it, so the time of the archive only increases, which reading relies on.
+ *
+ * Segment n is "n.pcm", its index "n.idx", a list of [ptsUs:8][offset:8] entries (little
+ * endian). The store resumes from the segments of its directory, so an archive outlives the
+ * sessions writing to it.
+ */
+public class CaptureStore {
+    private final static String TAG = CaptureStore.class.getSimpleName();
+
+    private static final int ENTRY_SIZE = 16;
+    // Interval between two index entries of a continuous stream
+    private static final long INDEX_INTERVAL_US = 1000000;
+
+    /**
+     * Disk budget shared by the archives of a folder, one per talker and format. When they
+     * exceed it, the oldest segments of the folder are deleted, whichever archive they belong
+     * to, archives no store has opened included. The segments being written are kept, and
+     * come on top of the budget.
+     */
+    public static class Retention {
+        private final File mRoot;
+        private final long mBudgetBytes;
+        private final ArrayList<CaptureStore> mStores = new ArrayList<CaptureStore>();
+
+        /**
+         * @param root        Folder holding a directory per archive
+         * @param budgetBytes Disk space all the archives may use
+         */
+        public Retention(File root, long budgetBytes) {
+            mRoot = root;
+            mBudgetBytes = budgetBytes;
+        }
+
+        private synchronized void register(CaptureStore store) {
+            mStores.add(store);
+        }
+
+        /**
+         * Delete the oldest segments of the folder until it fits the budget.
+         */
+        private synchronized void enforce() {
+            File[] directories = mRoot.listFiles();
+            if (directories == null) {
+                return;
+            }
+            ArrayList<Segment> segments = new ArrayList<Segment>();
+            long totalBytes = 0;
+            for (File directory : directories) {
+                String[] names = directory.isDirectory() ? directory.list() : null;
+                if (names == null) {
+                    continue;
+                }
+                for (int sequence : listSequences(names)) {
+                    Segment segment = new Segment(directory, sequence);
+                    segments.add(segment);
+                    totalBytes += segment.getSize();
+                }
+            }
+            if (totalBytes <= mBudgetBytes) {
+                return;
+            }
+
+            // Oldest first, by the time their last audio was written
+            final HashMap<Segment, Long> modified = new HashMap<Segment, Long>();
+            for (Segment segment : segments) {
+                modified.put(segment, segment.mData.lastModified());
+            }
+            Collections.sort(segments, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment a, Segment b) {
+                    int order = modified.get(a).compareTo(modified.get(b));
+                    return (order != 0) ? order : a.mSequence - b.mSequence;
+                }
+            });
+            for (int i = 0; (i < segments.size()) && (totalBytes > mBudgetBytes); i++) {
+                Segment segment = segments.get(i);
+                CaptureStore store = find(segment.mData.getParentFile());
+                long freed = (store != null) ? store.deleteSegment(segment.mSequence)
+                        : delete(segment);
+                if (freed > 0) {
+                    totalBytes -= freed;
+                }
+            }
+        }
+
+        private CaptureStore find(File directory) {
+            for (CaptureStore store : mStores) {
+                if (store.mDirectory.getAbsoluteFile().equals(directory.getAbsoluteFile())) {
+                    return store;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A segment of the archive.
+     */
+    private static class Segment {
+        final int mSequence;
+        final File mData;
+        final File mIndex;
+        long mStartUs;
+        long mLength;
+        // Time stamp and offset of the last index entry
+        long mLastEntryUs;
+        long mLastEntryOffset;
+
+        Segment(File directory, int sequence) {
+            mSequence = sequence;
+            mData = new File(directory, sequence + ".pcm");
+            mIndex = new File(directory, sequence + ".idx");
+        }
+
+        long getEndUs(int bytesPerSecond) {
+            return mLastEntryUs + (mLength - mLastEntryOffset) * 1000000L / bytesPerSecond;
+        }
+
+        long getSize() {
+            return mData.length() + mIndex.length();
+        }
+    }
+
+    /**
+     * Delete the files of a segment.
+     *
+     * @return The disk space freed
+     */
+    private static long delete(Segment segment) {
+        long size = segment.getSize();
+        if (!segment.mData.delete() | !segment.mIndex.delete()) {
+            Log.w(TAG, "Cannot delete segment " + segment.mSequence);
+        }
+        return size;
+    }
+
+    /**
+     * Return the sequence numbers of the segments of a directory, in order.
+     */
+    private static int[] listSequences(String[] names) {
+        int[] sequences = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.endsWith(".idx")) {
+                try {
+                    sequences[count++] = Integer.parseInt(name.substring(0, name.length() - 4));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    private final File mDirectory;
+    private final int mBytesPerSecond;
+    private final int mSampleSize;
+    private final long mSegmentBytes;
+    private final Retention mRetention;
+    private final long mToleranceUs;
+
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private long mTotalBytes;
+    private long mDeletedSegments;
+
+    // Segment being written, opened on the first write
+    private Segment mCurrent;
+    private FileChannel mDataChannel;
+    private FileChannel mIndexChannel;
+    private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private long mNextPtsUs = Long.MIN_VALUE;
+    // Shift from the time stamps of the session being written to the time of the archive
+    private long mOffsetUs;
+
+    /**
+     * @param directory Directory of the archive in the folder of the retention, created if
+     *                  needed
+     * @param profile   Format of the stream
+     * @param segmentMs Duration of a segment
+     * @param retention Budget of the folder, enforced when a segment starts
+     */
+    public CaptureStore(File directory, AudioProfile profile, int segmentMs,
+                        Retention retention) throws IOException {
+        mDirectory = directory;
+        mBytesPerSecond = profile.getBytesPerSecond();
+        mSampleSize = 2 * profile.getChannelCount();
+        long segmentBytes = (long) segmentMs * mBytesPerSecond / 1000;
+        mSegmentBytes = Math.max(mSampleSize, segmentBytes - segmentBytes % mSampleSize);
+        mRetention = retention;
+        // Time stamps within half a frame of the expected one continue the stream
+        mToleranceUs = profile.getFrameDurationMs() * 500L;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        load();
+        mNextPtsUs = getEndUs();
+        retention.register(this);
+    }
+
+    /**
+     * Rebuild the list of segments from the directory.
+     */
+    private void load() throws IOException {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + mDirectory);
+        }
+        for (int sequence : listSequences(names)) {
+            Segment segment = new Segment(mDirectory, sequence);
+            long[] entries = readIndex(segment);
+            if (entries.length == 0) {
+                continue;
+            }
+            segment.mStartUs = entries[0];
+            segment.mLastEntryUs = entries[entries.length - 2];
+            segment.mLastEntryOffset = entries[entries.length - 1];
+            segment.mLength = segment.mData.length();
+            mSegments.add(segment);
+            mTotalBytes += segment.getSize();
+        }
+    }
+
+    /**
+     * Append PCM data to the archive, from the start of the buffer.
+     *
+     * @param ptsUs Presentation time of the first sample
+     */
+    public void write(ByteBuffer buffer, int length, long ptsUs) throws IOException {
+        if (append(buffer, length, ptsUs)) {
+            // Outside the lock of the store, the retention takes it while holding its own
+            mRetention.enforce();
+        }
+    }
+
+    /**
+     * @return True if a segment was started
+     */
+    private synchronized boolean append(ByteBuffer buffer, int length, long ptsUs)
+            throws IOException {
+        // A session whose clock is behind the archive goes right after it
+        if ((mNextPtsUs != Long.MIN_VALUE) && (ptsUs + mOffsetUs < mNextPtsUs - mToleranceUs)) {
+            mOffsetUs = mNextPtsUs - ptsUs;
+        }
+        ptsUs += mOffsetUs;
+
+        boolean started = false;
+        length -= length % mSampleSize;
+        int offset = 0;
+        while (offset < length) {
+            if ((mCurrent == null) || (mCurrent.mLength >= mSegmentBytes)) {
+                startSegment();
+                started = true;
+            }
+            int count = (int) Math.min(length - offset, mSegmentBytes - mCurrent.mLength);
+            long chunkPtsUs = ptsUs + offset * 1000000L / mBytesPerSecond;
+            if ((mCurrent.mLength == 0) || (Math.abs(chunkPtsUs - mNextPtsUs) > mToleranceUs)
+                    || (chunkPtsUs - mCurrent.mLastEntryUs >= INDEX_INTERVAL_US)) {
+                writeEntry(chunkPtsUs);
+            }
+
+            buffer.limit(offset + count).position(offset);
+            while (buffer.hasRemaining()) {
+                mDataChannel.write(buffer);
+            }
+            mCurrent.mLength += count;
+            mTotalBytes += count;
+            mNextPtsUs = chunkPtsUs + count * 1000000L / mBytesPerSecond;
+            offset += count;
+        }
+        return started;
+    }
+
+    private void startSegment() throws IOException {
+        closeSegment();
+        int sequence = mSegments.isEmpty() ? 0
+                : mSegments.get(mSegments.size() - 1).mSequence + 1;
+        Segment segment = new Segment(mDirectory, sequence);
+        mDataChannel = new FileOutputStream(segment.mData).getChannel();
+        mIndexChannel = new FileOutputStream(segment.mIndex).getChannel();
+        mCurrent = segment;
+        mSegments.add(segment);
+    }
+
+    private void writeEntry(long ptsUs) throws IOException {
+        if (mCurrent.mLength == 0) {
+            mCurrent.mStartUs = ptsUs;
+        }
+        mCurrent.mLastEntryUs = ptsUs;
+        mCurrent.mLastEntryOffset = mCurrent.mLength;
+        mEntry.clear();
+        mEntry.putLong(ptsUs).putLong(mCurrent.mLength).flip();
+        while (mEntry.hasRemaining()) {
+            mIndexChannel.write(mEntry);
+        }
+        mTotalBytes += ENTRY_SIZE;
+    }
+
+    /**
+     * Delete a segment of the archive, unless it is being written.
+     *
+     * @return The disk space freed
+     */
+    private synchronized long deleteSegment(int sequence) {
+        if ((mCurrent != null) && (mCurrent.mSequence == sequence)) {
+            return 0;
+        }
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if (segment.mSequence == sequence) {
+                mSegments.remove(i);
+                long size = delete(segment);
+                mTotalBytes -= size;
+                mDeletedSegments++;
+                return size;
+            }
+        }
+        // Not loaded, its index was empty
+        return delete(new Segment(mDirectory, sequence));
+    }
+
+    private void closeSegment() throws IOException {
+        if (mCurrent == null) {
+            return;
+        }
+        mDataChannel.close();
+        mIndexChannel.close();
+        mCurrent = null;
+    }
+
+    /**
+     * Close the segment being written. The next write starts a new segment.
+     */
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * Copy the audio archived between two times of the archive, see {@link #getStartUs}.
+     * Audio missing from the stream is skipped, not replaced by silence.
+     *
+     * @return The number of bytes copied
+     */
+    public synchronized long read(long fromUs, long toUs, OutputStream out)
+            throws IOException {
+        long copied = 0;
+        byte[] buffer = new byte[8192];
+        for (Segment segment : mSegments) {
+            if ((segment.mLength == 0) || (segment.mStartUs >= toUs)
+                    || (segment.getEndUs(mBytesPerSecond) <= fromUs)) {
+                continue;
+            }
+            long[] entries = readIndex(segment);
+            RandomAccessFile data = new RandomAccessFile(segment.mData, "r");
+            try {
+                // Entries are in stream order: start from the last one at or before fromUs
+                int first = Math.max(0, findEntry(entries, fromUs));
+                for (int i = first; i < entries.length; i += 2) {
+                    long runUs = entries[i];
+                    long runStart = entries[i + 1];
+                    long runEnd = (i + 2 < entries.length) ? entries[i + 3] : segment.mLength;
+                    if (runUs >= toUs) {
+                        break;
+                    }
+                    long start = runStart + Math.max(0, toBytes(fromUs - runUs));
+                    long end = Math.min(runEnd, runStart + toBytes(toUs - runUs));
+                    if (start >= end) {
+                        continue;
+                    }
+                    data.seek(start);
+                    for (long remaining = end - start; remaining > 0; ) {
+                        int count = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (count < 0) {
+                            break;
+                        }
+                        out.write(buffer, 0, count);
+                        remaining -= count;
+                        copied += count;
+                    }
+                }
+            } finally {
+                data.close();
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Return the index of the entry of the last run starting at or before a time, or -2
+     * if the first run starts after it. Entries are interleaved pairs of time and offset.
+     */
+    private static int findEntry(long[] entries, long timeUs) {
+        int low = 0;
+        int high = entries.length / 2 - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (entries[2 * middle] <= timeUs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return 2 * found;
+    }
+
+    /**
+     * Return a duration as a number of bytes, rounded down to a whole sample.
+     */
+    private long toBytes(long durationUs) {
+        long bytes = durationUs * mBytesPerSecond / 1000000L;
+        return bytes - bytes % mSampleSize;
+    }
+
+    private static long[] readIndex(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.mIndex, "r");
+        try {
+            int count = (int) (file.length() / ENTRY_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = file.getChannel();
+            while (buffer.hasRemaining() && (channel.read(buffer) >= 0)) {
+                // Read the whole index
+            }
+            buffer.flip();
+            long[] entries = new long[2 * (buffer.remaining() / ENTRY_SIZE)];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = buffer.getLong();
+            }
+            return entries;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Return the time of the oldest audio archived, or Long.MIN_VALUE if none. It is the
+     * presentation time of the stream, unless a session was re-anchored since.
+     */
+    public synchronized long getStartUs() {
+        for (Segment segment : mSegments) {
+            if (segment.mLength > 0) {
+                return segment.mStartUs;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Return the time following the newest audio archived, or Long.MIN_VALUE if none.
+     */
+    public synchronized long getEndUs() {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            Segment segment = mSegments.get(i);
+            if (segment.mLength > 0) {
+                return segment.getEndUs(mBytesPerSecond);
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Return the disk space used by the archive, data and indexes.
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Return the number of segments of this archive deleted to stay within the retention
+     * budget.
+     */
+    public synchronized long getDeletedSegments() {
+        return mDeletedSegments;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Capture " + mDirectory.getName() + ": " + mSegments.size() + " segments, "
+                + mTotalBytes / 1024 + "kB, " + mDeletedSegments + " deleted";
+    }
+}
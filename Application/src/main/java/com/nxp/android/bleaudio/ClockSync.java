@@ -0,0 +1,78 @@
+package com.nxp.android.bleaudio;
+
+/**
+ * Estimates the offset between the local clock and the clock of the remote sender.
+ *
+ * The receiver periodically sends a request stamped with its local time t0, the sender
+ * answers with its reception time t1 and its transmission time t2, and the receiver stamps
+ * the answer arrival with t3. Among the last samples, the one with the smallest round trip
+ * time is the least disturbed by queuing in the radio, its offset is used.
+ */
+public class ClockSync {
+
+    private static final int WINDOW_SIZE = 16;
+
+    private final long[] mOffsets = new long[WINDOW_SIZE];
+    private final long[] mRoundTrips = new long[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+
+    private long mOffsetUs;
+    private long mRoundTripUs;
+
+    /**
+     * Return the local monotonic time in microseconds.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Add the timestamps of one request/response exchange.
+     */
+    public synchronized void addSample(long t0, long t1, long t2, long t3) {
+        mOffsets[mNext] = ((t1 - t0) + (t2 - t3)) / 2;
+        mRoundTrips[mNext] = (t3 - t0) - (t2 - t1);
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        if (mCount < WINDOW_SIZE) {
+            mCount++;
+        }
+
+        int best = 0;
+        for (int i = 1; i < mCount; i++) {
+            if (mRoundTrips[i] < mRoundTrips[best]) {
+                best = i;
+            }
+        }
+        mOffsetUs = mOffsets[best];
+        mRoundTripUs = mRoundTrips[best];
+    }
+
+    /**
+     * Return true once at least one exchange completed.
+     */
+    public synchronized boolean isSynchronized() {
+        return mCount > 0;
+    }
+
+    /**
+     * Return the number of exchanges in the estimation window.
+     */
+    public synchronized int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Convert a time of the remote clock into the local clock.
+     */
+    public synchronized long toLocalTime(long remoteTimeUs) {
+        return remoteTimeUs - mOffsetUs;
+    }
+
+    /**
+     * Return the bound of the offset estimation error, half of the best round trip time.
+     */
+    public synchronized long getUncertaintyUs() {
+        return mRoundTripUs / 2;
+    }
+}
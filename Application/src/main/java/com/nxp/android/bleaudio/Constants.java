@@ -1,6 +1,5 @@
 package com.nxp.android.bleaudio;
 
-import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.MediaRecorder;
 import android.os.ParcelUuid;
@@ -12,35 +11,56 @@ public class Constants {
     public static final ParcelUuid Service_UUID = ParcelUuid
             .fromString("0000b81d-0000-1000-8000-00805f9b34fb");
 
-    public static final boolean AUDIO_FROM_MIC = true;
+    // Audio format and routing are chosen at runtime, see AudioProfile
+    public static final int AUDIO_SOURCE = MediaRecorder.AudioSource.VOICE_COMMUNICATION;
+    public static final int AUDIO_STREAM = AudioManager.STREAM_MUSIC;
 
-    public static final boolean AUDIO_TO_SPEAKER = true;
-    public static final boolean AUDIO_LOOPBACK = false;
-    public static final boolean AUDIO_TO_FILE = false;
+    // L2CAP MTU assumed when the platform cannot report the link MTU
+    public static final int L2CAP_DEFAULT_MTU = 672;
+    // Drift between the audio clock and the local clock tolerated on the time stamps sent
+    public static final int PTS_REANCHOR_US = 2000;
+    // Longest audio held in a packet waiting to fill the MTU, see Packetizer
+    public static final int PACKET_MAX_DELAY_MS = 10;
 
-    public static final int SAMPLE_RATE = 48000;
-    public static final int AUDIO_SOURCE = MediaRecorder.AudioSource.VOICE_COMMUNICATION;
-    public static final int CHANNEL_IN_CONFIG = AudioFormat.CHANNEL_IN_STEREO;
-    public static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    // Maximum number of remote talkers mixed together on the receive side
+    public static final int MAX_RX_SOURCES = 4;
 
-    public static final int CHANNEL_OUT_CONFIG = AudioFormat.CHANNEL_OUT_STEREO;
-    public static final int AUDIO_STREAM = AudioManager.STREAM_MUSIC;
+    // Interval between two clock sync exchanges with the sender, faster until synchronized
+    public static final int SYNC_INTERVAL_MS = 1000;
+    public static final int SYNC_FAST_INTERVAL_MS = 100;
+    // Scheduling error tolerated before samples are dropped or delayed (~12 samples at 48kHz)
+    public static final int SYNC_TOLERANCE_US = 250;
+
+    // Interval between two reception quality reports to the sender, see BitrateController
+    public static final int FEEDBACK_INTERVAL_MS = 250;
+
+    // Time an idle link waits before sending a heartbeat, and silence after which a link is
+    // lost, see LinkMonitor
+    public static final int HEARTBEAT_INTERVAL_MS = 250;
+    public static final int LINK_TIMEOUT_MS = 1500;
+    // Attempts to connect again after losing an outgoing connection, spaced by growing delays
+    public static final int MAX_RECONNECT_ATTEMPTS = 3;
+    public static final int RECONNECT_DELAY_MS = 500;
+    // Time a receiver keeps the place of a dropped talker, for its session to resume
+    public static final int RESUME_GRACE_MS = 3000;
 
 
     public static final String FOLDER = "/Development/NXP_BLE";
     public static final String FILE_INPUT = "/input_stereo.wav";
-    public static final String FILE_OUTPUT = "/output.pcm";
 
-    // settings for High Quality Mono with SBC (SBC codec input)
-    public static final int BUFFER_SIZE = 768; // should be 768 // 6144
-    public static final int PERIOD_SIZE = 8;
+    // Rolling archive of the received audio, one directory per talker and format, all within
+    // the retention budget, see CaptureStore
+    public static final String CAPTURE_FOLDER = "/capture";
+    public static final int CAPTURE_SEGMENT_MS = 60000;
+    public static final long CAPTURE_RETENTION_BYTES = 256L * 1024 * 1024;
+
+    // Traces of the traffic received, when recording, see TrafficTrace
+    public static final String TRACE_FOLDER = "/traces";
 
-    // settings for High Quality Joint Stereo with SBC (SBC codec input)
-    //public static final int BUFFER_SIZE = 1024; // should be 768 // 6144
-    //public static final int PERIOD_SIZE = 5;
+    // Cost of the stages of the pipeline, dumped when the service stops, see StageStats
+    public static final String STATS_FILE = "/stage_stats.tsv";
 
-    // setting for High Quality Stereo without SBC (SBC codec output)
-    //public static final int BUFFER_SIZE = 460;
-    //public static final int PERIOD_SIZE = 10;
+    // Audio of a playlist read ahead of the stream, see PlaylistSource
+    public static final int PLAYLIST_READ_AHEAD_MS = 500;
 
 }
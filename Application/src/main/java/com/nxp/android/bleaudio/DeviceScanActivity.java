@@ -18,6 +18,7 @@ package com.nxp.android.bleaudio;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -28,6 +29,7 @@ import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
@@ -35,6 +37,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -47,6 +50,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -55,6 +60,11 @@ public class DeviceScanActivity extends ListActivity {
     private final static String TAG = DeviceScanActivity.class.getSimpleName();
 
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanAggregator mScanAggregator;
+    private KnownDeviceCache mKnownDeviceCache;
+    // Only our audio devices make it to the list
+    private final AdvertisementFilter mAdvertisementFilter =
+            new AdvertisementFilter(Constants.Service_UUID.getUuid(), null);
     private BluetoothAdapter mBluetoothAdapter;
 
     private boolean mScanning;
@@ -67,6 +77,34 @@ public class DeviceScanActivity extends ListActivity {
 
     private Handler mHandler;
 
+    // End the manual scan and advertising after their period
+    private final Runnable mStopScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanning = false;
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            invalidateOptionsMenu();
+        }
+    };
+    private final Runnable mStopAdvertisingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAvertising = false;
+            stopAdvertising();
+            invalidateOptionsMenu();
+        }
+    };
+
+    // Alternates scan and advertise windows until a peer is found
+    private DiscoveryScheduler mDiscoveryScheduler;
+
+    // Advertise mode used at each discovery level
+    private static final int[] DISCOVERY_ADVERTISE_MODES = {
+            AdvertiseSettings.ADVERTISE_MODE_LOW_POWER,
+            AdvertiseSettings.ADVERTISE_MODE_BALANCED,
+            AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY
+    };
+
 
     public static final String ADVERTISING_FAILED =
             "com.nxp.android.bluetoothadvertisements.advertising_failed";
@@ -90,8 +128,11 @@ public class DeviceScanActivity extends ListActivity {
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
-            } else
+            } else {
+                // A peer connecting found us while we advertised
+                mBluetoothLeService.setIncomingListener(mIncomingListener);
                 mBluetoothLeService.start();
+            }
         }
 
         @Override
@@ -105,6 +146,8 @@ public class DeviceScanActivity extends ListActivity {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mDiscoveryScheduler = new DiscoveryScheduler(new DiscoveryScheduler.HandlerClock(mHandler),
+                mDiscoveryRadio, new Random());
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -167,6 +210,13 @@ public class DeviceScanActivity extends ListActivity {
             menu.findItem(R.id.menu_refresh).setActionView(
                     R.layout.actionbar_indeterminate_progress);
         }
+
+        if (mScanAggregator != null) {
+            menu.findItem(R.id.menu_sort).setChecked(mScanAggregator.isSortByRssi());
+        }
+        menu.findItem(R.id.menu_discover).setChecked(mDiscoveryScheduler.isRunning());
+        menu.findItem(R.id.menu_reconnect).setVisible(
+                (mKnownDeviceCache != null) && (mKnownDeviceCache.getLastDevice() != null));
         return true;
     }
 
@@ -175,19 +225,75 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_advertise:
+                stopDiscovery();
                 advertise(true);
                 break;
+            case R.id.menu_discover:
+                if (mDiscoveryScheduler.isRunning()) {
+                    stopDiscovery();
+                } else {
+                    scanLeDevice(false);
+                    advertise(false);
+                    cancelStopTimers();
+                    mDiscoveryScheduler.start();
+                }
+                invalidateOptionsMenu();
+                break;
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
+                stopDiscovery();
+                mScanAggregator.clear();
+                showKnownDevices();
                 scanLeDevice(true);
                 break;
+            case R.id.menu_reconnect:
+                reconnectLastDevice();
+                break;
             case R.id.menu_stop:
+                stopDiscovery();
                 scanLeDevice(false);
                 break;
+            case R.id.menu_sort:
+                mScanAggregator.setSortByRssi(!mScanAggregator.isSortByRssi());
+                invalidateOptionsMenu();
+                break;
+            case R.id.menu_profile:
+                selectAudioProfile();
+                break;
         }
         return true;
     }
 
+    /**
+     * Let the user pick the audio profile of the next sessions.
+     */
+    private void selectAudioProfile() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final AudioProfile[] profiles = AudioProfile.getPresets();
+        CharSequence[] names = new CharSequence[profiles.length];
+        int selected = -1;
+        for (int i = 0; i < profiles.length; i++) {
+            names[i] = profiles[i].getName();
+            if (profiles[i] == mBluetoothLeService.getAudioProfile()) {
+                selected = i;
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_profile)
+                .setSingleChoiceItems(names, selected, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mBluetoothLeService != null) {
+                            mBluetoothLeService.setAudioProfile(profiles[which]);
+                        }
+                        dialog.dismiss();
+                    }
+                })
+                .show();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -201,9 +307,16 @@ public class DeviceScanActivity extends ListActivity {
             }
         }
 
-        // Initializes list view adapter.
+        // Initializes list view adapter, fed by the scan aggregator.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        boolean sortByRssi = (mScanAggregator != null) && mScanAggregator.isSortByRssi();
+        mScanAggregator = new ScanAggregator(mLeDeviceListAdapter);
+        mScanAggregator.setSortByRssi(sortByRssi);
+
+        // Render the devices known from previous sessions while the scan runs
+        mKnownDeviceCache = new KnownDeviceCache(this);
+        showKnownDevices();
         scanLeDevice(true);
     }
 
@@ -220,23 +333,31 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        stopDiscovery();
         scanLeDevice(false);
+        saveKnownDevicesRssi();
+        mScanAggregator.clear();
         mLeDeviceListAdapter.clear();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setIncomingListener(null);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
-        if (device == null) return;
+        final ScanAggregator.Entry entry =
+                (ScanAggregator.Entry) mLeDeviceListAdapter.getItem(position);
+        if (entry == null) return;
+        final BluetoothDevice device = entry.getDevice();
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, entry.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
@@ -246,6 +367,113 @@ public class DeviceScanActivity extends ListActivity {
         startActivity(intent);
     }
 
+    /**
+     * Stop the discovery scheduler and log its latency statistics.
+     */
+    private void stopDiscovery() {
+        if (!mDiscoveryScheduler.isRunning()) {
+            return;
+        }
+        cancelStopTimers();
+        mDiscoveryScheduler.stop();
+        Log.d(TAG, "Discovery latency: " + mDiscoveryScheduler.getDiscoveryCount() + " found, mean "
+                + mDiscoveryScheduler.getMeanLatencyMs() + "ms, min "
+                + mDiscoveryScheduler.getMinLatencyMs() + "ms, max "
+                + mDiscoveryScheduler.getMaxLatencyMs() + "ms");
+    }
+
+    /**
+     * Cancel the end of a manual scan or advertising, which would stop the radio in the
+     * middle of a window of the discovery scheduler.
+     */
+    private void cancelStopTimers() {
+        mHandler.removeCallbacks(mStopScanRunnable);
+        mHandler.removeCallbacks(mStopAdvertisingRunnable);
+    }
+
+    // Peers connecting to the service, found by the discovery scheduler while advertising.
+    private final BluetoothLeService.IncomingListener mIncomingListener =
+            new BluetoothLeService.IncomingListener() {
+
+        @Override
+        public void onIncomingConnection(String address) {
+            mDiscoveryScheduler.onPeerFound();
+        }
+    };
+
+    // Radio driven by the discovery scheduler.
+    private final DiscoveryScheduler.Radio mDiscoveryRadio = new DiscoveryScheduler.Radio() {
+
+        @Override
+        public void startScan(int level) {
+            // The legacy scan API has no scan mode, the intensity is the window length
+            mScanning = true;
+            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            invalidateOptionsMenu();
+        }
+
+        @Override
+        public void stopScan() {
+            mScanning = false;
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            invalidateOptionsMenu();
+        }
+
+        @Override
+        public void startAdvertising(int level) {
+            mAvertising = DeviceScanActivity.this.startAdvertising(DISCOVERY_ADVERTISE_MODES[level]);
+            invalidateOptionsMenu();
+        }
+
+        @Override
+        public void stopAdvertising() {
+            mAvertising = false;
+            DeviceScanActivity.this.stopAdvertising();
+            invalidateOptionsMenu();
+        }
+    };
+
+    /**
+     * Add the devices of the known device cache to the list.
+     */
+    private void showKnownDevices() {
+        for (KnownDeviceCache.Entry known : mKnownDeviceCache.getDevices()) {
+            if (BluetoothAdapter.checkBluetoothAddress(known.getAddress())) {
+                BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(known.getAddress());
+                mScanAggregator.addCached(device, known.getName(), known.getRssi());
+            }
+        }
+    }
+
+    /**
+     * Remember the signal strength of the known devices seen during the scan.
+     */
+    private void saveKnownDevicesRssi() {
+        for (int i = 0; i < mLeDeviceListAdapter.getCount(); i++) {
+            ScanAggregator.Entry entry = (ScanAggregator.Entry) mLeDeviceListAdapter.getItem(i);
+            if (!entry.isCached()) {
+                mKnownDeviceCache.recordRssi(entry.getDevice().getAddress(), entry.getRssi());
+            }
+        }
+    }
+
+    /**
+     * Connect straight to the last device we streamed to, without waiting for a scan.
+     */
+    private void reconnectLastDevice() {
+        final KnownDeviceCache.Entry last = mKnownDeviceCache.getLastDevice();
+        if (last == null) return;
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, last.getName());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, last.getAddress());
+        if (mScanning) {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanning = false;
+        }
+
+        startActivity(intent);
+    }
+
     private void scanLeDevice(final boolean enable) {
         Log.d(TAG, "Service: Starting Scanning");
 
@@ -255,14 +483,8 @@ public class DeviceScanActivity extends ListActivity {
                 stopAdvertising();
             }
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+            mHandler.removeCallbacks(mStopScanRunnable);
+            mHandler.postDelayed(mStopScanRunnable, SCAN_PERIOD);
 
             mScanning = true;
             mBluetoothAdapter.startLeScan(mLeScanCallback);
@@ -280,34 +502,17 @@ public class DeviceScanActivity extends ListActivity {
             Log.d(TAG, "Advertising called");
 
             // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mAvertising = false;
-                    stopAdvertising();
-                    invalidateOptionsMenu();
-                }
-            }, ADVERTISING_PERIOD);
+            mHandler.removeCallbacks(mStopAdvertisingRunnable);
+            mHandler.postDelayed(mStopAdvertisingRunnable, ADVERTISING_PERIOD);
 
             mAvertising = true;
 
-            if (mBluetoothLeAdvertiser == null) {
-                if  (mBluetoothAdapter != null) {
-                    mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+            if (mAdvertiseCallback == null) {
+                if (startAdvertising(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)) {
+                    Toast.makeText(this, "Advertisement started for 30s", Toast.LENGTH_LONG).show();
                 } else {
                     Toast.makeText(this, "Advertisement failed !!!", Toast.LENGTH_LONG).show();
                 }
-            }
-            if (mAdvertiseCallback == null) {
-                AdvertiseSettings settings = buildAdvertiseSettings();
-                AdvertiseData data = buildAdvertiseData();
-                mAdvertiseCallback = new SampleAdvertiseCallback();
-
-                mBluetoothLeAdvertiser.startAdvertising(settings, data,
-                        mAdvertiseCallback);
-
-                Toast.makeText(this, "Advertisement started for 30s", Toast.LENGTH_LONG).show();
-                Log.d(TAG, "Advertising started");
             } else {
                 Toast.makeText(this, "Advertisement already on-going!", Toast.LENGTH_LONG).show();
             }
@@ -320,6 +525,30 @@ public class DeviceScanActivity extends ListActivity {
         }
     }
 
+    /**
+     * Starts BLE Advertising in the given AdvertiseSettings mode.
+     *
+     * @return Return true if the advertising was started.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startAdvertising(int advertiseMode) {
+        if ((mBluetoothLeAdvertiser == null) && (mBluetoothAdapter != null)) {
+            mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        }
+        if ((mBluetoothLeAdvertiser == null) || (mAdvertiseCallback != null)) {
+            return false;
+        }
+
+        AdvertiseSettings settings = buildAdvertiseSettings(advertiseMode);
+        AdvertiseData data = buildAdvertiseData();
+        mAdvertiseCallback = new SampleAdvertiseCallback();
+
+        mBluetoothLeAdvertiser.startAdvertising(settings, data,
+                mAdvertiseCallback);
+        Log.d(TAG, "Advertising started");
+        return true;
+    }
+
     /**
      * Stops BLE Advertising.
      */
@@ -360,13 +589,14 @@ public class DeviceScanActivity extends ListActivity {
     }
 
     /**
-     * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
-     * and disable the built-in timeout since this code uses its own timeout runnable.
+     * Returns an AdvertiseSettings object set to use the given mode (low power helps preserve
+     * battery life) and disable the built-in timeout since this code uses its own timeout
+     * runnable.
      */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private AdvertiseSettings buildAdvertiseSettings() {
+    private AdvertiseSettings buildAdvertiseSettings(int advertiseMode) {
         AdvertiseSettings.Builder settingsBuilder = new AdvertiseSettings.Builder();
-        settingsBuilder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER);
+        settingsBuilder.setAdvertiseMode(advertiseMode);
         settingsBuilder.setTimeout(0);
         settingsBuilder.setConnectable(true);
         return settingsBuilder.build();
@@ -407,28 +637,26 @@ public class DeviceScanActivity extends ListActivity {
 
 
     // Adapter for holding devices found through scanning.
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+    private class LeDeviceListAdapter extends BaseAdapter implements ScanAggregator.Listener {
+        private List<ScanAggregator.Entry> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanAggregator.Entry>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
-        }
-
-        public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+        @Override
+        public void onScanResultsChanged(List<ScanAggregator.Entry> entries) {
+            // Called at most once per display frame by the scan aggregator
+            mLeDevices = entries;
+            notifyDataSetChanged();
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mLeDevices = new ArrayList<ScanAggregator.Entry>();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -455,18 +683,21 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            ScanAggregator.Entry entry = mLeDevices.get(i);
+            BluetoothDevice device = entry.getDevice();
+            final String deviceName = entry.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.rssi_format, entry.getRssi()));
 
             return view;
         }
@@ -478,18 +709,19 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+            // Drop other devices right away, without allocating anything
+            if (!mAdvertisementFilter.matches(scanRecord)) {
+                return;
+            }
+            mDiscoveryScheduler.onPeerFound();
+            // The aggregator publishes to the list at the display frame rate
+            mScanAggregator.update(device, rssi, SystemClock.uptimeMillis());
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
@@ -0,0 +1,286 @@
+package com.nxp.android.bleaudio;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * Alternates scan and advertise windows so two phones running it find each other.
+ *
+ * Each round is made of a scan window and an advertise window, in random order and with
+ * randomized lengths, followed by a randomized gap: two peers started at the same time
+ * quickly drift out of phase, and one ends up scanning while the other advertises. When no
+ * peer is found for a few rounds the intensity is escalated (longer windows, shorter gaps,
+ * faster advertising). When nothing is found at the highest level the scheduler backs off:
+ * it climbs the levels again with an idle gap added between rounds, doubled at every climb,
+ * until a peer shows up again.
+ *
+ * A peer is found by scanning it, or by being connected to while advertising. Each search
+ * records the latency of its first find: the first search starts with the scheduler, the
+ * next ones when a round goes by without finding the peer again.
+ *
+ * Time only goes through the {@link Clock}, so the scheduler can run on a simulated clock.
+ */
+public class DiscoveryScheduler {
+
+    public static final int LEVEL_LOW = 0;
+    public static final int LEVEL_MEDIUM = 1;
+    public static final int LEVEL_HIGH = 2;
+
+    private static final long[] SCAN_WINDOW_MS = {2000, 4000, 6000};
+    private static final long[] ADVERTISE_WINDOW_MS = {2000, 4000, 6000};
+    private static final long[] GAP_MS = {4000, 1000, 200};
+    // Random extension of every window and gap
+    private static final long JITTER_MS = 1000;
+    // Rounds without peer before escalating
+    private static final int ROUNDS_PER_LEVEL = 3;
+    private static final long MAX_IDLE_GAP_MS = 60000;
+
+    private static final int PHASE_STOPPED = 0;
+    private static final int PHASE_GAP = 1;
+    private static final int PHASE_FIRST_WINDOW = 2;
+    private static final int PHASE_SECOND_WINDOW = 3;
+
+    /**
+     * Source of time and of delayed execution.
+     */
+    public interface Clock {
+        long uptimeMillis();
+
+        void postDelayed(Runnable runnable, long delayMs);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Drives the radio on behalf of the scheduler.
+     */
+    public interface Radio {
+        void startScan(int level);
+
+        void stopScan();
+
+        void startAdvertising(int level);
+
+        void stopAdvertising();
+    }
+
+    /**
+     * Clock running on the thread of a Handler.
+     */
+    public static class HandlerClock implements Clock {
+        private final Handler mHandler;
+
+        public HandlerClock(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMs) {
+            mHandler.postDelayed(runnable, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+
+    private final Clock mClock;
+    private final Radio mRadio;
+    private final Random mRandom;
+
+    private int mPhase = PHASE_STOPPED;
+    private boolean mScanFirst;
+    private int mLevel;
+    private int mRoundsWithoutPeer;
+    private long mIdleGapMs;
+
+    // Start of the current search, -1 once a peer is found
+    private long mSearchStartMs = -1;
+    // Start of the current round, and whether a peer was found during it
+    private long mRoundStartMs;
+    private boolean mFoundInRound;
+
+    private int mDiscoveryCount;
+    private long mTotalLatencyMs;
+    private long mMinLatencyMs = Long.MAX_VALUE;
+    private long mMaxLatencyMs;
+
+    public DiscoveryScheduler(Clock clock, Radio radio, Random random) {
+        mClock = clock;
+        mRadio = radio;
+        mRandom = random;
+    }
+
+    /**
+     * Start a new search at the lowest level.
+     */
+    public synchronized void start() {
+        if (mPhase != PHASE_STOPPED) {
+            return;
+        }
+        mLevel = LEVEL_LOW;
+        mRoundsWithoutPeer = 0;
+        mIdleGapMs = 0;
+        mSearchStartMs = mClock.uptimeMillis();
+        mFoundInRound = false;
+
+        // Random phase, so two peers started together do not stay in lockstep
+        mPhase = PHASE_GAP;
+        mClock.postDelayed(mStep, randomJitter());
+    }
+
+    /**
+     * Stop the search and release the radio.
+     */
+    public synchronized void stop() {
+        if (mPhase == PHASE_STOPPED) {
+            return;
+        }
+        mClock.removeCallbacks(mStep);
+        if (mPhase != PHASE_GAP) {
+            mRadio.stopScan();
+            mRadio.stopAdvertising();
+        }
+        mPhase = PHASE_STOPPED;
+    }
+
+    public synchronized boolean isRunning() {
+        return mPhase != PHASE_STOPPED;
+    }
+
+    /**
+     * Notify that a peer was found, by a scan or by connecting to this device. The first
+     * one of a search sets its discovery latency, and the intensity goes back to the lowest
+     * level.
+     */
+    public synchronized void onPeerFound() {
+        if (mPhase == PHASE_STOPPED) {
+            return;
+        }
+        if (mSearchStartMs >= 0) {
+            long latency = mClock.uptimeMillis() - mSearchStartMs;
+            mDiscoveryCount++;
+            mTotalLatencyMs += latency;
+            mMinLatencyMs = Math.min(mMinLatencyMs, latency);
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+            mSearchStartMs = -1;
+        }
+        mFoundInRound = true;
+        mLevel = LEVEL_LOW;
+        mRoundsWithoutPeer = 0;
+        mIdleGapMs = 0;
+    }
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiscoveryScheduler.this) {
+                step();
+            }
+        }
+    };
+
+    private void step() {
+        switch (mPhase) {
+            case PHASE_GAP:
+                mRoundStartMs = mClock.uptimeMillis();
+                mScanFirst = mRandom.nextBoolean();
+                mPhase = PHASE_FIRST_WINDOW;
+                mClock.postDelayed(mStep, startWindow(mScanFirst));
+                break;
+            case PHASE_FIRST_WINDOW:
+                stopWindow(mScanFirst);
+                mPhase = PHASE_SECOND_WINDOW;
+                mClock.postDelayed(mStep, startWindow(!mScanFirst));
+                break;
+            case PHASE_SECOND_WINDOW:
+                stopWindow(!mScanFirst);
+                mPhase = PHASE_GAP;
+                mClock.postDelayed(mStep, endRound());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Start a window and return its length.
+     */
+    private long startWindow(boolean scan) {
+        if (scan) {
+            mRadio.startScan(mLevel);
+            return SCAN_WINDOW_MS[mLevel] + randomJitter();
+        } else {
+            mRadio.startAdvertising(mLevel);
+            return ADVERTISE_WINDOW_MS[mLevel] + randomJitter();
+        }
+    }
+
+    private void stopWindow(boolean scan) {
+        if (scan) {
+            mRadio.stopScan();
+        } else {
+            mRadio.stopAdvertising();
+        }
+    }
+
+    /**
+     * Escalate or back off after a round, and return the gap before the next one.
+     */
+    private long endRound() {
+        if (!mFoundInRound && (mSearchStartMs < 0)) {
+            // The peer found is gone, a new search started with this round
+            mSearchStartMs = mRoundStartMs;
+        }
+        mFoundInRound = false;
+
+        mRoundsWithoutPeer++;
+        if (mRoundsWithoutPeer >= ROUNDS_PER_LEVEL) {
+            mRoundsWithoutPeer = 0;
+            if (mLevel < LEVEL_HIGH) {
+                mLevel++;
+            } else {
+                // Nobody around: climb again from the lowest level, backing off further
+                mLevel = LEVEL_LOW;
+                mIdleGapMs = (mIdleGapMs == 0) ? GAP_MS[LEVEL_LOW]
+                        : Math.min(2 * mIdleGapMs, MAX_IDLE_GAP_MS);
+            }
+        }
+        return GAP_MS[mLevel] + mIdleGapMs + randomJitter();
+    }
+
+    private long randomJitter() {
+        return (long) (mRandom.nextDouble() * JITTER_MS);
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Return the number of searches which found a peer, the latency statistics are theirs.
+     */
+    public synchronized int getDiscoveryCount() {
+        return mDiscoveryCount;
+    }
+
+    public synchronized long getMeanLatencyMs() {
+        return (mDiscoveryCount > 0) ? mTotalLatencyMs / mDiscoveryCount : 0;
+    }
+
+    public synchronized long getMinLatencyMs() {
+        return (mDiscoveryCount > 0) ? mMinLatencyMs : 0;
+    }
+
+    public synchronized long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+}
@@ -0,0 +1,390 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Frames of a WAV file encoded once for a stream format, so streaming the file costs no
+ * encoding.
+ *
+ * The PCM of the file is split in segments encoded in parallel, each by its own codec: every
+ * coded frame decodes on its own (see {@link AudioCodec}), so segments need nothing from each
+ * other. The frames are stored next to the source file, behind a header describing the format
+ * and the source they come from. All frames of a format have the same coded size, so the
+ * frame index gives the position of a frame in the file and seeking is free.
+ *
+ * Encoding is an offline step, see {@link #build}, run away from the audio threads: a stream
+ * only opens a cache already built, see {@link #openCached}.
+ *
+ * Header (little endian): [magic:4][version:4][codec:4][sampleRate:4][channels:4]
+ * [frameSize:4][encodedFrameSize:4][frameCount:4][sourceLength:8][sourceModified:8].
+ */
+public class EncodedFileCache {
+    private final static String TAG = EncodedFileCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x43454142;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    // Frames encoded by each task
+    private static final int SEGMENT_FRAMES = 256;
+
+    /**
+     * Location and format of the PCM data of a WAV file. A file without a RIFF header is
+     * taken as raw PCM.
+     */
+    public static class WavInfo {
+        private final long mDataOffset;
+        private final long mDataLength;
+        private final int mSampleRate;
+        private final int mChannels;
+
+        private WavInfo(long dataOffset, long dataLength, int sampleRate, int channels) {
+            mDataOffset = dataOffset;
+            mDataLength = dataLength;
+            mSampleRate = sampleRate;
+            mChannels = channels;
+        }
+
+        public long getDataOffset() {
+            return mDataOffset;
+        }
+
+        public long getDataLength() {
+            return mDataLength;
+        }
+
+        /**
+         * Return the sample rate, 0 for raw PCM.
+         */
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        /**
+         * Return the number of channels, 0 for raw PCM.
+         */
+        public int getChannels() {
+            return mChannels;
+        }
+
+        /**
+         * Return true if the PCM data can be streamed with the given profile.
+         */
+        public boolean matches(AudioProfile profile) {
+            return (mSampleRate == 0)
+                    || ((mSampleRate == profile.getSampleRate())
+                    && (mChannels == profile.getChannelCount()));
+        }
+
+        /**
+         * Parse the header of a file.
+         *
+         * @throws IOException If the file is a WAV file, but not 16 bit PCM
+         */
+        public static WavInfo read(File file) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                if ((readFully(channel, header, 0) < 12) || (header.getInt(0) != 0x46464952)
+                        || (header.getInt(8) != 0x45564157)) {
+                    // No "RIFF....WAVE" header
+                    return new WavInfo(0, size, 0, 0);
+                }
+
+                int sampleRate = 0;
+                int channels = 0;
+                long position = 12;
+                ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                while (readFully(channel, (ByteBuffer) chunk.clear(), position) == 8) {
+                    int id = chunk.getInt(0);
+                    long length = chunk.getInt(4) & 0xffffffffL;
+                    if (id == 0x20746d66) {
+                        // "fmt ": format, channels, sample rate, ..., bits per sample
+                        ByteBuffer format = ByteBuffer.allocate(16)
+                                .order(ByteOrder.LITTLE_ENDIAN);
+                        readFully(channel, format, position + 8);
+                        if ((format.getShort(0) != 1) || (format.getShort(14) != 16)) {
+                            throw new IOException("Not a 16 bit PCM WAV file");
+                        }
+                        channels = format.getShort(2);
+                        sampleRate = format.getInt(4);
+                    } else if (id == 0x61746164) {
+                        // "data"
+                        long offset = position + 8;
+                        return new WavInfo(offset, Math.min(length, size - offset), sampleRate,
+                                channels);
+                    }
+                    // Chunks are padded to an even size
+                    position += 8 + length + (length & 1);
+                }
+                throw new IOException("No data in WAV file");
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the frames of a cache file, in order from any frame.
+     */
+    public static class Reader {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final int mFrameCount;
+        private final int mEncodedFrameSize;
+        private int mNext;
+
+        private Reader(RandomAccessFile file, int frameCount, int encodedFrameSize) {
+            mFile = file;
+            mChannel = file.getChannel();
+            mFrameCount = frameCount;
+            mEncodedFrameSize = encodedFrameSize;
+        }
+
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        public int getEncodedFrameSize() {
+            return mEncodedFrameSize;
+        }
+
+        /**
+         * Return the index of the next frame read.
+         */
+        public int getPosition() {
+            return mNext;
+        }
+
+        /**
+         * Move to a frame, clamped to the frames of the file.
+         */
+        public void seek(int frameIndex) {
+            mNext = Math.max(0, Math.min(frameIndex, mFrameCount));
+        }
+
+        /**
+         * Read the next frame to the start of the buffer.
+         *
+         * @return The size of the frame, or -1 after the last frame
+         */
+        public int read(ByteBuffer buffer) throws IOException {
+            if (mNext >= mFrameCount) {
+                return -1;
+            }
+            buffer.clear().limit(mEncodedFrameSize);
+            long position = HEADER_SIZE + (long) mNext * mEncodedFrameSize;
+            if (readFully(mChannel, buffer, position) < mEncodedFrameSize) {
+                throw new IOException("Cache file truncated");
+            }
+            mNext++;
+            return mEncodedFrameSize;
+        }
+
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Return the cache file of a source file for a stream format.
+     */
+    public static File getCacheFile(File source, AudioProfile profile) {
+        return new File(source.getPath() + "." + profile.getCodec() + "-"
+                + profile.getSampleRate() + "-" + profile.getChannelCount() + "-"
+                + profile.getFrameDurationMs() + ".frames");
+    }
+
+    /**
+     * Open the frames of a source file coded for a stream format, if they are cached and
+     * not older than the source. Never encodes.
+     *
+     * @return The reader, or null if there is no valid cache
+     */
+    public static Reader openCached(File source, AudioProfile profile) throws IOException {
+        File cache = getCacheFile(source, profile);
+        if (!cache.exists()) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(cache, "r");
+        Reader reader = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int frameSize = profile.getFrameSize();
+            int encodedFrameSize = profile.createCodec().getEncodedFrameSize();
+            boolean valid = (readFully(file.getChannel(), header, 0) == HEADER_SIZE)
+                    && (header.getInt(0) == MAGIC) && (header.getInt(4) == VERSION)
+                    && (header.getInt(8) == profile.getCodec())
+                    && (header.getInt(12) == profile.getSampleRate())
+                    && (header.getInt(16) == profile.getChannelCount())
+                    && (header.getInt(20) == frameSize)
+                    && (header.getInt(24) == encodedFrameSize)
+                    && (header.getLong(32) == source.length())
+                    && (header.getLong(40) == source.lastModified());
+            int frameCount = header.getInt(28);
+            if (!valid
+                    || (file.length() < HEADER_SIZE + (long) frameCount * encodedFrameSize)) {
+                Log.i(TAG, "Cache " + cache.getName() + " is stale");
+                return null;
+            }
+            reader = new Reader(file, frameCount, encodedFrameSize);
+            return reader;
+        } finally {
+            if (reader == null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Encode the frames of a source file for a stream format, if the cache is missing or
+     * older than the source. Takes as long as encoding the whole file.
+     *
+     * @return True if the cache is built, false if the file cannot be streamed with the
+     * profile
+     */
+    public static boolean build(File source, AudioProfile profile) throws IOException {
+        Reader reader = openCached(source, profile);
+        if (reader != null) {
+            reader.close();
+            return true;
+        }
+        WavInfo wav = WavInfo.read(source);
+        if (!wav.matches(profile)) {
+            Log.e(TAG, "File format " + wav.getSampleRate() + "Hz " + wav.getChannels()
+                    + "ch does not match " + profile);
+            return false;
+        }
+        long startUs = ClockSync.now();
+        encode(source, wav, profile, getCacheFile(source, profile));
+        Log.i(TAG, "Encoded " + source.getName() + " in " + (ClockSync.now() - startUs) / 1000
+                + "ms");
+        return true;
+    }
+
+    /**
+     * Encode the PCM data of a source file to a cache file, a segment per task on all the
+     * cores. The cache file only appears once complete.
+     */
+    public static void encode(final File source, final WavInfo wav, final AudioProfile profile,
+                              File cache) throws IOException {
+        final int frameSize = profile.getFrameSize();
+        final int encodedFrameSize = profile.createCodec().getEncodedFrameSize();
+        final int frameCount = (int) ((wav.getDataLength() + frameSize - 1) / frameSize);
+
+        File temp = new File(cache.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        FileInputStream in = new FileInputStream(source);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            out.setLength(HEADER_SIZE + (long) frameCount * encodedFrameSize);
+            // Positional accesses, all the tasks share the channels
+            final FileChannel input = in.getChannel();
+            final FileChannel output = out.getChannel();
+
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int first = 0; first < frameCount; first += SEGMENT_FRAMES) {
+                final int start = first;
+                final int end = Math.min(first + SEGMENT_FRAMES, frameCount);
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        encodeSegment(input, wav, profile, output, start, end);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(profile.getCodec())
+                    .putInt(profile.getSampleRate()).putInt(profile.getChannelCount())
+                    .putInt(frameSize).putInt(encodedFrameSize).putInt(frameCount)
+                    .putLong(source.length()).putLong(source.lastModified());
+            header.flip();
+            while (header.hasRemaining()) {
+                output.write(header, header.position());
+            }
+            output.force(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Encoding interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Encoding failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            in.close();
+            out.close();
+        }
+        if (!temp.renameTo(cache)) {
+            temp.delete();
+            throw new IOException("Cannot write " + cache);
+        }
+    }
+
+    private static void encodeSegment(FileChannel input, WavInfo wav, AudioProfile profile,
+                                      FileChannel output, int start, int end)
+            throws IOException {
+        AudioCodec codec = profile.createCodec();
+        int frameSize = profile.getFrameSize();
+        int encodedFrameSize = codec.getEncodedFrameSize();
+        ByteBuffer pcm = ByteBuffer.allocate(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] encoded = new byte[encodedFrameSize];
+        ByteBuffer encodedBuffer = ByteBuffer.wrap(encoded);
+
+        for (int i = start; i < end; i++) {
+            long offset = (long) i * frameSize;
+            pcm.clear().limit((int) Math.min(frameSize, wav.getDataLength() - offset));
+            int count = readFully(input, pcm, wav.getDataOffset() + offset);
+            // The tail of the file is padded with silence to a whole frame
+            pcm.limit(frameSize);
+            for (int j = count; j < frameSize; j++) {
+                pcm.put(j, (byte) 0);
+            }
+            codec.encode(pcm, encoded, 0);
+
+            encodedBuffer.clear();
+            long position = HEADER_SIZE + (long) i * encodedFrameSize;
+            while (encodedBuffer.hasRemaining()) {
+                output.write(encodedBuffer, position + encodedBuffer.position());
+            }
+        }
+    }
+
+    /**
+     * Read from a position until the buffer is full or the file ends.
+     *
+     * @return The number of bytes read
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + buffer.position() - start);
+            if (count < 0) {
+                break;
+            }
+        }
+        return buffer.position() - start;
+    }
+}
@@ -0,0 +1,233 @@
+package com.nxp.android.bleaudio;
+
+import java.util.ArrayList;
+
+/**
+ * Rebuilds the audio packets lost on the link from the parity made by {@link FecEncoder}.
+ *
+ * Until a parity packet is seen, audio packets are handed over as they come. Once the stream
+ * is known to carry parity, packets are held until the parity of their group arrives: a
+ * single packet missing from the group is rebuilt, then the whole group is handed over in
+ * order, so the {@link Reassembler} sees a continuous stream. This costs the duration of a
+ * group in latency. When parity packets get lost too, packets held for more than two groups,
+ * of the size the parity announces, are handed over without protection.
+ */
+public class FecDecoder {
+
+    /**
+     * Receives the audio packets, in order.
+     */
+    public interface PacketListener {
+        void onPacket(long ptsUs, int frameOffset, byte[] payload, int offset, int length);
+    }
+
+    static final int PARITY_HEADER_SIZE = 5;
+    private static final int ENTRY_SIZE = StreamProtocol.AUDIO_HEADER_SIZE;
+    private static final int MAX_HELD = 2 * FecEncoder.MAX_GROUP_SIZE;
+
+    private static class Packet {
+        long mPtsUs;
+        int mFrameOffset;
+        byte[] mData = new byte[0];
+        int mLength;
+    }
+
+    private final PacketListener mListener;
+    // Packets held in arrival order, and spare ones to reuse
+    private final ArrayList<Packet> mHeld = new ArrayList<Packet>();
+    private final ArrayList<Packet> mFree = new ArrayList<Packet>();
+    private boolean mActive;
+    // Size of the groups of the stream, from their parity
+    private int mGroupSize;
+    // Time stamp of the last packet handed over, and of the latest ones, oldest first
+    private long mReleasedPtsUs = Long.MIN_VALUE;
+    private final long[] mRecentPtsUs = new long[MAX_HELD];
+    private int mRecentCount;
+    private int mRecentIndex;
+
+    private long mRecoveredPackets;
+    private long mLostPackets;
+
+    public FecDecoder(PacketListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add an audio packet received.
+     */
+    public void push(long ptsUs, int frameOffset, byte[] payload, int offset, int length) {
+        if (!mActive) {
+            noteReleased(ptsUs);
+            mListener.onPacket(ptsUs, frameOffset, payload, offset, length);
+            return;
+        }
+        while (mHeld.size() >= 2 * mGroupSize) {
+            // The parity of the oldest group never came
+            release(mHeld.get(0).mPtsUs);
+        }
+        hold(mHeld.size(), ptsUs, frameOffset, payload, offset, length);
+    }
+
+    /**
+     * Add a parity packet received: rebuild the packet missing from its group, if any, and
+     * hand the group over.
+     */
+    public void pushParity(byte[] payload, int offset, int length) {
+        int count = payload[offset] & 0xff;
+        int maxLength = ((payload[offset + 1] & 0xff) << 8) | (payload[offset + 2] & 0xff);
+        int lengthXor = ((payload[offset + 3] & 0xff) << 8) | (payload[offset + 4] & 0xff);
+        int xorOffset = offset + PARITY_HEADER_SIZE + ENTRY_SIZE * count;
+        if ((count == 0) || (count > FecEncoder.MAX_GROUP_SIZE)
+                || (xorOffset + maxLength > offset + length)) {
+            return;
+        }
+        mActive = true;
+        // Partial groups close the stream, or its coding, the largest one is the group size
+        mGroupSize = Math.max(mGroupSize, count);
+
+        long missingPtsUs = 0;
+        int missingFrameOffset = StreamProtocol.NO_FRAME_START;
+        int missing = 0;
+        boolean late = false;
+        long lastPtsUs = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int entry = offset + PARITY_HEADER_SIZE + ENTRY_SIZE * i;
+            long ptsUs = StreamProtocol.getLong(payload, entry);
+            lastPtsUs = Math.max(lastPtsUs, ptsUs);
+            // Part of the group may have been handed over before the parity came
+            late |= (ptsUs <= mReleasedPtsUs);
+            Packet packet = find(ptsUs);
+            if (packet == null) {
+                if ((ptsUs <= mReleasedPtsUs) && wasReleased(ptsUs)) {
+                    // Handed over before the parity came
+                    continue;
+                }
+                missingPtsUs = ptsUs;
+                missingFrameOffset = StreamProtocol.getShort(payload, entry + 8);
+                missing++;
+            } else {
+                lengthXor ^= packet.mLength;
+            }
+        }
+        if (late) {
+            // The packets handed over are gone, nothing missing can be rebuilt
+            mLostPackets += missing;
+            release(lastPtsUs);
+            return;
+        }
+
+        if (missing == 1) {
+            rebuild(missingPtsUs, missingFrameOffset, payload, offset, count, xorOffset,
+                    maxLength, lengthXor);
+            mRecoveredPackets++;
+        } else {
+            mLostPackets += missing;
+        }
+        release(lastPtsUs);
+    }
+
+    private void rebuild(long ptsUs, int frameOffset, byte[] payload, int offset, int count,
+                         int xorOffset, int maxLength, int length) {
+        if (length > maxLength) {
+            return;
+        }
+        // Keep the packets in time stamp order
+        int index = 0;
+        while ((index < mHeld.size()) && (mHeld.get(index).mPtsUs < ptsUs)) {
+            index++;
+        }
+        Packet packet = hold(index, ptsUs, frameOffset, payload, xorOffset, maxLength);
+        packet.mLength = length;
+        for (int i = 0; i < count; i++) {
+            Packet other = find(StreamProtocol.getLong(payload,
+                    offset + PARITY_HEADER_SIZE + ENTRY_SIZE * i));
+            if (other != packet) {
+                for (int j = 0; j < other.mLength; j++) {
+                    packet.mData[j] ^= other.mData[j];
+                }
+            }
+        }
+    }
+
+    private Packet hold(int index, long ptsUs, int frameOffset, byte[] payload, int offset,
+                        int length) {
+        Packet packet = mFree.isEmpty() ? new Packet() : mFree.remove(mFree.size() - 1);
+        if (packet.mData.length < length) {
+            packet.mData = new byte[length];
+        }
+        System.arraycopy(payload, offset, packet.mData, 0, length);
+        packet.mPtsUs = ptsUs;
+        packet.mFrameOffset = frameOffset;
+        packet.mLength = length;
+        mHeld.add(index, packet);
+        return packet;
+    }
+
+    private Packet find(long ptsUs) {
+        for (Packet packet : mHeld) {
+            if (packet.mPtsUs == ptsUs) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hand over the packets held up to the given time stamp.
+     */
+    private void release(long untilPtsUs) {
+        while (!mHeld.isEmpty() && (mHeld.get(0).mPtsUs <= untilPtsUs)) {
+            Packet packet = mHeld.remove(0);
+            noteReleased(packet.mPtsUs);
+            mListener.onPacket(packet.mPtsUs, packet.mFrameOffset, packet.mData, 0,
+                    packet.mLength);
+            mFree.add(packet);
+        }
+    }
+
+    private void noteReleased(long ptsUs) {
+        mReleasedPtsUs = ptsUs;
+        mRecentPtsUs[mRecentIndex] = ptsUs;
+        mRecentIndex = (mRecentIndex + 1) % mRecentPtsUs.length;
+        mRecentCount = Math.min(mRecentCount + 1, mRecentPtsUs.length);
+    }
+
+    /**
+     * Return whether a packet of the given time stamp was handed over lately.
+     */
+    private boolean wasReleased(long ptsUs) {
+        for (int i = 0; i < mRecentCount; i++) {
+            if (mRecentPtsUs[i] == ptsUs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand over all the packets held, before the coding of the stream changes.
+     */
+    public void flush() {
+        release(Long.MAX_VALUE);
+    }
+
+    public long getRecoveredPackets() {
+        return mRecoveredPackets;
+    }
+
+    /**
+     * Return the number of packets lost which could not be rebuilt, in groups missing more
+     * than one packet or whose parity came after part of the group was handed over.
+     */
+    public long getLostPackets() {
+        return mLostPackets;
+    }
+
+    /**
+     * Return the share of the lost packets which were rebuilt.
+     */
+    public float getRecoveryRatio() {
+        long total = mRecoveredPackets + mLostPackets;
+        return (total > 0) ? (float) mRecoveredPackets / total : 1;
+    }
+}
@@ -0,0 +1,120 @@
+package com.nxp.android.bleaudio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Protects the audio packets with XOR parity, so the receiver can rebuild a lost packet
+ * without a retransmission, see {@link FecDecoder}.
+ *
+ * After every group of k audio packets, a parity packet carries the XOR of their payloads
+ * and lengths, and the audio headers of the packets of the group. Any single packet lost in a
+ * group can be rebuilt, for an overhead of one packet in k+1. A partial group is closed with
+ * its parity when the stream is flushed.
+ *
+ * Parity payload: [k:1][maxLength:2][xorLength:2][k audio headers:10 each][XOR of the payloads],
+ * an audio header being the time stamp and frame offset of the packet.
+ */
+public class FecEncoder {
+
+    public static final int MAX_GROUP_SIZE = 15;
+
+    private static final int PARITY_HEADER_SIZE = 5;
+    private static final int ENTRY_SIZE = StreamProtocol.AUDIO_HEADER_SIZE;
+
+    private final StreamProtocol.Writer mWriter;
+    private final int mGroupSize;
+    private final byte[] mParity;
+    private final long[] mPtsUs;
+    private final int[] mFrameOffsets;
+
+    private int mCount;
+    private int mMaxLength;
+    private int mXorLength;
+
+    private long mAudioBytes;
+    private long mParityBytes;
+
+    /**
+     * @param writer     Writer of the connection
+     * @param groupSize  Number of audio packets protected by each parity packet
+     * @param maxPayload Largest audio payload of the stream
+     */
+    public FecEncoder(StreamProtocol.Writer writer, int groupSize, int maxPayload) {
+        mWriter = writer;
+        mGroupSize = groupSize;
+        mPtsUs = new long[groupSize];
+        mFrameOffsets = new int[groupSize];
+        mParity = new byte[PARITY_HEADER_SIZE + ENTRY_SIZE * groupSize + maxPayload];
+    }
+
+    /**
+     * Return how much larger a parity packet is than the audio packets it protects, for the
+     * packetizer to leave room for it under the MTU.
+     */
+    public static int getParityOverhead(int groupSize) {
+        return PARITY_HEADER_SIZE + ENTRY_SIZE * groupSize - StreamProtocol.AUDIO_HEADER_SIZE;
+    }
+
+    /**
+     * Add an audio packet just sent to the current group.
+     */
+    public void add(long ptsUs, int frameOffset, byte[] payload, int offset, int length)
+            throws IOException {
+        int base = PARITY_HEADER_SIZE + ENTRY_SIZE * mGroupSize;
+        for (int i = 0; i < length; i++) {
+            mParity[base + i] ^= payload[offset + i];
+        }
+        mPtsUs[mCount] = ptsUs;
+        mFrameOffsets[mCount++] = frameOffset;
+        mMaxLength = Math.max(mMaxLength, length);
+        mXorLength ^= length;
+        mAudioBytes += StreamProtocol.HEADER_SIZE + StreamProtocol.AUDIO_HEADER_SIZE + length;
+
+        if (mCount == mGroupSize) {
+            sendParity();
+        }
+    }
+
+    /**
+     * Close the current group, at the end of the stream or before its coding changes.
+     */
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            sendParity();
+        }
+    }
+
+    private void sendParity() throws IOException {
+        mParity[0] = (byte) mCount;
+        mParity[1] = (byte) (mMaxLength >> 8);
+        mParity[2] = (byte) mMaxLength;
+        mParity[3] = (byte) (mXorLength >> 8);
+        mParity[4] = (byte) mXorLength;
+        for (int i = 0; i < mCount; i++) {
+            StreamProtocol.putLong(mParity, PARITY_HEADER_SIZE + ENTRY_SIZE * i, mPtsUs[i]);
+            StreamProtocol.putShort(mParity, PARITY_HEADER_SIZE + ENTRY_SIZE * i + 8,
+                    mFrameOffsets[i]);
+        }
+        // The XOR of a partial group is moved down against its audio headers
+        int base = PARITY_HEADER_SIZE + ENTRY_SIZE * mGroupSize;
+        int ptsEnd = PARITY_HEADER_SIZE + ENTRY_SIZE * mCount;
+        System.arraycopy(mParity, base, mParity, ptsEnd, mMaxLength);
+        int length = ptsEnd + mMaxLength;
+        mWriter.write(StreamProtocol.TYPE_FEC_PARITY, mParity, 0, length);
+        mParityBytes += StreamProtocol.HEADER_SIZE + length;
+
+        Arrays.fill(mParity, ptsEnd, base + mMaxLength, (byte) 0);
+        mCount = 0;
+        mMaxLength = 0;
+        mXorLength = 0;
+    }
+
+    /**
+     * Return the share of the airtime taken by parity.
+     */
+    public float getOverheadRatio() {
+        long total = mAudioBytes + mParityBytes;
+        return (total > 0) ? (float) mParityBytes / total : 0;
+    }
+}
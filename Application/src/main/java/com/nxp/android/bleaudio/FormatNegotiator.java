@@ -0,0 +1,329 @@
+package com.nxp.android.bleaudio;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Agrees on the stream format right after a connection is made.
+ *
+ * The sender announces what it can capture and code, the quality it requires and the frame
+ * duration it would like (see {@link StreamProtocol#TYPE_HELLO}). The receiver crosses that
+ * with what it can decode and play, picks the configuration which costs the least bandwidth
+ * while meeting the quality, and answers with it (see {@link StreamProtocol#TYPE_FORMAT}).
+ * Both ends then stream with the chosen format, whatever profile each of them selected.
+ */
+public class FormatNegotiator {
+    private final static String TAG = FormatNegotiator.class.getSimpleName();
+
+    private static final int VERSION = 1;
+
+    private static final int[] SAMPLE_RATES = {16000, 32000, 44100, 48000};
+    private static final int[] FRAME_DURATIONS_MS = {5, 10, 20};
+
+    private static final int NO_FORMAT = 0xff;
+    // Size of the fixed part of the announce, and of the answer
+    private static final int HELLO_SIZE = 8;
+    private static final int FORMAT_SIZE = 9;
+
+    /**
+     * What one end supports.
+     */
+    public static class Capabilities {
+        private int mCodecMask;
+        private int mChannelMask;
+        private int mMtu;
+        private final List<Integer> mSampleRates = new ArrayList<Integer>();
+        private final List<Integer> mFrameDurations = new ArrayList<Integer>();
+
+        /**
+         * Return what this device supports.
+         *
+         * @param capture True for the sender, to check the capture side rather than playback
+         * @param mtu     Largest packet this end can transmit
+         * @param session Profile of the session already playing, whose sample rate and channel
+         *                count are then imposed, or null
+         */
+        public static Capabilities local(boolean capture, int mtu, AudioProfile session) {
+            Capabilities caps = new Capabilities();
+            caps.mCodecMask = (1 << AudioProfile.CODEC_PCM) | (1 << AudioProfile.CODEC_IMA_ADPCM);
+            caps.mMtu = Math.min(mtu, StreamProtocol.MAX_PAYLOAD_SIZE);
+            if (session != null) {
+                caps.mChannelMask = 1 << session.getChannelCount();
+                caps.mSampleRates.add(session.getSampleRate());
+            } else {
+                caps.mChannelMask = (1 << 1) | (1 << 2);
+                for (int rate : SAMPLE_RATES) {
+                    int size = capture
+                            ? AudioRecord.getMinBufferSize(rate, AudioFormat.CHANNEL_IN_STEREO,
+                                    AudioFormat.ENCODING_PCM_16BIT)
+                            : AudioTrack.getMinBufferSize(rate, AudioFormat.CHANNEL_OUT_STEREO,
+                                    AudioFormat.ENCODING_PCM_16BIT);
+                    if (size > 0) {
+                        caps.mSampleRates.add(rate);
+                    }
+                }
+            }
+            for (int duration : FRAME_DURATIONS_MS) {
+                caps.mFrameDurations.add(duration);
+            }
+            return caps;
+        }
+    }
+
+    /**
+     * The configuration agreed on.
+     */
+    public static class Format {
+        private final int mCodec;
+        private final int mSampleRate;
+        private final int mChannelCount;
+        private final int mFrameDurationMs;
+        private final int mMtu;
+
+        private Format(int codec, int sampleRate, int channelCount, int frameDurationMs, int mtu) {
+            mCodec = codec;
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mFrameDurationMs = frameDurationMs;
+            mMtu = mtu;
+        }
+
+        /**
+         * Return the largest packet both ends can handle.
+         */
+        public int getMtu() {
+            return mMtu;
+        }
+
+        /**
+         * Return the given profile, streaming with this format.
+         */
+        public AudioProfile applyTo(AudioProfile profile) {
+            return new AudioProfile.Builder(profile.getName(), profile)
+                    .setCodec(mCodec)
+                    .setSampleRate(mSampleRate)
+                    .setChannelCount(mChannelCount)
+                    .setFrameDurationMs(mFrameDurationMs)
+                    .build();
+        }
+
+        @Override
+        public String toString() {
+            return (mCodec == AudioProfile.CODEC_IMA_ADPCM ? "IMA ADPCM " : "PCM ") + mSampleRate
+                    + "Hz " + mChannelCount + "ch " + mFrameDurationMs + "ms, MTU " + mMtu;
+        }
+    }
+
+    /**
+     * Run the sender side: announce, then wait for the receiver decision.
+     */
+    public static Format negotiateAsSender(StreamProtocol.Reader reader,
+                                           StreamProtocol.Writer writer, Capabilities local,
+                                           AudioProfile profile) throws IOException {
+        byte[] hello = new byte[HELLO_SIZE + 4 * local.mSampleRates.size()
+                + local.mFrameDurations.size()];
+        int pos = 0;
+        hello[pos++] = (byte) VERSION;
+        hello[pos++] = (byte) profile.getQuality();
+        hello[pos++] = (byte) profile.getFrameDurationMs();
+        hello[pos++] = (byte) local.mCodecMask;
+        hello[pos++] = (byte) local.mChannelMask;
+        hello[pos++] = (byte) (local.mMtu >> 8);
+        hello[pos++] = (byte) local.mMtu;
+        hello[pos++] = (byte) local.mSampleRates.size();
+        for (int rate : local.mSampleRates) {
+            StreamProtocol.putInt(hello, pos, rate);
+            pos += 4;
+        }
+        for (int duration : local.mFrameDurations) {
+            hello[pos++] = (byte) duration;
+        }
+        writer.write(StreamProtocol.TYPE_HELLO, hello, 0, pos);
+
+        expect(reader, StreamProtocol.TYPE_FORMAT);
+        byte[] buffer = reader.getBuffer();
+        int offset = reader.getPayloadOffset();
+        int length = reader.getPayloadLength();
+        if ((length > 0) && ((buffer[offset] & 0xff) == NO_FORMAT)) {
+            throw new IOException("No common stream format");
+        }
+        if (length < FORMAT_SIZE) {
+            throw new IOException("Stream format truncated, " + length + " bytes");
+        }
+        return new Format(buffer[offset] & 0xff, StreamProtocol.getInt(buffer, offset + 2),
+                buffer[offset + 1] & 0xff, buffer[offset + 6] & 0xff,
+                ((buffer[offset + 7] & 0xff) << 8) | (buffer[offset + 8] & 0xff));
+    }
+
+    /**
+     * Run the receiver side: wait for the announce, then decide and answer.
+     */
+    public static Format negotiateAsReceiver(StreamProtocol.Reader reader,
+                                             StreamProtocol.Writer writer, Capabilities local)
+            throws IOException {
+        expect(reader, StreamProtocol.TYPE_HELLO);
+        byte[] buffer = reader.getBuffer();
+        int pos = reader.getPayloadOffset();
+        int end = pos + reader.getPayloadLength();
+        if (end - pos < HELLO_SIZE) {
+            writer.write(StreamProtocol.TYPE_FORMAT, new byte[] {(byte) NO_FORMAT}, 0, 1);
+            throw new IOException("Announce truncated, " + (end - pos) + " bytes");
+        }
+        if ((buffer[pos++] & 0xff) != VERSION) {
+            writer.write(StreamProtocol.TYPE_FORMAT, new byte[] {(byte) NO_FORMAT}, 0, 1);
+            throw new IOException("Unsupported handshake version");
+        }
+        int quality = buffer[pos++] & 0xff;
+        int preferredDuration = buffer[pos++] & 0xff;
+        Capabilities remote = new Capabilities();
+        remote.mCodecMask = buffer[pos++] & 0xff;
+        remote.mChannelMask = buffer[pos++] & 0xff;
+        remote.mMtu = ((buffer[pos] & 0xff) << 8) | (buffer[pos + 1] & 0xff);
+        pos += 2;
+        int rateCount = buffer[pos++] & 0xff;
+        if (pos + 4 * rateCount > end) {
+            writer.write(StreamProtocol.TYPE_FORMAT, new byte[] {(byte) NO_FORMAT}, 0, 1);
+            throw new IOException("Announce truncated, " + rateCount + " sample rates in "
+                    + (end - pos) + " bytes");
+        }
+        for (int i = 0; i < rateCount; i++) {
+            remote.mSampleRates.add(StreamProtocol.getInt(buffer, pos));
+            pos += 4;
+        }
+        while (pos < end) {
+            remote.mFrameDurations.add(buffer[pos++] & 0xff);
+        }
+
+        Format format = select(remote, local, quality, preferredDuration);
+        if (format == null) {
+            writer.write(StreamProtocol.TYPE_FORMAT, new byte[] {(byte) NO_FORMAT}, 0, 1);
+            throw new IOException("No common stream format");
+        }
+
+        byte[] answer = new byte[FORMAT_SIZE];
+        answer[0] = (byte) format.mCodec;
+        answer[1] = (byte) format.mChannelCount;
+        StreamProtocol.putInt(answer, 2, format.mSampleRate);
+        answer[6] = (byte) format.mFrameDurationMs;
+        answer[7] = (byte) (format.mMtu >> 8);
+        answer[8] = (byte) format.mMtu;
+        writer.write(StreamProtocol.TYPE_FORMAT, answer, 0, answer.length);
+        return format;
+    }
+
+    /**
+     * Pick the cheapest configuration supported by both ends which meets the quality, with
+     * the preferred frame duration when possible. When nothing meets the quality, the best
+     * configuration available is picked instead.
+     *
+     * @return The configuration, or null if the ends have nothing in common
+     */
+    public static Format select(Capabilities sender, Capabilities receiver, int quality,
+                                int preferredDuration) {
+        Format format = select(sender, receiver, quality, preferredDuration, true);
+        if (format == null) {
+            // Frames of the preferred duration are not possible, take any common duration
+            format = select(sender, receiver, quality, preferredDuration, false);
+        }
+        if (format == null) {
+            Log.w(TAG, "Quality " + quality + " not reachable, streaming with the best available");
+            format = select(sender, receiver, AudioProfile.QUALITY_ANY, preferredDuration, false);
+        }
+        return format;
+    }
+
+    private static Format select(Capabilities sender, Capabilities receiver, int quality,
+                                 int preferredDuration, boolean preferredOnly) {
+        int codecMask = sender.mCodecMask & receiver.mCodecMask;
+        int channelMask = sender.mChannelMask & receiver.mChannelMask;
+        int mtu = Math.min(sender.mMtu, receiver.mMtu);
+
+        Format best = null;
+        int bestCost = Integer.MAX_VALUE;
+        int bestRichness = 0;
+        for (int codec = 0; codec < 8; codec++) {
+            if ((codecMask & (1 << codec)) == 0) {
+                continue;
+            }
+            for (int channels = 1; channels <= 2; channels++) {
+                if ((channelMask & (1 << channels)) == 0) {
+                    continue;
+                }
+                for (int rate : sender.mSampleRates) {
+                    if (!receiver.mSampleRates.contains(rate)
+                            || !meetsQuality(quality, codec, rate, channels)) {
+                        continue;
+                    }
+                    int duration = pickDuration(sender, receiver, rate, preferredDuration,
+                            preferredOnly);
+                    if (duration <= 0) {
+                        continue;
+                    }
+                    Format candidate = new Format(codec, rate, channels, duration, mtu);
+                    int cost = candidate.applyTo(AudioProfile.DEFAULT).getEncodedBytesPerSecond();
+                    int richness = rate * channels;
+                    // Cheapest first, then the richest when the quality is best effort
+                    boolean better = (quality == AudioProfile.QUALITY_ANY)
+                            ? (richness > bestRichness)
+                                    || ((richness == bestRichness) && (cost < bestCost))
+                            : (cost < bestCost);
+                    if (better) {
+                        best = candidate;
+                        bestCost = cost;
+                        bestRichness = richness;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static boolean meetsQuality(int quality, int codec, int rate, int channels) {
+        switch (quality) {
+            case AudioProfile.QUALITY_VOICE:
+                return rate >= 16000;
+            case AudioProfile.QUALITY_MUSIC:
+                return (rate >= 44100) && (channels == 2);
+            case AudioProfile.QUALITY_LOSSLESS:
+                return (rate >= 44100) && (channels == 2) && (codec == AudioProfile.CODEC_PCM);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Return the common frame duration closest to the preferred one holding a whole number
+     * of samples, or 0.
+     */
+    private static int pickDuration(Capabilities sender, Capabilities receiver, int rate,
+                                    int preferredDuration, boolean preferredOnly) {
+        int best = 0;
+        for (int duration : sender.mFrameDurations) {
+            if (!receiver.mFrameDurations.contains(duration) || ((rate * duration) % 1000 != 0)
+                    || (1000 % duration != 0)) {
+                continue;
+            }
+            if (preferredOnly && (duration != preferredDuration)) {
+                continue;
+            }
+            if ((best == 0) || (Math.abs(duration - preferredDuration)
+                    < Math.abs(best - preferredDuration))) {
+                best = duration;
+            }
+        }
+        return best;
+    }
+
+    private static void expect(StreamProtocol.Reader reader, int type) throws IOException {
+        int received = reader.read();
+        if (received != type) {
+            throw new IOException("Handshake: expected packet " + type + ", got " + received);
+        }
+    }
+}
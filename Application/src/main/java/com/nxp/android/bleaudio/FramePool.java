@@ -0,0 +1,154 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Fixed set of PCM frame buffers, allocated once and recycled, so audio moves between the
+ * capture, the link and the sinks without copies and without garbage.
+ *
+ * Frames are direct buffers in the native byte order of PCM 16 bit (little endian), which
+ * the platform reads and writes in place: {@code AudioRecord.read(ByteBuffer, int)},
+ * {@code FileChannel}. A frame is reference counted: each thread holding it retains it, and
+ * the last release gives it back to the pool.
+ */
+public class FramePool {
+
+    /**
+     * A PCM frame from the pool.
+     */
+    public static class Frame {
+        private final FramePool mPool;
+        private final ByteBuffer mBuffer;
+        private int mLength;
+        private long mPtsUs;
+        private boolean mEncoded;
+        private int mRefCount;
+
+        private Frame(FramePool pool, int frameSize) {
+            mPool = pool;
+            mBuffer = ByteBuffer.allocateDirect(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Return the PCM data. Position and limit are free for the holder to use, absolute
+         * accesses are preferred.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getCapacity() {
+            return mBuffer.capacity();
+        }
+
+        /**
+         * Return the number of valid bytes, from the start of the buffer.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        public void setLength(int length) {
+            mLength = length;
+        }
+
+        /**
+         * Return the presentation time of the first sample.
+         */
+        public long getPtsUs() {
+            return mPtsUs;
+        }
+
+        public void setPtsUs(long ptsUs) {
+            mPtsUs = ptsUs;
+        }
+
+        /**
+         * Return true if the frame holds a frame coded in the stream format instead of PCM,
+         * see {@link EncodedFileCache}.
+         */
+        public boolean isEncoded() {
+            return mEncoded;
+        }
+
+        public void setEncoded(boolean encoded) {
+            mEncoded = encoded;
+        }
+
+        /**
+         * Take one more reference, for another holder.
+         */
+        public void retain() {
+            synchronized (mPool) {
+                mRefCount++;
+            }
+        }
+
+        /**
+         * Drop a reference. The frame must not be used after its last reference is dropped.
+         */
+        public void release() {
+            mPool.recycle(this);
+        }
+    }
+
+    private final ArrayList<Frame> mFree;
+    private final int mSize;
+    private long mExhausted;
+
+    /**
+     * @param count     Number of frames
+     * @param frameSize Size of each frame, in bytes
+     */
+    public FramePool(int count, int frameSize) {
+        mSize = count;
+        mFree = new ArrayList<Frame>(count);
+        for (int i = 0; i < count; i++) {
+            mFree.add(new Frame(this, frameSize));
+        }
+    }
+
+    /**
+     * Take a frame from the pool, with a single reference.
+     *
+     * @return The frame, or null when all the frames are in use
+     */
+    public synchronized Frame acquire() {
+        if (mFree.isEmpty()) {
+            mExhausted++;
+            return null;
+        }
+        Frame frame = mFree.remove(mFree.size() - 1);
+        frame.mRefCount = 1;
+        frame.mLength = 0;
+        frame.mEncoded = false;
+        frame.mBuffer.clear();
+        return frame;
+    }
+
+    private synchronized void recycle(Frame frame) {
+        if (frame.mRefCount <= 0) {
+            throw new IllegalStateException("Frame released more than retained");
+        }
+        if (--frame.mRefCount == 0) {
+            mFree.add(frame);
+        }
+    }
+
+    public synchronized int getFreeCount() {
+        return mFree.size();
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Return the number of times a frame was requested while none was free.
+     */
+    public synchronized long getExhaustedCount() {
+        return mExhausted;
+    }
+}
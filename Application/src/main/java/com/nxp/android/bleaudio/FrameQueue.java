@@ -0,0 +1,144 @@
+package com.nxp.android.bleaudio;
+
+/**
+ * Bounded queue of PCM frames between the capture and the link, which keeps the audio fresh
+ * rather than complete.
+ *
+ * Frames older than the maximum age are dropped when they reach the head of the queue, and a
+ * frame added to a full queue drops the oldest one. Every frame coded on the link starts the
+ * decoder afresh and every packet tells where the frames start (see {@link AudioCodec}), so any
+ * frame can be dropped without resyncing the stream. Frames are queued by reference (see
+ * {@link FramePool}): the queue owns the reference handed to {@link #put}, and releases the
+ * frames it drops.
+ */
+public class FrameQueue {
+
+    private final FramePool.Frame[] mFrames;
+    private final long[] mQueuedUs;
+    private final long mMaxAgeUs;
+
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+    private long mLastWaitUs;
+
+    private long mQueuedFrames;
+    private long mDroppedFrames;
+
+    /**
+     * @param frameUs  Duration of a frame
+     * @param maxAgeUs Time a frame may wait before it is dropped
+     */
+    public FrameQueue(long frameUs, long maxAgeUs) {
+        mFrames = new FramePool.Frame[getCapacity(frameUs, maxAgeUs)];
+        mQueuedUs = new long[mFrames.length];
+        mMaxAgeUs = maxAgeUs;
+    }
+
+    /**
+     * Return the number of frames a queue holds at most: the frames captured during the
+     * maximum age, and the one being added.
+     */
+    public static int getCapacity(long frameUs, long maxAgeUs) {
+        return (int) ((maxAgeUs + frameUs - 1) / frameUs) + 1;
+    }
+
+    /**
+     * Add a frame, dropping the oldest one when the queue is full. The reference of the
+     * caller goes to the queue.
+     */
+    public synchronized void put(FramePool.Frame frame) {
+        if (mClosed) {
+            frame.release();
+            return;
+        }
+        if (mCount == mFrames.length) {
+            dropHead();
+        }
+        int tail = (mHead + mCount) % mFrames.length;
+        mFrames[tail] = frame;
+        mQueuedUs[tail] = ClockSync.now();
+        mCount++;
+        mQueuedFrames++;
+        notifyAll();
+    }
+
+    /**
+     * Block until a frame young enough is available, dropping the stale ones on the way. The
+     * reference of the queue goes to the caller.
+     *
+     * @return The frame, or null once the queue is closed and empty
+     */
+    public synchronized FramePool.Frame take() throws InterruptedException {
+        while (true) {
+            while ((mCount == 0) && !mClosed) {
+                wait();
+            }
+            if (mCount == 0) {
+                return null;
+            }
+            long waitUs = ClockSync.now() - mQueuedUs[mHead];
+            if (waitUs > mMaxAgeUs) {
+                dropHead();
+                continue;
+            }
+            FramePool.Frame frame = mFrames[mHead];
+            mFrames[mHead] = null;
+            mHead = (mHead + 1) % mFrames.length;
+            mCount--;
+            mLastWaitUs = waitUs;
+            return frame;
+        }
+    }
+
+    /**
+     * Return the time the last frame taken spent in the queue.
+     */
+    public synchronized long getLastWaitUs() {
+        return mLastWaitUs;
+    }
+
+    private void dropHead() {
+        mFrames[mHead].release();
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        mDroppedFrames++;
+    }
+
+    /**
+     * Refuse new frames. The frames queued can still be taken, then take returns null.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Release the frames queued and close the queue.
+     */
+    public synchronized void clear() {
+        while (mCount > 0) {
+            mFrames[mHead].release();
+            mFrames[mHead] = null;
+            mHead = (mHead + 1) % mFrames.length;
+            mCount--;
+        }
+        close();
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getQueuedFrames() {
+        return mQueuedFrames;
+    }
+
+    /**
+     * Return the number of frames dropped for being too old or for lack of room.
+     */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
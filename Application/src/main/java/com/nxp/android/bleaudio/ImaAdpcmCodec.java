@@ -0,0 +1,187 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * IMA ADPCM: 4 bits per sample, a quarter of the PCM bandwidth for a few operations per sample.
+ *
+ * Each frame starts with the state of the predictor of every channel (sample on 2 bytes, step
+ * index on 1 byte), followed by the nibbles of all the samples in the interleaved order, low
+ * nibble first. The encoder carries its state from frame to frame, and the decoder restarts
+ * from the header of every frame. An instance is used by a single thread.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private static final int CHANNEL_HEADER_SIZE = 3;
+
+    private final int mChannels;
+    private final int mSamples;
+    private final int mEncodedFrameSize;
+
+    // Encoder state, per channel
+    private final int[] mPredictor;
+    private final int[] mIndex;
+    // Decoder state, per channel
+    private final int[] mDecodePredictor;
+    private final int[] mDecodeIndex;
+
+    // Views of the last PCM arrays coded, so arrays and pooled buffers share one code path
+    private ByteBuffer mEncodeView;
+    private ByteBuffer mDecodeView;
+
+    /**
+     * @param channels        Number of interleaved channels
+     * @param samplesPerFrame Number of samples per channel in a frame
+     */
+    public ImaAdpcmCodec(int channels, int samplesPerFrame) {
+        mChannels = channels;
+        mSamples = samplesPerFrame * channels;
+        mEncodedFrameSize = CHANNEL_HEADER_SIZE * channels + (mSamples + 1) / 2;
+        mPredictor = new int[channels];
+        mIndex = new int[channels];
+        mDecodePredictor = new int[channels];
+        mDecodeIndex = new int[channels];
+    }
+
+    @Override
+    public int getEncodedFrameSize() {
+        return mEncodedFrameSize;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int offset, byte[] out, int outOffset) {
+        mEncodeView = view(mEncodeView, pcm);
+        return encode(mEncodeView, offset, out, outOffset);
+    }
+
+    @Override
+    public int encode(ByteBuffer pcm, byte[] out, int outOffset) {
+        return encode(pcm, 0, out, outOffset);
+    }
+
+    private int encode(ByteBuffer pcm, int offset, byte[] out, int outOffset) {
+        int pos = outOffset;
+        for (int c = 0; c < mChannels; c++) {
+            out[pos++] = (byte) mPredictor[c];
+            out[pos++] = (byte) (mPredictor[c] >> 8);
+            out[pos++] = (byte) mIndex[c];
+        }
+
+        for (int i = 0; i < mSamples; i++) {
+            int c = i % mChannels;
+            int sample = pcm.getShort(offset + 2 * i);
+            int step = STEP_TABLE[mIndex[c]];
+
+            int diff = sample - mPredictor[c];
+            int nibble = 0;
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+            }
+            if (diff >= (step >> 1)) {
+                nibble |= 2;
+                diff -= step >> 1;
+            }
+            if (diff >= (step >> 2)) {
+                nibble |= 1;
+            }
+
+            // Track the decoder, so both predictors stay in step
+            mPredictor[c] = predict(mPredictor[c], step, nibble);
+            mIndex[c] = nextIndex(mIndex[c], nibble);
+
+            if ((i & 1) == 0) {
+                out[pos] = (byte) nibble;
+            } else {
+                out[pos++] |= (byte) (nibble << 4);
+            }
+        }
+        return mEncodedFrameSize;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+        mDecodeView = view(mDecodeView, pcm);
+        return decode(data, offset, length, mDecodeView, pcmOffset);
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, ByteBuffer pcm) {
+        return decode(data, offset, length, pcm, 0);
+    }
+
+    private int decode(byte[] data, int offset, int length, ByteBuffer pcm, int pcmOffset) {
+        if (length < mEncodedFrameSize) {
+            // The header of a frame is needed to decode any of it
+            return 0;
+        }
+
+        final int[] predictor = mDecodePredictor;
+        final int[] index = mDecodeIndex;
+        int pos = offset;
+        for (int c = 0; c < mChannels; c++) {
+            predictor[c] = (short) ((data[pos] & 0xff) | (data[pos + 1] << 8));
+            index[c] = Math.min(data[pos + 2] & 0xff, STEP_TABLE.length - 1);
+            pos += CHANNEL_HEADER_SIZE;
+        }
+
+        for (int i = 0; i < mSamples; i++) {
+            int c = i % mChannels;
+            int nibble = ((i & 1) == 0) ? (data[pos] & 0x0f) : ((data[pos++] >> 4) & 0x0f);
+
+            predictor[c] = predict(predictor[c], STEP_TABLE[index[c]], nibble);
+            index[c] = nextIndex(index[c], nibble);
+
+            pcm.putShort(pcmOffset + 2 * i, (short) predictor[c]);
+        }
+        return 2 * mSamples;
+    }
+
+    private static ByteBuffer view(ByteBuffer view, byte[] array) {
+        if ((view == null) || (view.array() != array)) {
+            view = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return view;
+    }
+
+    private static int predict(int predictor, int step, int nibble) {
+        int delta = step >> 3;
+        if ((nibble & 4) != 0) {
+            delta += step;
+        }
+        if ((nibble & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            delta += step >> 2;
+        }
+        predictor += ((nibble & 8) != 0) ? -delta : delta;
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+    }
+
+    private static int nextIndex(int index, int nibble) {
+        index += INDEX_TABLE[nibble & 7];
+        return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+}
@@ -0,0 +1,52 @@
+package com.nxp.android.bleaudio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport carrying its packets through an emulated bad link, see {@link LinkImpairment}.
+ *
+ * Only what this end writes is impaired. Wrapping both ends of a {@link LoopbackTransport}
+ * pair impairs both directions, each with its own settings, so the whole pipeline can be
+ * run against known link conditions on a plain JVM.
+ */
+public class ImpairedTransport implements Transport {
+
+    private final Transport mTransport;
+    private final LinkImpairment.ImpairedOutputStream mOutputStream;
+
+    public ImpairedTransport(Transport transport, LinkImpairment impairment)
+            throws IOException {
+        mTransport = transport;
+        mOutputStream = impairment.wrap(transport.getOutputStream());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mTransport.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public int getMtu() {
+        return mTransport.getMtu();
+    }
+
+    /**
+     * Return the statistics of the emulated link.
+     */
+    public LinkImpairment.ImpairedOutputStream getLink() {
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutputStream.close();
+        mTransport.close();
+    }
+}
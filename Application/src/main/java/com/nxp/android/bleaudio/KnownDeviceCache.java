@@ -0,0 +1,279 @@
+package com.nxp.android.bleaudio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Small on-disk cache of the devices we recently streamed to.
+ *
+ * It lets the scan list be populated before the first advertisement is received, and lets
+ * the user reconnect to the last sink without scanning at all. The cache is kept in the
+ * shared preferences as a JSON array, most recent connection first, and is re-read before
+ * each update so the service and the activities can both write to it.
+ */
+public class KnownDeviceCache {
+    private final static String TAG = KnownDeviceCache.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "known_devices";
+    private static final String KEY_DEVICES = "devices";
+    private static final int MAX_DEVICES = 8;
+
+    /**
+     * What we know about a device.
+     */
+    public static class Entry {
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mLastSuccess;
+        private int mSampleRate;
+        private int mChannelCount;
+        private int mEncoding;
+        private LinkProbe.Result mProbe;
+        private int mBufferLevel = -1;
+
+        private Entry(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Return the last RSSI seen while scanning, in dBm.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Return the wall clock time in ms of the last successful connection.
+         */
+        public long getLastSuccess() {
+            return mLastSuccess;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public int getChannelCount() {
+            return mChannelCount;
+        }
+
+        /**
+         * Return the AudioFormat encoding used with the device.
+         */
+        public int getEncoding() {
+            return mEncoding;
+        }
+
+        /**
+         * Return the result of the last link probe run with the device, or null.
+         */
+        public LinkProbe.Result getProbeResult() {
+            return mProbe;
+        }
+
+        /**
+         * Return the buffer level settled with the device, see {@link BufferTuner}, or -1 if
+         * it was never tuned.
+         */
+        public int getBufferLevel() {
+            return mBufferLevel;
+        }
+    }
+
+    private static final Comparator<Entry> MOST_RECENT_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return Long.compare(rhs.mLastSuccess, lhs.mLastSuccess);
+        }
+    };
+
+    private final SharedPreferences mPreferences;
+
+    public KnownDeviceCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Return the known devices, most recent connection first.
+     */
+    public synchronized List<Entry> getDevices() {
+        return load();
+    }
+
+    /**
+     * Return the device of the last successful connection, or null.
+     */
+    public synchronized Entry getLastDevice() {
+        List<Entry> devices = load();
+        if (devices.isEmpty() || (devices.get(0).mLastSuccess == 0)) {
+            // Only probed, never streamed to
+            return null;
+        }
+        return devices.get(0);
+    }
+
+    /**
+     * Record a successful connection and the audio parameters used with the device.
+     */
+    public synchronized void recordConnection(String address, String name, int sampleRate,
+                                              int channelCount, int encoding) {
+        List<Entry> devices = load();
+        Entry entry = findOrAdd(devices, address);
+        if (name != null) {
+            entry.mName = name;
+        }
+        entry.mLastSuccess = System.currentTimeMillis();
+        entry.mSampleRate = sampleRate;
+        entry.mChannelCount = channelCount;
+        entry.mEncoding = encoding;
+        trim(devices);
+        save(devices);
+    }
+
+    /**
+     * Record the RSSI seen while scanning for a known device. Unknown devices are ignored.
+     */
+    public synchronized void recordRssi(String address, int rssi) {
+        List<Entry> devices = load();
+        Entry entry = find(devices, address);
+        if ((entry != null) && (entry.mRssi != rssi)) {
+            entry.mRssi = rssi;
+            save(devices);
+        }
+    }
+
+    /**
+     * Record the result of a link probe run with the device.
+     */
+    public synchronized void recordProbe(String address, LinkProbe.Result result) {
+        List<Entry> devices = load();
+        findOrAdd(devices, address).mProbe = result;
+        trim(devices);
+        save(devices);
+    }
+
+    /**
+     * Record the buffer level settled with the device.
+     */
+    public synchronized void recordBufferLevel(String address, int level) {
+        List<Entry> devices = load();
+        Entry entry = findOrAdd(devices, address);
+        if (entry.mBufferLevel == level) {
+            return;
+        }
+        entry.mBufferLevel = level;
+        trim(devices);
+        save(devices);
+    }
+
+    /**
+     * Return the device of the given address, or null.
+     */
+    public synchronized Entry getDevice(String address) {
+        return find(load(), address);
+    }
+
+    private static Entry find(List<Entry> devices, String address) {
+        for (Entry entry : devices) {
+            if (entry.mAddress.equals(address)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static Entry findOrAdd(List<Entry> devices, String address) {
+        Entry entry = find(devices, address);
+        if (entry == null) {
+            entry = new Entry(address);
+            devices.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Keep the MAX_DEVICES most recent devices. The devices never connected to, only probed,
+     * come last and are dropped first, the newest of them first.
+     */
+    private static void trim(List<Entry> devices) {
+        Collections.sort(devices, MOST_RECENT_FIRST);
+        while (devices.size() > MAX_DEVICES) {
+            devices.remove(devices.size() - 1);
+        }
+    }
+
+    private List<Entry> load() {
+        ArrayList<Entry> devices = new ArrayList<Entry>();
+        String json = mPreferences.getString(KEY_DEVICES, null);
+        if (json == null) {
+            return devices;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Entry entry = new Entry(object.getString("address"));
+                entry.mName = object.optString("name", null);
+                entry.mRssi = object.optInt("rssi", 0);
+                entry.mLastSuccess = object.optLong("lastSuccess", 0);
+                entry.mSampleRate = object.optInt("sampleRate", 0);
+                entry.mChannelCount = object.optInt("channelCount", 0);
+                entry.mEncoding = object.optInt("encoding", 0);
+                entry.mBufferLevel = object.optInt("bufferLevel", -1);
+                JSONObject probe = object.optJSONObject("probe");
+                if (probe != null) {
+                    entry.mProbe = LinkProbe.Result.fromJson(probe);
+                }
+                devices.add(entry);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Known device cache corrupted, dropping it", e);
+            devices.clear();
+        }
+        return devices;
+    }
+
+    private void save(List<Entry> devices) {
+        JSONArray array = new JSONArray();
+        try {
+            for (Entry entry : devices) {
+                JSONObject object = new JSONObject();
+                object.put("address", entry.mAddress);
+                object.put("name", entry.mName);
+                object.put("rssi", entry.mRssi);
+                object.put("lastSuccess", entry.mLastSuccess);
+                object.put("sampleRate", entry.mSampleRate);
+                object.put("channelCount", entry.mChannelCount);
+                object.put("encoding", entry.mEncoding);
+                object.put("bufferLevel", entry.mBufferLevel);
+                if (entry.mProbe != null) {
+                    object.put("probe", entry.mProbe.toJson());
+                }
+                array.put(object);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to serialize the known device cache", e);
+            return;
+        }
+        mPreferences.edit().putString(KEY_DEVICES, array.toString()).apply();
+    }
+}
@@ -0,0 +1,539 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Settings of an emulated bad link: bandwidth, latency and jitter, burst loss and stalls.
+ *
+ * Applied to the packets written on a connection by an {@link ImpairedOutputStream}, see
+ * {@link ImpairedTransport}. Each write of a {@link StreamProtocol.Writer} is a packet. A
+ * packet leaves after the latency plus a jitter drawn from the chosen distribution, once
+ * the packets before it went through the bandwidth, so packets stay in order. Audio and
+ * parity packets are lost following a Gilbert-Elliott model: a good and a bad state, each
+ * with its own loss ratio, the link moving between them packet by packet. Control packets
+ * are never lost, as the retransmission of the L2CAP channel would carry them. The link
+ * also stalls now and then, holding every packet until the stall ends.
+ *
+ * Every random draw comes from a generator seeded by the settings, and stalls are scheduled
+ * on the link time, the time the link spends carrying the packets at its bandwidth, rather
+ * than on the clock. The same traffic through the same settings is impaired the same way,
+ * whatever the timing of the writes: the same packets are lost, and the same packets are
+ * stalled and jittered by the same amounts.
+ */
+public class LinkImpairment {
+    private final static String TAG = LinkImpairment.class.getSimpleName();
+
+    public static final int JITTER_UNIFORM = 0;
+    public static final int JITTER_NORMAL = 1;
+    // Mostly small, now and then much larger than the jitter setting
+    public static final int JITTER_PARETO = 2;
+
+    public static final LinkImpairment NONE = new Builder("None").build();
+
+    public static final LinkImpairment CROWDED = new Builder("Crowded 2.4 GHz")
+            .setLatencyMs(20)
+            .setJitterMs(15, JITTER_PARETO)
+            .setBurstLoss(0.01f, 0.3f, 0.001f, 0.3f)
+            .build();
+
+    public static final LinkImpairment FADING = new Builder("Fading")
+            .setBandwidth(64000)
+            .setLatencyMs(30)
+            .setJitterMs(10, JITTER_NORMAL)
+            .setBurstLoss(0.05f, 0.2f, 0.01f, 0.6f)
+            .build();
+
+    public static final LinkImpairment WALKING_AWAY = new Builder("Walking away")
+            .setBandwidth(24000)
+            .setLatencyMs(50)
+            .setJitterMs(30, JITTER_PARETO)
+            .setBurstLoss(0.1f, 0.1f, 0.02f, 0.8f)
+            .setStalls(2000, 300)
+            .build();
+
+    private final String mName;
+    private final int mBandwidth;
+    private final int mLatencyMs;
+    private final int mJitterMs;
+    private final int mJitterDistribution;
+    private final float mGoodToBad;
+    private final float mBadToGood;
+    private final float mLossGood;
+    private final float mLossBad;
+    private final int mStallIntervalMs;
+    private final int mStallMs;
+    private final int mQueueBytes;
+    private final long mSeed;
+
+    private LinkImpairment(Builder builder) {
+        mName = builder.mName;
+        mBandwidth = builder.mBandwidth;
+        mLatencyMs = builder.mLatencyMs;
+        mJitterMs = builder.mJitterMs;
+        mJitterDistribution = builder.mJitterDistribution;
+        mGoodToBad = builder.mGoodToBad;
+        mBadToGood = builder.mBadToGood;
+        mLossGood = builder.mLossGood;
+        mLossBad = builder.mLossBad;
+        mStallIntervalMs = builder.mStallIntervalMs;
+        mStallMs = builder.mStallMs;
+        mQueueBytes = builder.mQueueBytes;
+        mSeed = builder.mSeed;
+    }
+
+    public static LinkImpairment[] getPresets() {
+        return new LinkImpairment[] {NONE, CROWDED, FADING, WALKING_AWAY};
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Return the bandwidth of the link in bytes per second, 0 if unlimited.
+     */
+    public int getBandwidth() {
+        return mBandwidth;
+    }
+
+    public int getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    public int getJitterMs() {
+        return mJitterMs;
+    }
+
+    /**
+     * Return the share of the packets lost in the long run, by the Gilbert-Elliott model.
+     */
+    public float getAverageLoss() {
+        float total = mGoodToBad + mBadToGood;
+        if (total == 0) {
+            return mLossGood;
+        }
+        return (mBadToGood * mLossGood + mGoodToBad * mLossBad) / total;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * Impair the packets written to a stream.
+     */
+    public ImpairedOutputStream wrap(OutputStream out) {
+        return new ImpairedOutputStream(this, out);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * Builds impairment settings, starting from a perfect link.
+     */
+    public static class Builder {
+        private String mName;
+        private int mBandwidth = 0;
+        private int mLatencyMs = 0;
+        private int mJitterMs = 0;
+        private int mJitterDistribution = JITTER_UNIFORM;
+        private float mGoodToBad = 0;
+        private float mBadToGood = 1;
+        private float mLossGood = 0;
+        private float mLossBad = 0;
+        private int mStallIntervalMs = 0;
+        private int mStallMs = 0;
+        private int mQueueBytes = 64 * 1024;
+        private long mSeed = 1;
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        /**
+         * Start from existing settings.
+         */
+        public Builder(String name, LinkImpairment impairment) {
+            mName = name;
+            mBandwidth = impairment.mBandwidth;
+            mLatencyMs = impairment.mLatencyMs;
+            mJitterMs = impairment.mJitterMs;
+            mJitterDistribution = impairment.mJitterDistribution;
+            mGoodToBad = impairment.mGoodToBad;
+            mBadToGood = impairment.mBadToGood;
+            mLossGood = impairment.mLossGood;
+            mLossBad = impairment.mLossBad;
+            mStallIntervalMs = impairment.mStallIntervalMs;
+            mStallMs = impairment.mStallMs;
+            mQueueBytes = impairment.mQueueBytes;
+            mSeed = impairment.mSeed;
+        }
+
+        /**
+         * @param bytesPerSecond Rate the link carries, 0 for unlimited
+         */
+        public Builder setBandwidth(int bytesPerSecond) {
+            mBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        public Builder setLatencyMs(int latencyMs) {
+            mLatencyMs = latencyMs;
+            return this;
+        }
+
+        /**
+         * @param jitterMs     Spread of the delay added to the latency: the width of the
+         *                     uniform distribution, the standard deviation of the normal
+         *                     one, the scale of the Pareto one
+         * @param distribution JITTER_UNIFORM, JITTER_NORMAL or JITTER_PARETO
+         */
+        public Builder setJitterMs(int jitterMs, int distribution) {
+            mJitterMs = jitterMs;
+            mJitterDistribution = distribution;
+            return this;
+        }
+
+        /**
+         * Set the Gilbert-Elliott loss model, per packet.
+         *
+         * @param goodToBad Probability to move from the good state to the bad one
+         * @param badToGood Probability to move from the bad state to the good one
+         * @param lossGood  Probability to lose a packet in the good state
+         * @param lossBad   Probability to lose a packet in the bad state
+         */
+        public Builder setBurstLoss(float goodToBad, float badToGood, float lossGood,
+                                    float lossBad) {
+            mGoodToBad = goodToBad;
+            mBadToGood = badToGood;
+            mLossGood = lossGood;
+            mLossBad = lossBad;
+            return this;
+        }
+
+        /**
+         * Set stalls, which need a bandwidth: they are scheduled on the time the link spends
+         * carrying the packets.
+         *
+         * @param intervalMs Average link time between two stalls, 0 for none
+         * @param stallMs    Duration of a stall
+         */
+        public Builder setStalls(int intervalMs, int stallMs) {
+            mStallIntervalMs = intervalMs;
+            mStallMs = stallMs;
+            return this;
+        }
+
+        /**
+         * @param queueBytes Bytes in flight before the writer blocks, as on a congested link
+         */
+        public Builder setQueueBytes(int queueBytes) {
+            mQueueBytes = queueBytes;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        public LinkImpairment build() {
+            if ((mJitterDistribution < JITTER_UNIFORM) || (mJitterDistribution > JITTER_PARETO)) {
+                throw new IllegalArgumentException("Unknown jitter distribution "
+                        + mJitterDistribution);
+            }
+            if ((mStallIntervalMs > 0) && (mBandwidth <= 0)) {
+                throw new IllegalArgumentException("Stalls need a bandwidth");
+            }
+            mBandwidth = Math.max(0, mBandwidth);
+            mLatencyMs = Math.max(0, mLatencyMs);
+            mJitterMs = Math.max(0, mJitterMs);
+            mGoodToBad = clamp(mGoodToBad);
+            mBadToGood = clamp(mBadToGood);
+            mLossGood = clamp(mLossGood);
+            mLossBad = clamp(mLossBad);
+            mQueueBytes = Math.max(mQueueBytes, StreamProtocol.HEADER_SIZE
+                    + StreamProtocol.MAX_PAYLOAD_SIZE);
+            return new LinkImpairment(this);
+        }
+
+        private static float clamp(float probability) {
+            return Math.max(0, Math.min(probability, 1));
+        }
+    }
+
+    /**
+     * Output stream delivering its packets through an emulated link, from a thread of its
+     * own. The writer only blocks when the packets in flight exceed the queue.
+     */
+    public static class ImpairedOutputStream extends OutputStream {
+        private final LinkImpairment mSettings;
+        private final OutputStream mOut;
+        private final Random mRandom;
+        private final Thread mDeliveryThread;
+
+        // Packets in flight and their delivery times, in order
+        private final ArrayDeque<byte[]> mPackets = new ArrayDeque<byte[]>();
+        private final ArrayDeque<Long> mDeliveryUs = new ArrayDeque<Long>();
+        private int mQueuedBytes;
+        private boolean mClosed;
+        private IOException mError;
+
+        // State of the emulated link. The stalls are scheduled on the link time, advanced by
+        // the air time of each packet, the delivery on the clock.
+        private boolean mBad;
+        private long mLinkUs;
+        private long mStallStartUs;
+        private long mLinkFreeUs;
+        private long mLastDeliveryUs;
+
+        private long mPacketsWritten;
+        private long mPacketsLost;
+        private long mStalls;
+        private long mStalledUs;
+        private long mMaxDelayUs;
+
+        ImpairedOutputStream(LinkImpairment settings, OutputStream out) {
+            mSettings = settings;
+            mOut = out;
+            mRandom = new Random(settings.mSeed);
+            mStallStartUs = nextStallIntervalUs();
+            mDeliveryThread = new Thread("LinkImpairment-" + settings.mName) {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            };
+            mDeliveryThread.setDaemon(true);
+            mDeliveryThread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * Send a packet through the link.
+         */
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while ((mQueuedBytes + len > mSettings.mQueueBytes) && !mClosed
+                        && (mError == null)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            if (mClosed) {
+                throw new IOException("Impaired link closed");
+            }
+            mPacketsWritten++;
+            if (isLost(b[off] & 0xff)) {
+                mPacketsLost++;
+                return;
+            }
+
+            long now = ClockSync.now();
+            long heldUs = stall();
+            long airUs = (mSettings.mBandwidth > 0) ? len * 1000000L / mSettings.mBandwidth : 0;
+            mLinkUs += airUs;
+            long sendUs = Math.max(now, mLinkFreeUs) + heldUs + airUs;
+            mLinkFreeUs = sendUs;
+            // The stream keeps the packets in order whatever their delay
+            long deliveryUs = Math.max(sendUs + mSettings.mLatencyMs * 1000L + nextJitterUs(),
+                    mLastDeliveryUs);
+            mLastDeliveryUs = deliveryUs;
+            mMaxDelayUs = Math.max(mMaxDelayUs, deliveryUs - now);
+
+            byte[] packet = new byte[len];
+            System.arraycopy(b, off, packet, 0, len);
+            mPackets.add(packet);
+            mDeliveryUs.add(deliveryUs);
+            mQueuedBytes += len;
+            notifyAll();
+        }
+
+        /**
+         * Move the Gilbert-Elliott model a packet on.
+         *
+         * @return True if the packet is lost
+         */
+        private boolean isLost(int type) {
+            if ((type != StreamProtocol.TYPE_AUDIO) && (type != StreamProtocol.TYPE_FEC_PARITY)) {
+                return false;
+            }
+            if (mBad) {
+                mBad = mRandom.nextFloat() >= mSettings.mBadToGood;
+            } else {
+                mBad = mRandom.nextFloat() < mSettings.mGoodToBad;
+            }
+            return mRandom.nextFloat() < (mBad ? mSettings.mLossBad : mSettings.mLossGood);
+        }
+
+        /**
+         * Return the time the next packet is held by the stall it meets on the link, if any.
+         */
+        private long stall() {
+            if (mSettings.mStallIntervalMs <= 0) {
+                return 0;
+            }
+            long heldUs = 0;
+            while (mLinkUs >= mStallStartUs) {
+                long stallEndUs = mStallStartUs + mSettings.mStallMs * 1000L;
+                if (mLinkUs < stallEndUs) {
+                    heldUs += stallEndUs - mLinkUs;
+                    mLinkUs = stallEndUs;
+                    mStalls++;
+                }
+                mStallStartUs = stallEndUs + nextStallIntervalUs();
+            }
+            mStalledUs += heldUs;
+            return heldUs;
+        }
+
+        private long nextStallIntervalUs() {
+            if (mSettings.mStallIntervalMs <= 0) {
+                return Long.MAX_VALUE / 2;
+            }
+            // Stalls come at random, exponential intervals
+            double u = 1 - mRandom.nextDouble();
+            return (long) (-Math.log(u) * mSettings.mStallIntervalMs * 1000);
+        }
+
+        private long nextJitterUs() {
+            long jitterUs = mSettings.mJitterMs * 1000L;
+            if (jitterUs == 0) {
+                return 0;
+            }
+            switch (mSettings.mJitterDistribution) {
+                case JITTER_NORMAL:
+                    return Math.max(0, (long) (jitterUs + mRandom.nextGaussian() * jitterUs));
+                case JITTER_PARETO:
+                    // Shape 2: mean of twice the scale, with a long tail
+                    double u = 1 - mRandom.nextDouble();
+                    return (long) (jitterUs / Math.sqrt(u)) - jitterUs;
+                default:
+                    return (long) (mRandom.nextDouble() * jitterUs);
+            }
+        }
+
+        /**
+         * Write the packets to the underlying stream when they are due.
+         */
+        private void deliver() {
+            try {
+                while (true) {
+                    byte[] packet;
+                    synchronized (this) {
+                        while (mPackets.isEmpty() && !mClosed) {
+                            wait();
+                        }
+                        if (mPackets.isEmpty()) {
+                            return;
+                        }
+                        long waitUs = mDeliveryUs.peek() - ClockSync.now();
+                        if (waitUs > 0) {
+                            wait(Math.max(1, waitUs / 1000));
+                            continue;
+                        }
+                        packet = mPackets.poll();
+                        mDeliveryUs.poll();
+                    }
+                    mOut.write(packet);
+                    synchronized (this) {
+                        mQueuedBytes -= packet.length;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mError = e;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Delivery interrupted");
+            }
+        }
+
+        /**
+         * Wait for the packets in flight to be delivered.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (this) {
+                try {
+                    while ((mQueuedBytes > 0) && !mClosed && (mError == null)) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+            }
+            mOut.flush();
+        }
+
+        /**
+         * Drop the packets in flight and close the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                mClosed = true;
+                mPackets.clear();
+                mDeliveryUs.clear();
+                notifyAll();
+            }
+            mOut.close();
+        }
+
+        public synchronized long getPacketsWritten() {
+            return mPacketsWritten;
+        }
+
+        public synchronized long getPacketsLost() {
+            return mPacketsLost;
+        }
+
+        public synchronized long getStalls() {
+            return mStalls;
+        }
+
+        /**
+         * Return the time the stalls held the packets, on the link time.
+         */
+        public synchronized long getStalledUs() {
+            return mStalledUs;
+        }
+
+        /**
+         * Return the longest time between the write of a packet and its delivery.
+         */
+        public synchronized long getMaxDelayUs() {
+            return mMaxDelayUs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Link " + mSettings.mName + ": " + mPacketsLost + " of " + mPacketsWritten
+                    + " packets lost, " + mStalls + " stalls, delay " + mMaxDelayUs / 1000
+                    + "ms at most";
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Watches the health of the connections, so a vanished peer is noticed within a bounded
+ * time whatever the socket does.
+ *
+ * Every packet received on a link counts as a sign of life. A link which wrote nothing for a
+ * heartbeat interval sends a heartbeat, so both ends always have traffic to expect, and a
+ * link which received nothing for the timeout is declared lost. A link whose socket is busy
+ * skips its heartbeat: its write may be stuck on a dead peer, and waiting for it would stop
+ * the checks of all the links. Read and write errors
+ * reported by the threads of the link declare it lost at once. The loss is reported a single
+ * time per link, for the service to tear the connection down.
+ *
+ * The monitor runs as a task of the {@link AudioExecutor} while links are registered.
+ */
+public class LinkMonitor implements AudioExecutor.Task {
+    private final static String TAG = LinkMonitor.class.getSimpleName();
+
+    public static final int CAUSE_SILENCE = 0;
+    public static final int CAUSE_READ_ERROR = 1;
+    public static final int CAUSE_WRITE_ERROR = 2;
+    private static final int CAUSE_COUNT = 3;
+
+    /**
+     * Told when a link is lost, once per link. Called from the thread which noticed it.
+     */
+    public interface Listener {
+        void onLinkLost(Link link, int cause);
+    }
+
+    /**
+     * A monitored connection.
+     */
+    public class Link {
+        private final String mName;
+        private final StreamProtocol.Writer mWriter;
+        private final long mStartUs;
+        private volatile long mLastReceiveUs;
+        private long mMaxGapUs;
+        private boolean mLost;
+
+        private Link(String name, StreamProtocol.Writer writer) {
+            mName = name;
+            mWriter = writer;
+            mStartUs = ClockSync.now();
+            mLastReceiveUs = mStartUs;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Note a packet received.
+         */
+        public void onReceive(long nowUs) {
+            long gapUs = nowUs - mLastReceiveUs;
+            if (gapUs > mMaxGapUs) {
+                mMaxGapUs = gapUs;
+            }
+            mLastReceiveUs = nowUs;
+        }
+
+        /**
+         * Report a socket error noticed by a thread of the link.
+         */
+        public void reportError(int cause) {
+            lost(this, cause);
+        }
+
+        /**
+         * Return the longest time without a packet received, besides the last one.
+         */
+        public long getMaxGapUs() {
+            return mMaxGapUs;
+        }
+
+        public synchronized boolean isLost() {
+            return mLost;
+        }
+
+        /**
+         * Return true the first time only.
+         */
+        private synchronized boolean markLost() {
+            if (mLost) {
+                return false;
+            }
+            mLost = true;
+            return true;
+        }
+    }
+
+    private final Listener mListener;
+    private final long mHeartbeatIntervalUs;
+    private final long mTimeoutUs;
+    private final ArrayList<Link> mLinks = new ArrayList<Link>();
+    private boolean mRunning;
+    private volatile boolean mCancelled;
+
+    private long mHeartbeats;
+    private final long[] mLosses = new long[CAUSE_COUNT];
+    private long mMaxDetectionUs;
+
+    /**
+     * @param heartbeatIntervalMs Time a link may stay idle before it sends a heartbeat
+     * @param timeoutMs           Time without any packet received after which a link is lost
+     */
+    public LinkMonitor(Listener listener, int heartbeatIntervalMs, int timeoutMs) {
+        mListener = listener;
+        mHeartbeatIntervalUs = heartbeatIntervalMs * 1000L;
+        mTimeoutUs = timeoutMs * 1000L;
+    }
+
+    /**
+     * Start monitoring a connection.
+     *
+     * @return The link, to report the packets received and the errors on
+     */
+    public synchronized Link addLink(String name, StreamProtocol.Writer writer) {
+        Link link = new Link(name, writer);
+        mLinks.add(link);
+        return link;
+    }
+
+    public synchronized void removeLink(Link link) {
+        mLinks.remove(link);
+    }
+
+    /**
+     * Claim the running of the monitor.
+     *
+     * @return True if the caller must run it, false if it is already running
+     */
+    public synchronized boolean start() {
+        if (mRunning) {
+            return false;
+        }
+        mRunning = true;
+        mCancelled = false;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long checkIntervalMs = Math.max(1, Math.min(mHeartbeatIntervalUs, mTimeoutUs) / 4000);
+        boolean running = true;
+        try {
+            while (!mCancelled && !AudioExecutor.isCancelled()) {
+                Link[] links;
+                synchronized (this) {
+                    if (mLinks.isEmpty()) {
+                        // Released with the check, so a link added next starts a new run
+                        mRunning = false;
+                        running = false;
+                        return;
+                    }
+                    links = mLinks.toArray(new Link[mLinks.size()]);
+                }
+                long now = ClockSync.now();
+                // Check them all before writing, a write may block on a dead link
+                for (Link link : links) {
+                    if (now - link.mLastReceiveUs > mTimeoutUs) {
+                        lost(link, CAUSE_SILENCE);
+                    }
+                }
+                for (Link link : links) {
+                    long idleUs = now - link.mWriter.getLastSendUs();
+                    if (!link.isLost() && (idleUs >= mHeartbeatIntervalUs)) {
+                        sendHeartbeat(link);
+                    }
+                }
+                try {
+                    Thread.sleep(checkIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } finally {
+            if (running) {
+                synchronized (this) {
+                    mRunning = false;
+                }
+            }
+        }
+    }
+
+    private void sendHeartbeat(Link link) {
+        try {
+            if (!link.mWriter.tryWriteHeartbeat()) {
+                return;
+            }
+            synchronized (this) {
+                mHeartbeats++;
+            }
+        } catch (IOException e) {
+            lost(link, CAUSE_WRITE_ERROR);
+        }
+    }
+
+    private void lost(Link link, int cause) {
+        if (!link.markLost()) {
+            return;
+        }
+        long silenceUs = ClockSync.now() - link.mLastReceiveUs;
+        synchronized (this) {
+            mLosses[cause]++;
+            mMaxDetectionUs = Math.max(mMaxDetectionUs, silenceUs);
+            mLinks.remove(link);
+        }
+        Log.w(TAG, "Link " + link.getName() + " lost (" + getCauseName(cause) + ") after "
+                + silenceUs / 1000 + "ms of silence");
+        mListener.onLinkLost(link, cause);
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public static String getCauseName(int cause) {
+        switch (cause) {
+            case CAUSE_SILENCE:
+                return "silence";
+            case CAUSE_READ_ERROR:
+                return "read error";
+            case CAUSE_WRITE_ERROR:
+                return "write error";
+            default:
+                return "unknown";
+        }
+    }
+
+    public synchronized long getHeartbeats() {
+        return mHeartbeats;
+    }
+
+    /**
+     * Return the number of links lost for the given cause.
+     */
+    public synchronized long getLosses(int cause) {
+        return mLosses[cause];
+    }
+
+    /**
+     * Return the longest time between the last packet received on a link and its loss.
+     */
+    public synchronized long getMaxDetectionUs() {
+        return mMaxDetectionUs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Links lost: " + mLosses[CAUSE_SILENCE] + " silent, " + mLosses[CAUSE_READ_ERROR]
+                + " on read, " + mLosses[CAUSE_WRITE_ERROR] + " on write, detected within "
+                + mMaxDetectionUs / 1000 + "ms, " + mHeartbeats + " heartbeats";
+    }
+}
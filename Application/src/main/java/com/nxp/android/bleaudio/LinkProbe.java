@@ -0,0 +1,372 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what a link can sustain before an audio profile is chosen.
+ *
+ * Synthetic packets of the link MTU are sent at stepped rates. Each carries a sequence
+ * number and its transmission time, and the peer echoes them back (see {@link #echo}). For
+ * every step the goodput, over the time from the first packet sent to the last echo received,
+ * the round trip time distribution and the loss are measured, and
+ * the knee point is the highest step the link carried without losing packets, falling
+ * behind the offered rate or letting the round trip time blow up.
+ *
+ * The engine only needs a packet writer and to be fed the echoes, so it runs the same way
+ * over the L2CAP socket and over a {@link LoopbackTransport}.
+ */
+public class LinkProbe {
+    private final static String TAG = LinkProbe.class.getSimpleName();
+
+    // Offered rates of the steps, in bytes per second
+    private static final int[] STEP_RATES = {
+            16000, 32000, 64000, 128000, 192000, 256000, 384000, 512000
+    };
+    private static final long STEP_DURATION_MS = 2000;
+    // Time given to late echoes before a step is closed
+    private static final long DRAIN_MS = 500;
+
+    // A step is healthy when it delivers this share of the offered rate...
+    private static final float MIN_GOODPUT_RATIO = 0.9f;
+    // ...loses less than this share of the packets...
+    private static final float MAX_LOSS_RATIO = 0.01f;
+    // ...and keeps its 90th percentile RTT under this factor of the first step one.
+    private static final int MAX_RTT_INFLATION = 3;
+
+    static final int PROBE_HEADER_SIZE = 12;
+
+    /**
+     * Measurements of one step.
+     */
+    public static class Step {
+        private final int mOfferedRate;
+        private int mSent;
+        private int mReceived;
+        private int mGoodput;
+        private long mRttP50Us;
+        private long mRttP90Us;
+        private long mRttP99Us;
+
+        private Step(int offeredRate) {
+            mOfferedRate = offeredRate;
+        }
+
+        public int getOfferedRate() {
+            return mOfferedRate;
+        }
+
+        /**
+         * Return the rate actually delivered to the peer, in bytes per second.
+         */
+        public int getGoodput() {
+            return mGoodput;
+        }
+
+        public float getLossRatio() {
+            return (mSent > 0) ? (float) (mSent - mReceived) / mSent : 0;
+        }
+
+        public long getRttP50Us() {
+            return mRttP50Us;
+        }
+
+        public long getRttP90Us() {
+            return mRttP90Us;
+        }
+
+        public long getRttP99Us() {
+            return mRttP99Us;
+        }
+    }
+
+    /**
+     * Measurements of a whole probe.
+     */
+    public static class Result {
+        private final List<Step> mSteps = new ArrayList<Step>();
+        private int mKnee = -1;
+        private long mTimestamp;
+
+        public List<Step> getSteps() {
+            return mSteps;
+        }
+
+        /**
+         * Return the highest healthy step, or null if even the first step was not.
+         */
+        public Step getKnee() {
+            return (mKnee >= 0) ? mSteps.get(mKnee) : null;
+        }
+
+        /**
+         * Return the goodput at the knee point, in bytes per second.
+         */
+        public int getKneeRate() {
+            return (mKnee >= 0) ? mSteps.get(mKnee).mGoodput : 0;
+        }
+
+        /**
+         * Return the wall clock time in ms at which the probe completed.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("timestamp", mTimestamp);
+            object.put("knee", mKnee);
+            JSONArray steps = new JSONArray();
+            for (Step step : mSteps) {
+                JSONObject s = new JSONObject();
+                s.put("offered", step.mOfferedRate);
+                s.put("sent", step.mSent);
+                s.put("received", step.mReceived);
+                s.put("goodput", step.mGoodput);
+                s.put("p50", step.mRttP50Us);
+                s.put("p90", step.mRttP90Us);
+                s.put("p99", step.mRttP99Us);
+                steps.put(s);
+            }
+            object.put("steps", steps);
+            return object;
+        }
+
+        public static Result fromJson(JSONObject object) throws JSONException {
+            Result result = new Result();
+            result.mTimestamp = object.optLong("timestamp", 0);
+            result.mKnee = object.optInt("knee", -1);
+            JSONArray steps = object.optJSONArray("steps");
+            for (int i = 0; (steps != null) && (i < steps.length()); i++) {
+                JSONObject s = steps.getJSONObject(i);
+                Step step = new Step(s.getInt("offered"));
+                step.mSent = s.optInt("sent", 0);
+                step.mReceived = s.optInt("received", 0);
+                step.mGoodput = s.optInt("goodput", 0);
+                step.mRttP50Us = s.optLong("p50", 0);
+                step.mRttP90Us = s.optLong("p90", 0);
+                step.mRttP99Us = s.optLong("p99", 0);
+                result.mSteps.add(step);
+            }
+            return result;
+        }
+    }
+
+    private final StreamProtocol.Writer mWriter;
+    private final byte[] mPacket;
+    private final long[] mRtts;
+
+    private volatile boolean mRunning;
+    private int mStepIndex;
+    private int mEchoes;
+    private long mLastEchoUs;
+
+    /**
+     * @param writer Writer of the connection to probe
+     * @param mtu    Maximum packet size of the link
+     */
+    public LinkProbe(StreamProtocol.Writer writer, int mtu) {
+        mWriter = writer;
+        mPacket = new byte[Math.min(mtu, StreamProtocol.MAX_PAYLOAD_SIZE) - StreamProtocol.HEADER_SIZE];
+
+        // Room for the RTT of every packet of the fastest step
+        int maxRate = STEP_RATES[STEP_RATES.length - 1];
+        mRtts = new long[(int) (maxRate * STEP_DURATION_MS / 1000 / mPacket.length) + 2];
+    }
+
+    /**
+     * Answer a probe packet received from the peer. Only the sequence number and the
+     * transmission time are sent back, to keep the reverse direction quiet.
+     */
+    public static void echo(StreamProtocol.Writer writer, byte[] payload, int offset)
+            throws IOException {
+        writer.write(StreamProtocol.TYPE_PROBE_ECHO, payload, offset, PROBE_HEADER_SIZE);
+    }
+
+    /**
+     * Account for an echo received from the peer.
+     */
+    public synchronized void onEcho(byte[] payload, int offset) {
+        long now = ClockSync.now();
+        int sequence = StreamProtocol.getInt(payload, offset);
+        long sentUs = StreamProtocol.getLong(payload, offset + 4);
+
+        // Echoes of a step already closed are counted as lost
+        if (((sequence >>> 24) == mStepIndex) && (mEchoes < mRtts.length)) {
+            mRtts[mEchoes++] = now - sentUs;
+            mLastEchoUs = now;
+        }
+    }
+
+    /**
+     * Run all the steps. Blocks for about 20 seconds.
+     */
+    public Result run() throws IOException, InterruptedException {
+        Result result = new Result();
+        mRunning = true;
+
+        for (int i = 0; (i < STEP_RATES.length) && mRunning; i++) {
+            Step step = runStep(i, STEP_RATES[i]);
+            result.mSteps.add(step);
+            Log.d(TAG, "Step " + step.mOfferedRate + " B/s: goodput " + step.mGoodput
+                    + " B/s, loss " + (step.mSent - step.mReceived) + "/" + step.mSent
+                    + ", RTT p50 " + step.mRttP50Us + "us p90 " + step.mRttP90Us
+                    + "us p99 " + step.mRttP99Us + "us");
+
+            if (!isHealthy(step, result.mSteps.get(0))) {
+                // Past the knee, faster steps would only congest the link
+                break;
+            }
+            result.mKnee = i;
+        }
+
+        result.mTimestamp = System.currentTimeMillis();
+        return result;
+    }
+
+    /**
+     * Interrupt the probe at the end of the current step.
+     */
+    public void cancel() {
+        mRunning = false;
+    }
+
+    private Step runStep(int index, int rate) throws IOException, InterruptedException {
+        Step step = new Step(rate);
+        synchronized (this) {
+            mStepIndex = index;
+            mEchoes = 0;
+            mLastEchoUs = 0;
+        }
+
+        long intervalUs = mPacket.length * 1000000L / rate;
+        long startUs = ClockSync.now();
+        long endUs = startUs + STEP_DURATION_MS * 1000;
+        int sequence = 0;
+
+        // The step ends on time even when the writes fall behind the schedule
+        for (long nextUs = startUs; (nextUs < endUs) && (ClockSync.now() < endUs);
+             nextUs += intervalUs) {
+            long waitUs = nextUs - ClockSync.now();
+            if (waitUs > 0) {
+                Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+            }
+            StreamProtocol.putInt(mPacket, 0, (index << 24) | sequence++);
+            StreamProtocol.putLong(mPacket, 4, ClockSync.now());
+            // Blocks when the link cannot keep up, the offered rate is then not reached
+            mWriter.write(StreamProtocol.TYPE_PROBE, mPacket, 0, mPacket.length);
+        }
+        Thread.sleep(DRAIN_MS);
+
+        long elapsedUs;
+        synchronized (this) {
+            // Close the step: echoes still on their way are lost
+            mStepIndex = -1;
+            step.mSent = sequence;
+            step.mReceived = mEchoes;
+            Arrays.sort(mRtts, 0, mEchoes);
+            step.mRttP50Us = percentile(50);
+            step.mRttP90Us = percentile(90);
+            step.mRttP99Us = percentile(99);
+            elapsedUs = mLastEchoUs - startUs;
+        }
+        // Over the time the link actually took, not the nominal duration of the step
+        if ((step.mReceived > 0) && (elapsedUs > 0)) {
+            step.mGoodput = (int) ((long) step.mReceived * mPacket.length * 1000000L
+                    / Math.max(elapsedUs, STEP_DURATION_MS * 1000));
+        }
+        return step;
+    }
+
+    private long percentile(int percent) {
+        if (mEchoes == 0) {
+            return 0;
+        }
+        return mRtts[Math.min(mEchoes - 1, mEchoes * percent / 100)];
+    }
+
+    private static boolean isHealthy(Step step, Step first) {
+        if (step.mGoodput < MIN_GOODPUT_RATIO * step.mOfferedRate) {
+            return false;
+        }
+        if (step.getLossRatio() > MAX_LOSS_RATIO) {
+            return false;
+        }
+        return (step == first) || (step.mRttP90Us <= MAX_RTT_INFLATION * first.mRttP90Us);
+    }
+
+    /**
+     * Run a probe over a local loopback, the peer echoing from a thread of its own.
+     */
+    public static Result runOverLoopback(int mtu, int capacity)
+            throws IOException, InterruptedException {
+        return runOverLoopback(mtu, capacity, null);
+    }
+
+    /**
+     * Run a probe over a local loopback whose probe packets go through an emulated link.
+     *
+     * @param impairment Conditions of the link, or null for a clean one
+     */
+    public static Result runOverLoopback(int mtu, int capacity, LinkImpairment impairment)
+            throws IOException, InterruptedException {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(mtu, capacity);
+        final Transport local = (impairment != null)
+                ? new ImpairedTransport(pair[0], impairment) : pair[0];
+        final LoopbackTransport remote = pair[1];
+        final InputStream localIn = local.getInputStream();
+        final LinkProbe probe = new LinkProbe(new StreamProtocol.Writer(local.getOutputStream()), mtu);
+
+        Thread responder = new Thread("LinkProbeResponder") {
+            @Override
+            public void run() {
+                StreamProtocol.Reader reader = new StreamProtocol.Reader(remote.getInputStream());
+                StreamProtocol.Writer writer = new StreamProtocol.Writer(remote.getOutputStream());
+                try {
+                    while (true) {
+                        if (reader.read() == StreamProtocol.TYPE_PROBE) {
+                            echo(writer, reader.getBuffer(), reader.getPayloadOffset());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Loopback closed, probe done
+                }
+            }
+        };
+        Thread receiver = new Thread("LinkProbeReceiver") {
+            @Override
+            public void run() {
+                StreamProtocol.Reader reader = new StreamProtocol.Reader(localIn);
+                try {
+                    while (true) {
+                        if (reader.read() == StreamProtocol.TYPE_PROBE_ECHO) {
+                            probe.onEcho(reader.getBuffer(), reader.getPayloadOffset());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Loopback closed, probe done
+                }
+            }
+        };
+        responder.start();
+        receiver.start();
+        try {
+            return probe.run();
+        } finally {
+            local.close();
+            remote.close();
+            responder.join();
+            receiver.join();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.nxp.android.bleaudio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-process transport: two connected endpoints, what one writes the other reads.
+ *
+ * It lets the link engines run on a plain JVM, in CI, with no radio involved. Each direction
+ * is a bounded byte pipe, so a slow reader blocks the writer like a congested link does.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final Pipe mIn;
+    private final Pipe mOut;
+    private final int mMtu;
+
+    private LoopbackTransport(Pipe in, Pipe out, int mtu) {
+        mIn = in;
+        mOut = out;
+        mMtu = mtu;
+    }
+
+    /**
+     * Create two connected endpoints.
+     *
+     * @param mtu      Packet size reported by both endpoints
+     * @param capacity Bytes buffered in each direction before the writer blocks
+     */
+    public static LoopbackTransport[] createPair(int mtu, int capacity) {
+        Pipe aToB = new Pipe(capacity);
+        Pipe bToA = new Pipe(capacity);
+        return new LoopbackTransport[] {
+                new LoopbackTransport(bToA, aToB, mtu),
+                new LoopbackTransport(aToB, bToA, mtu)
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.mOutputStream;
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+
+    /**
+     * Bounded blocking byte queue with stream views.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mClosed;
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            try {
+                while ((mCount == 0) && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mCount == 0) {
+                return -1;
+            }
+            int count = Math.min(len, mCount);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = mBuffer[mReadPos];
+                mReadPos = (mReadPos + 1) % mBuffer.length;
+            }
+            mCount -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                try {
+                    while ((mCount == mBuffer.length) && !mClosed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mClosed) {
+                    throw new IOException("Loopback closed");
+                }
+                int count = Math.min(len, mBuffer.length - mCount);
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                for (int i = 0; i < count; i++) {
+                    mBuffer[writePos] = b[off + i];
+                    writePos = (writePos + 1) % mBuffer.length;
+                }
+                mCount += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+
+        final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (Pipe.this.read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+    }
+}
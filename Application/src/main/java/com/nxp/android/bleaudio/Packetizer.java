@@ -0,0 +1,170 @@
+package com.nxp.android.bleaudio;
+
+import java.io.IOException;
+
+/**
+ * Packs the audio stream into packets which exactly fill the link MTU.
+ *
+ * Audio is appended as it is captured, whatever the capture buffer size, and goes out in
+ * full size packets: every L2CAP packet carries the maximum payload instead of a capture
+ * buffer split at an arbitrary place. Each packet is stamped with the presentation time of
+ * its first byte and the offset of the first frame starting in it, so the receiver can rebuild
+ * the frames and find their start again after a loss, see {@link Reassembler}. Packets can be
+ * protected with parity, see {@link FecEncoder}.
+ *
+ * A packet does not wait to be full for longer than the maximum delay: at low bitrates, it
+ * goes out once it holds that much audio, so filling the MTU never adds more than the maximum
+ * delay to the latency.
+ */
+public class Packetizer {
+
+    private final StreamProtocol.Writer mWriter;
+    private final byte[] mPayload;
+    private final FecEncoder mFecEncoder;
+    private int mBytesPerSecond;
+    private long mMaxDelayUs = Long.MAX_VALUE;
+
+    private int mLength;
+    private long mPtsUs;
+    private int mFrameOffset = StreamProtocol.NO_FRAME_START;
+
+    private long mPacketCount;
+    private long mPayloadBytes;
+    private long mPaddingBytes;
+
+    /**
+     * @param writer         Writer of the connection
+     * @param mtu            Maximum packet size of the link
+     * @param bytesPerSecond Byte rate of the stream, to stamp each packet
+     */
+    public Packetizer(StreamProtocol.Writer writer, int mtu, int bytesPerSecond) {
+        this(writer, mtu, bytesPerSecond, 0);
+    }
+
+    /**
+     * @param writer         Writer of the connection
+     * @param mtu            Maximum packet size of the link
+     * @param bytesPerSecond Byte rate of the stream, to stamp each packet
+     * @param fecGroupSize   Number of packets protected by each parity packet, 0 for none
+     */
+    public Packetizer(StreamProtocol.Writer writer, int mtu, int bytesPerSecond,
+                      int fecGroupSize) {
+        mWriter = writer;
+        mPayload = new byte[getPayloadSize(mtu, fecGroupSize)];
+        mBytesPerSecond = bytesPerSecond;
+        mFecEncoder = (fecGroupSize > 0)
+                ? new FecEncoder(writer, fecGroupSize, mPayload.length) : null;
+    }
+
+    /**
+     * Send a packet once it holds the given duration of audio, even if it is not full.
+     */
+    public void setMaxDelayMs(int maxDelayMs) {
+        mMaxDelayUs = maxDelayMs * 1000L;
+    }
+
+    /**
+     * Return the audio payload carried by a packet filling the given MTU.
+     */
+    public static int getPayloadSize(int mtu) {
+        return getPayloadSize(mtu, 0);
+    }
+
+    /**
+     * Return the audio payload carried by a packet filling the given MTU, leaving room for
+     * the parity packets to fit the MTU too.
+     */
+    public static int getPayloadSize(int mtu, int fecGroupSize) {
+        int size = Math.min(mtu, StreamProtocol.MAX_PAYLOAD_SIZE)
+                - StreamProtocol.HEADER_SIZE - StreamProtocol.AUDIO_HEADER_SIZE;
+        if (fecGroupSize > 0) {
+            size -= FecEncoder.getParityOverhead(fecGroupSize);
+        }
+        return size;
+    }
+
+    /**
+     * Append a frame to the stream, sending every packet which gets full, or which holds
+     * more than the maximum delay.
+     *
+     * @param ptsUs Presentation time of the first byte
+     */
+    public void write(long ptsUs, byte[] data, int offset, int length) throws IOException {
+        int consumed = 0;
+        while (consumed < length) {
+            if (mLength == 0) {
+                mPtsUs = ptsUs + consumed * 1000000L / mBytesPerSecond;
+            }
+            if ((consumed == 0) && (mFrameOffset == StreamProtocol.NO_FRAME_START)) {
+                mFrameOffset = mLength;
+            }
+            int count = Math.min(length - consumed, mPayload.length - mLength);
+            System.arraycopy(data, offset + consumed, mPayload, mLength, count);
+            mLength += count;
+            consumed += count;
+
+            if (mLength == mPayload.length) {
+                send();
+            }
+        }
+        long endUs = ptsUs + length * 1000000L / mBytesPerSecond;
+        if ((mLength > 0) && (endUs - mPtsUs >= mMaxDelayUs)) {
+            mPaddingBytes += mPayload.length - mLength;
+            send();
+        }
+    }
+
+    /**
+     * Send the pending audio even if it does not fill a packet, at the end of the stream.
+     */
+    public void flush() throws IOException {
+        if (mLength > 0) {
+            mPaddingBytes += mPayload.length - mLength;
+            send();
+        }
+        if (mFecEncoder != null) {
+            mFecEncoder.flush();
+        }
+    }
+
+    /**
+     * Change the byte rate of the stream, when its coding changes. Pending audio is sent
+     * first, so no packet mixes two rates.
+     */
+    public void setBytesPerSecond(int bytesPerSecond) throws IOException {
+        flush();
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    private void send() throws IOException {
+        mWriter.writeAudio(mPtsUs, mFrameOffset, mPayload, 0, mLength);
+        if (mFecEncoder != null) {
+            mFecEncoder.add(mPtsUs, mFrameOffset, mPayload, 0, mLength);
+        }
+        mPacketCount++;
+        mPayloadBytes += mLength;
+        mLength = 0;
+        mFrameOffset = StreamProtocol.NO_FRAME_START;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Return the share of the airtime taken by parity, 0 without protection.
+     */
+    public float getFecOverheadRatio() {
+        return (mFecEncoder != null) ? mFecEncoder.getOverheadRatio() : 0;
+    }
+
+    /**
+     * Return the share of the airtime not used by audio: headers, and the unused room of
+     * packets flushed before being full.
+     */
+    public float getOverheadRatio() {
+        long headers = mPacketCount * (StreamProtocol.HEADER_SIZE + StreamProtocol.AUDIO_HEADER_SIZE);
+        long total = mPayloadBytes + headers + mPaddingBytes;
+        return (total > 0) ? (float) (headers + mPaddingBytes) / total : 0;
+    }
+}
@@ -0,0 +1,57 @@
+package com.nxp.android.bleaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the PCM as it is.
+ */
+public class PcmCodec implements AudioCodec {
+
+    private final int mFrameSize;
+
+    /**
+     * @param frameSize Size of a PCM frame, in bytes
+     */
+    public PcmCodec(int frameSize) {
+        mFrameSize = frameSize;
+    }
+
+    @Override
+    public int getEncodedFrameSize() {
+        return mFrameSize;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int offset, byte[] out, int outOffset) {
+        System.arraycopy(pcm, offset, out, outOffset, mFrameSize);
+        return mFrameSize;
+    }
+
+    @Override
+    public int encode(ByteBuffer pcm, byte[] out, int outOffset) {
+        pcm.clear();
+        pcm.get(out, outOffset, mFrameSize);
+        return mFrameSize;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, byte[] pcm, int pcmOffset) {
+        int count = getDecodedLength(length);
+        System.arraycopy(data, offset, pcm, pcmOffset, count);
+        return count;
+    }
+
+    @Override
+    public int decode(byte[] data, int offset, int length, ByteBuffer pcm) {
+        int count = getDecodedLength(length);
+        pcm.clear();
+        pcm.put(data, offset, count);
+        return count;
+    }
+
+    private int getDecodedLength(int length) {
+        // The tail of a stream may come as a partial frame, still playable
+        int count = Math.min(length, mFrameSize);
+        return count - count % 2;
+    }
+}
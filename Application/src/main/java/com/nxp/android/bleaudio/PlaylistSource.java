@@ -0,0 +1,304 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * PCM stream of a list of WAV files played back to back, without gaps.
+ *
+ * A read-ahead task of the {@link AudioExecutor} opens the files and copies their PCM data
+ * into a ring, the audio thread reads frames from the ring. The ring runs ahead of the
+ * audio thread across the end of a file, so the start of the next file is already there
+ * when the current one ends, and a frame is filled from the tail of one file and the head
+ * of the next: the transition is continuous at the sample level. The audio thread never
+ * opens a file and never waits on the disk: a ring the disk did not fill in time gives
+ * silence, counted as an underrun.
+ *
+ * Files which do not match the stream format are skipped. In loop mode the list plays
+ * again once over, and in shuffle mode every pass plays it in a new order.
+ */
+public class PlaylistSource implements AudioExecutor.Task {
+    private final static String TAG = PlaylistSource.class.getSimpleName();
+
+    private final List<File> mFiles;
+    private final AudioProfile mProfile;
+    private final boolean mLoop;
+    private final boolean mShuffle;
+    private final Random mRandom;
+    private final int mSampleSize;
+
+    // Read-ahead ring, filled by the read-ahead task
+    private final byte[] mRing;
+    private int mReadPos;
+    private int mCount;
+    private boolean mEnded;
+    private volatile boolean mCancelled;
+
+    private long mUnderruns;
+    private int mFilesOpened;
+    private int mFilesSkipped;
+    private String mCurrentName;
+
+    /**
+     * @param files       Files to play, in order
+     * @param profile     Stream format, the files must match it
+     * @param readAheadMs Duration of the audio read ahead of the audio thread
+     * @param loop        Play the list again once over
+     * @param shuffle     Play each pass in a random order
+     * @param seed        Seed of the shuffle, so a test run can be replayed
+     */
+    public PlaylistSource(List<File> files, AudioProfile profile, int readAheadMs,
+                          boolean loop, boolean shuffle, long seed) {
+        mFiles = new ArrayList<File>(files);
+        mProfile = profile;
+        mLoop = loop;
+        mShuffle = shuffle;
+        mRandom = new Random(seed);
+        mSampleSize = 2 * profile.getChannelCount();
+        int size = (int) ((long) readAheadMs * profile.getBytesPerSecond() / 1000);
+        mRing = new byte[Math.max(size - size % mSampleSize, 2 * profile.getFrameSize())];
+    }
+
+    /**
+     * Read ahead the files, until the list ends or the task is cancelled.
+     */
+    @Override
+    public void run() {
+        int chunkSize = mProfile.getFrameSize();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+        List<File> order = new ArrayList<File>(mFiles);
+        try {
+            boolean played = true;
+            // A pass which played nothing ends the loop, all the files are unreadable
+            while (played && !isCancelled()) {
+                if (mShuffle) {
+                    shuffle(order);
+                }
+                played = false;
+                for (File file : order) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    played |= readFile(file, chunk);
+                }
+                if (!mLoop) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Read-ahead interrupted");
+        } finally {
+            synchronized (this) {
+                mEnded = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Shuffle the list, keeping the file just played away from the start of the new pass.
+     */
+    private void shuffle(List<File> order) {
+        File last = order.get(order.size() - 1);
+        Collections.shuffle(order, mRandom);
+        if ((order.size() > 1) && (order.get(0) == last)) {
+            Collections.swap(order, 0, 1 + mRandom.nextInt(order.size() - 1));
+        }
+    }
+
+    /**
+     * Copy the PCM data of a file into the ring.
+     *
+     * @return True if some audio was read
+     */
+    private boolean readFile(File file, ByteBuffer chunk) throws InterruptedException {
+        FileInputStream in;
+        EncodedFileCache.WavInfo wav;
+        try {
+            wav = EncodedFileCache.WavInfo.read(file);
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + file + ", skipped", e);
+            skipped();
+            return false;
+        }
+        if (!wav.matches(mProfile)) {
+            Log.e(TAG, "Format of " + file + " does not match " + mProfile + ", skipped");
+            skipped();
+            closeQuietly(in);
+            return false;
+        }
+        synchronized (this) {
+            mFilesOpened++;
+            mCurrentName = file.getName();
+        }
+
+        // Whole samples only, so the next file starts on a sample
+        long remaining = wav.getDataLength() - wav.getDataLength() % mSampleSize;
+        long read = 0;
+        try {
+            FileChannel channel = in.getChannel();
+            channel.position(wav.getDataOffset());
+            while ((remaining > 0) && !isCancelled()) {
+                chunk.clear();
+                if (remaining < chunk.capacity()) {
+                    chunk.limit((int) remaining);
+                }
+                int count = channel.read(chunk);
+                if (count < 0) {
+                    break;
+                }
+                remaining -= count;
+                read += count;
+                put(chunk);
+            }
+            // A file cut short still ends on a sample
+            int partial = (int) (read % mSampleSize);
+            if (partial > 0) {
+                chunk.clear();
+                for (int i = partial; i < mSampleSize; i++) {
+                    chunk.put((byte) 0);
+                }
+                put(chunk);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+        } finally {
+            closeQuietly(in);
+        }
+        return read > 0;
+    }
+
+    /**
+     * Copy the data of a chunk, from its start to its position, into the ring. Waits for
+     * room, the read-ahead is bounded.
+     */
+    private synchronized void put(ByteBuffer chunk) throws InterruptedException {
+        int length = chunk.position();
+        int offset = 0;
+        while (offset < length) {
+            while ((mCount == mRing.length) && !mCancelled) {
+                wait();
+            }
+            if (mCancelled) {
+                return;
+            }
+            int tail = (mReadPos + mCount) % mRing.length;
+            int count = Math.min(length - offset,
+                    Math.min(mRing.length - mCount, mRing.length - tail));
+            for (int i = 0; i < count; i++) {
+                mRing[tail + i] = chunk.get(offset + i);
+            }
+            mCount += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * Block until the ring is full or the list ended, before the stream starts.
+     *
+     * @return True if there is audio to play
+     */
+    public synchronized boolean awaitReady(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while ((mCount < mRing.length) && !mEnded) {
+            long waitMs = deadline - System.currentTimeMillis();
+            if (waitMs <= 0) {
+                break;
+            }
+            wait(waitMs);
+        }
+        return mCount > 0;
+    }
+
+    /**
+     * Fill a frame, from the start of the buffer up to its capacity, without blocking.
+     * What the ring lacks is silence.
+     *
+     * @return The number of bytes of audio, or -1 once the list ended and all of it was read
+     */
+    public synchronized int read(ByteBuffer buffer) {
+        int length = buffer.capacity();
+        if ((mCount == 0) && mEnded) {
+            return -1;
+        }
+        int count = Math.min(length, mCount);
+        for (int i = 0; i < count; i++) {
+            buffer.put(i, mRing[mReadPos]);
+            if (++mReadPos == mRing.length) {
+                mReadPos = 0;
+            }
+        }
+        mCount -= count;
+        for (int i = count; i < length; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        if ((count < length) && !mEnded) {
+            mUnderruns++;
+        }
+        notifyAll();
+        return count;
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+            notifyAll();
+        }
+    }
+
+    private boolean isCancelled() {
+        return mCancelled || AudioExecutor.isCancelled();
+    }
+
+    private synchronized void skipped() {
+        mFilesSkipped++;
+    }
+
+    private static void closeQuietly(FileInputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close file", e);
+        }
+    }
+
+    /**
+     * Return the number of frames the read-ahead did not fill in time.
+     */
+    public synchronized long getUnderruns() {
+        return mUnderruns;
+    }
+
+    public synchronized int getFilesOpened() {
+        return mFilesOpened;
+    }
+
+    public synchronized int getFilesSkipped() {
+        return mFilesSkipped;
+    }
+
+    /**
+     * Return the name of the file being read ahead.
+     */
+    public synchronized String getCurrentName() {
+        return mCurrentName;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Playlist: " + mFilesOpened + " files played, " + mFilesSkipped + " skipped, "
+                + mUnderruns + " underruns";
+    }
+}
@@ -0,0 +1,135 @@
+package com.nxp.android.bleaudio;
+
+/**
+ * Rebuilds fixed size audio frames from the MTU sized packets made by {@link Packetizer}.
+ *
+ * Packet boundaries have nothing to do with frame boundaries: the payloads are concatenated
+ * and handed over frame by frame, each with the presentation time of its first byte. When a
+ * packet does not start where the previous one ended, the frame being built is dropped and
+ * reassembly restarts at the first frame starting in a packet, from the frame offset of the
+ * packets: the bytes before it, the tail of a frame partly lost, are dropped too. A frame start
+ * which does not fall where the frames being rebuilt expect it also restarts reassembly, so the
+ * frames never get out of step with the sender.
+ */
+public class Reassembler {
+
+    /**
+     * Receives the rebuilt frames.
+     */
+    public interface FrameListener {
+        void onFrame(long ptsUs, byte[] frame, int length);
+    }
+
+    private final byte[] mFrame;
+    private final int mBytesPerSecond;
+    private final long mToleranceUs;
+    private final FrameListener mListener;
+
+    private int mLength;
+    private long mPtsUs;
+    // Presentation time expected for the next packet, when known
+    private long mNextPtsUs;
+    private boolean mContinuous;
+    // True when the frame being built starts on a frame start of the sender
+    private boolean mAligned;
+
+    private long mDroppedBytes;
+    private long mLostUs;
+
+    /**
+     * @param frameSize      Size of the frames to rebuild
+     * @param bytesPerSecond Byte rate of the stream
+     * @param toleranceUs    Time stamp error tolerated before a packet is seen as discontinuous
+     * @param listener       Receiver of the frames
+     */
+    public Reassembler(int frameSize, int bytesPerSecond, long toleranceUs,
+                       FrameListener listener) {
+        mFrame = new byte[frameSize];
+        mBytesPerSecond = bytesPerSecond;
+        mToleranceUs = toleranceUs;
+        mListener = listener;
+    }
+
+    /**
+     * Add the payload of a packet.
+     *
+     * @param ptsUs       Presentation time of the first byte of the payload
+     * @param frameOffset Offset in the payload of the first frame starting in it, or
+     *                    {@link StreamProtocol#NO_FRAME_START}
+     */
+    public void push(long ptsUs, int frameOffset, byte[] data, int offset, int length) {
+        if (mContinuous && (Math.abs(ptsUs - mNextPtsUs) > mToleranceUs)) {
+            // Something got lost in between, the partial frame is meaningless
+            drop();
+            if (ptsUs > mNextPtsUs) {
+                mLostUs += ptsUs - mNextPtsUs;
+            }
+        }
+        mNextPtsUs = ptsUs + length * 1000000L / mBytesPerSecond;
+        mContinuous = true;
+
+        // Where the next frame starts, if the frame being built is in step with the sender
+        int expected = (mLength == 0) ? 0 : mFrame.length - mLength;
+        if (expected >= length) {
+            expected = StreamProtocol.NO_FRAME_START;
+        }
+        int consumed = 0;
+        if (!mAligned || (frameOffset != expected)) {
+            drop();
+            if ((frameOffset == StreamProtocol.NO_FRAME_START) || (frameOffset >= length)) {
+                // The middle of a frame whose start is lost
+                mDroppedBytes += length;
+                return;
+            }
+            mDroppedBytes += frameOffset;
+            consumed = frameOffset;
+            mAligned = true;
+        }
+        while (consumed < length) {
+            if (mLength == 0) {
+                mPtsUs = ptsUs + consumed * 1000000L / mBytesPerSecond;
+            }
+            int count = Math.min(length - consumed, mFrame.length - mLength);
+            System.arraycopy(data, offset + consumed, mFrame, mLength, count);
+            mLength += count;
+            consumed += count;
+
+            if (mLength == mFrame.length) {
+                mListener.onFrame(mPtsUs, mFrame, mLength);
+                mLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Hand over the partial frame being built, at the end of the stream.
+     */
+    public void flush() {
+        if (mLength > 0) {
+            mListener.onFrame(mPtsUs, mFrame, mLength);
+            mLength = 0;
+        }
+        mContinuous = false;
+        mAligned = false;
+    }
+
+    private void drop() {
+        mDroppedBytes += mLength;
+        mLength = 0;
+        mAligned = false;
+    }
+
+    /**
+     * Return the number of bytes dropped because of discontinuities.
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Return the duration of the audio which never arrived, from the time stamp gaps.
+     */
+    public long getLostUs() {
+        return mLostUs;
+    }
+}
@@ -0,0 +1,190 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Receive path of a talker, from the packets of the link to PCM frames in the session format.
+ *
+ * Lost packets are rebuilt from parity when the sender protects them, see {@link FecDecoder},
+ * the coded frames are rebuilt from the packets, see {@link Reassembler}, then decoded and
+ * expanded back to the session format when the sender reduced them, see
+ * {@link BitrateController}. The PCM goes to the listener in a pooled frame, without copies.
+ *
+ * The receiving threads of the service and the replay of {@link TrafficTrace} both run it, so
+ * a replayed trace goes through the code which received it.
+ */
+public class RxDecoder implements FecDecoder.PacketListener, Reassembler.FrameListener {
+    private final static String TAG = RxDecoder.class.getSimpleName();
+
+    // Time stamp jump seen as a lost packet by the reassembler, above the re-anchoring steps
+    // of the sender
+    public static final long REASSEMBLY_TOLERANCE_US = Constants.PTS_REANCHOR_US + 1000;
+
+    /**
+     * Receives the decoded frames.
+     */
+    public interface PcmListener {
+        /**
+         * @param pcm Frame with its length and presentation time set, released on return:
+         *            retain it to keep it
+         */
+        void onPcm(FramePool.Frame pcm);
+    }
+
+    private final AudioProfile mProfile;
+    private final AudioExecutor.Stage mStage;
+    private final PcmListener mListener;
+    private final FecDecoder mFecDecoder = new FecDecoder(this);
+    private final FramePool mFramePool;
+    // Rungs the sender may switch to
+    private final List<BitrateController.Rung> mLadder;
+    private Reassembler mReassembler;
+    private AudioCodec mCodec;
+    // Reduction applied by the sender, null when it sends the session format
+    private BitrateController.Rung mRung;
+    private final byte[] mReducedFrame;
+    private final int[] mLastSamples = new int[2];
+    private final int[] mTailSamples = new int[2];
+
+    // Audio lost by the reassemblers of the previous codings
+    private long mLostUs;
+
+    /**
+     * @param profile  Format of the session
+     * @param poolSize Number of frames the listener may hold at once, plus one
+     * @param stage    Stage timing the decoding of each frame and its listener, or null
+     * @param listener Receiver of the decoded frames
+     */
+    public RxDecoder(AudioProfile profile, int poolSize, AudioExecutor.Stage stage,
+                     PcmListener listener) {
+        mProfile = profile;
+        mStage = stage;
+        mListener = listener;
+        mFramePool = new FramePool(poolSize, profile.getFrameSize());
+        mReducedFrame = new byte[profile.getFrameSize()];
+        mLadder = BitrateController.buildLadder(profile);
+        mCodec = profile.createCodec();
+        mReassembler = new Reassembler(mCodec.getEncodedFrameSize(),
+                profile.getEncodedBytesPerSecond(), REASSEMBLY_TOLERANCE_US, this);
+    }
+
+    /**
+     * Add the payload of an audio packet.
+     *
+     * @param frameOffset Offset in the payload of the first frame starting in it, or
+     *                    {@link StreamProtocol#NO_FRAME_START}
+     */
+    public void push(long ptsUs, int frameOffset, byte[] data, int offset, int length) {
+        mFecDecoder.push(ptsUs, frameOffset, data, offset, length);
+    }
+
+    /**
+     * Add the payload of a parity packet.
+     */
+    public void pushParity(byte[] data, int offset, int length) {
+        mFecDecoder.pushParity(data, offset, length);
+    }
+
+    /**
+     * Switch to the coding announced by the sender for the audio which follows.
+     *
+     * @return False if the rung is not on the ladder of the session, and is ignored
+     */
+    public boolean changeRate(BitrateController.Rung rung) {
+        if (!mLadder.contains(rung)) {
+            return false;
+        }
+        // The frames of the previous coding are all in, the sender flushed them
+        flush();
+        mLostUs += mReassembler.getLostUs();
+        mCodec = rung.createCodec(mProfile);
+        mReassembler = new Reassembler(mCodec.getEncodedFrameSize(),
+                rung.getEncodedBytesPerSecond(mProfile), REASSEMBLY_TOLERANCE_US, this);
+        if (rung.isFullFormat(mProfile)) {
+            mRung = null;
+        } else {
+            // Interpolate from where the previous coding left the signal
+            System.arraycopy(mTailSamples, 0, mLastSamples, 0, mLastSamples.length);
+            mRung = rung;
+        }
+        return true;
+    }
+
+    /**
+     * Hand over what is held for packets which will not come.
+     */
+    public void flush() {
+        mFecDecoder.flush();
+        mReassembler.flush();
+    }
+
+    /**
+     * Carry on the signal of the decoder of a previous connection of the same talker.
+     */
+    public void resumeFrom(RxDecoder decoder) {
+        System.arraycopy(decoder.mTailSamples, 0, mTailSamples, 0, mTailSamples.length);
+    }
+
+    public FecDecoder getFecDecoder() {
+        return mFecDecoder;
+    }
+
+    /**
+     * Return the duration of the audio missing from the stream so far.
+     */
+    public long getLostUs() {
+        return mLostUs + mReassembler.getLostUs();
+    }
+
+    @Override
+    public void onPacket(long ptsUs, int frameOffset, byte[] payload, int offset,
+                         int length) {
+        mReassembler.push(ptsUs, frameOffset, payload, offset, length);
+    }
+
+    @Override
+    public void onFrame(long ptsUs, byte[] frame, int length) {
+        FramePool.Frame pcm = mFramePool.acquire();
+        if (pcm == null) {
+            Log.w(TAG, "No frame to decode into, frame dropped");
+            return;
+        }
+        if (mStage != null) {
+            mStage.begin();
+        }
+        int pcmLength = 0;
+        try {
+            if (mRung == null) {
+                pcmLength = mCodec.decode(frame, 0, length, pcm.getBuffer());
+            } else {
+                pcmLength = mCodec.decode(frame, 0, length, mReducedFrame, 0);
+                pcmLength = mRung.expand(mReducedFrame, pcmLength, mProfile.getChannelCount(),
+                        mLastSamples, pcm.getBuffer());
+            }
+            pcm.setLength(pcmLength);
+            pcm.setPtsUs(ptsUs);
+            keepTailSamples(pcm);
+            mListener.onPcm(pcm);
+        } finally {
+            pcm.release();
+            if (mStage != null) {
+                mStage.end(length, pcmLength);
+            }
+        }
+    }
+
+    /**
+     * Keep the last samples decoded, for a reduced coding to start from.
+     */
+    private void keepTailSamples(FramePool.Frame pcm) {
+        int channels = mProfile.getChannelCount();
+        int frameStart = pcm.getLength() / 2 - channels;
+        ByteBuffer buffer = pcm.getBuffer();
+        for (int c = 0; c < Math.min(channels, mTailSamples.length); c++) {
+            mTailSamples[c] = (frameStart >= 0) ? buffer.getShort(2 * (frameStart + c)) : 0;
+        }
+    }
+}
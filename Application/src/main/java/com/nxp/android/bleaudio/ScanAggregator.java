@@ -0,0 +1,211 @@
+package com.nxp.android.bleaudio;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Aggregates the scan results before they reach the UI.
+ *
+ * Advertisements are indexed by device address, so a busy environment costs one hash lookup
+ * per packet, and the RSSI of each device is smoothed. Whatever the advertisement rate, the
+ * listener is called on the UI thread at most once per display frame with a snapshot of the
+ * devices, optionally sorted by signal strength.
+ */
+public class ScanAggregator {
+
+    // Weight of a new RSSI sample in the smoothed value
+    private static final float RSSI_SMOOTHING = 0.25f;
+
+    /**
+     * Receives the aggregated scan results on the UI thread.
+     */
+    public interface Listener {
+        void onScanResultsChanged(List<Entry> entries);
+    }
+
+    /**
+     * Scan state of one device.
+     */
+    public static class Entry {
+        private final BluetoothDevice mDevice;
+        private String mCachedName;
+        private float mRssi;
+        private long mLastSeen;
+        private int mCount;
+
+        private Entry(BluetoothDevice device, int rssi) {
+            mDevice = device;
+            mRssi = rssi;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Return the name of the device, or the one known from a previous session if the
+         * device did not advertise it yet.
+         */
+        public String getName() {
+            String name = mDevice.getName();
+            return (name != null) ? name : mCachedName;
+        }
+
+        /**
+         * Return true if the device only comes from the known device cache and has not been
+         * seen during this scan yet.
+         */
+        public boolean isCached() {
+            return mCount == 0;
+        }
+
+        /**
+         * Return the smoothed RSSI, in dBm.
+         */
+        public int getRssi() {
+            return Math.round(mRssi);
+        }
+
+        /**
+         * Return the uptime in ms at which the device was seen last.
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * Return the number of advertisements received from the device.
+         */
+        public int getCount() {
+            return mCount;
+        }
+    }
+
+    private static final Comparator<Entry> BY_RSSI = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return Float.compare(rhs.mRssi, lhs.mRssi);
+        }
+    };
+
+    private final HashMap<String, Entry> mIndex = new HashMap<String, Entry>();
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mSortByRssi;
+    private boolean mDirty;
+    private boolean mPublishScheduled;
+
+    public ScanAggregator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add an advertisement. Called from the scan callback, on any thread.
+     */
+    public void update(BluetoothDevice device, int rssi, long uptime) {
+        synchronized (this) {
+            final String address = device.getAddress();
+            Entry entry = mIndex.get(address);
+            if (entry == null) {
+                entry = new Entry(device, rssi);
+                mIndex.put(address, entry);
+                mEntries.add(entry);
+            } else {
+                entry.mRssi += RSSI_SMOOTHING * (rssi - entry.mRssi);
+            }
+            entry.mLastSeen = uptime;
+            entry.mCount++;
+
+            mDirty = true;
+            if (mPublishScheduled) {
+                return;
+            }
+            mPublishScheduled = true;
+        }
+        // Choreographer can only be reached from the UI thread
+        mHandler.post(mScheduleFrame);
+    }
+
+    /**
+     * Add a device known from a previous session, before it is seen by the scan.
+     */
+    public void addCached(BluetoothDevice device, String name, int rssi) {
+        synchronized (this) {
+            final String address = device.getAddress();
+            if (mIndex.containsKey(address)) {
+                return;
+            }
+            Entry entry = new Entry(device, rssi);
+            entry.mCachedName = name;
+            mIndex.put(address, entry);
+            mEntries.add(entry);
+            mDirty = true;
+        }
+        mHandler.post(mScheduleFrame);
+    }
+
+    /**
+     * Sort the published devices by signal strength, strongest first, or in discovery order.
+     */
+    public void setSortByRssi(boolean sortByRssi) {
+        synchronized (this) {
+            mSortByRssi = sortByRssi;
+            mDirty = true;
+        }
+        mHandler.post(mScheduleFrame);
+    }
+
+    public synchronized boolean isSortByRssi() {
+        return mSortByRssi;
+    }
+
+    /**
+     * Forget all the devices.
+     */
+    public void clear() {
+        synchronized (this) {
+            mIndex.clear();
+            mEntries.clear();
+            mDirty = true;
+        }
+        mHandler.post(mScheduleFrame);
+    }
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().removeFrameCallback(mPublish);
+            Choreographer.getInstance().postFrameCallback(mPublish);
+        }
+    };
+
+    private final Choreographer.FrameCallback mPublish = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ArrayList<Entry> snapshot;
+            synchronized (ScanAggregator.this) {
+                mPublishScheduled = false;
+                if (!mDirty) {
+                    return;
+                }
+                mDirty = false;
+                snapshot = new ArrayList<Entry>(mEntries);
+                if (mSortByRssi) {
+                    // Sort under the lock, RSSI values must not move while sorting
+                    Collections.sort(snapshot, BY_RSSI);
+                }
+            }
+            mListener.onScanResultsChanged(snapshot);
+        }
+    };
+}
@@ -0,0 +1,308 @@
+package com.nxp.android.bleaudio;
+
+import android.os.Debug;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * What each stage of the pipeline costs: CPU time of its thread, wall time, bytes in and
+ * out, and calls per audio frame, to tell where the battery goes.
+ *
+ * A stage is measured through its {@link Probe}, on any number of threads. Every thread
+ * counts into a counter of its own, written without locks, and the counters are merged by
+ * stage when a {@link #snapshot()} is taken. Wall time includes the time a stage spends
+ * blocked, on a socket or on the audio hardware; CPU time does not.
+ *
+ * Probes nest: a stage run within another one on the same thread, such as the socket writes
+ * of the send stage, is taken out of the time of the outer stage, so each stage only counts
+ * its own time and the costs of the stages add up.
+ */
+public class StageStats {
+
+    /**
+     * Counts of a stage on one thread. Written by that thread only.
+     */
+    private static class Counter {
+        final String mName;
+        final Thread mThread;
+        long mBeginCpuNs;
+        long mBeginWallNs;
+        // Counter of the run this one is nested in, and time of the runs nested in this one
+        Counter mParent;
+        long mNestedCpuNs;
+        long mNestedWallNs;
+        volatile long mCalls;
+        volatile long mCpuNs;
+        volatile long mWallNs;
+        volatile long mBytesIn;
+        volatile long mBytesOut;
+
+        Counter(String name, Thread thread) {
+            mName = name;
+            mThread = thread;
+        }
+    }
+
+    /**
+     * Measures the runs of a stage.
+     */
+    public class Probe {
+        private final String mName;
+        private final ThreadLocal<Counter> mCounter = new ThreadLocal<Counter>() {
+            @Override
+            protected Counter initialValue() {
+                return register(mName);
+            }
+        };
+
+        private Probe(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Mark the start of a run, on the calling thread. A run does not nest in a run of
+         * the same stage.
+         */
+        public void begin() {
+            Counter counter = mCounter.get();
+            Counter running = mRunning.get();
+            // A run begun again without ending stays nested where it was
+            counter.mParent = (running == counter) ? counter.mParent : running;
+            counter.mNestedCpuNs = 0;
+            counter.mNestedWallNs = 0;
+            mRunning.set(counter);
+            counter.mBeginCpuNs = Debug.threadCpuTimeNanos();
+            counter.mBeginWallNs = System.nanoTime();
+        }
+
+        /**
+         * Mark the end of the run started by {@link #begin()} on the calling thread.
+         *
+         * @param bytesIn  Data consumed by the run
+         * @param bytesOut Data produced by the run
+         */
+        public void end(long bytesIn, long bytesOut) {
+            Counter counter = mCounter.get();
+            if (counter.mBeginWallNs == 0) {
+                return;
+            }
+            long cpuNs = Debug.threadCpuTimeNanos() - counter.mBeginCpuNs;
+            long wallNs = System.nanoTime() - counter.mBeginWallNs;
+            counter.mCpuNs += cpuNs - counter.mNestedCpuNs;
+            counter.mWallNs += wallNs - counter.mNestedWallNs;
+            counter.mBytesIn += bytesIn;
+            counter.mBytesOut += bytesOut;
+            counter.mCalls++;
+            counter.mBeginWallNs = 0;
+
+            Counter parent = counter.mParent;
+            if (parent != null) {
+                parent.mNestedCpuNs += cpuNs;
+                parent.mNestedWallNs += wallNs;
+            }
+            counter.mParent = null;
+            mRunning.set(parent);
+        }
+    }
+
+    /**
+     * Totals of a stage, over all its threads.
+     */
+    public static class Snapshot {
+        private final String mName;
+        private int mThreads;
+        private long mCalls;
+        private long mCpuNs;
+        private long mWallNs;
+        private long mBytesIn;
+        private long mBytesOut;
+
+        private Snapshot(String name) {
+            mName = name;
+        }
+
+        private void add(Counter counter) {
+            mCalls += counter.mCalls;
+            mCpuNs += counter.mCpuNs;
+            mWallNs += counter.mWallNs;
+            mBytesIn += counter.mBytesIn;
+            mBytesOut += counter.mBytesOut;
+        }
+
+        private void add(Snapshot snapshot) {
+            mCalls += snapshot.mCalls;
+            mCpuNs += snapshot.mCpuNs;
+            mWallNs += snapshot.mWallNs;
+            mBytesIn += snapshot.mBytesIn;
+            mBytesOut += snapshot.mBytesOut;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Return the number of live threads which ran the stage.
+         */
+        public int getThreads() {
+            return mThreads;
+        }
+
+        public long getCalls() {
+            return mCalls;
+        }
+
+        public long getCpuUs() {
+            return mCpuNs / 1000;
+        }
+
+        public long getWallUs() {
+            return mWallNs / 1000;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        /**
+         * Return the average number of runs per audio frame of the pipeline.
+         */
+        public float getCallsPerFrame(long frames) {
+            return (frames > 0) ? (float) mCalls / frames : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mCalls + " calls, cpu " + getCpuUs() + "us, wall "
+                    + getWallUs() + "us, " + mBytesIn + " bytes in, " + mBytesOut
+                    + " bytes out";
+        }
+    }
+
+    private final LinkedHashMap<String, Probe> mProbes = new LinkedHashMap<String, Probe>();
+    private final ArrayList<Counter> mCounters = new ArrayList<Counter>();
+    // Totals of the threads which ended, by stage
+    private final LinkedHashMap<String, Snapshot> mRetired =
+            new LinkedHashMap<String, Snapshot>();
+    private final Probe mFrames;
+    // Innermost run going on, by thread
+    private final ThreadLocal<Counter> mRunning = new ThreadLocal<Counter>();
+
+    public StageStats() {
+        mFrames = getProbe("Frames");
+    }
+
+    /**
+     * Return the probe of the stage of the given name, created on first use.
+     */
+    public synchronized Probe getProbe(String name) {
+        Probe probe = mProbes.get(name);
+        if (probe == null) {
+            probe = new Probe(name);
+            mProbes.put(name, probe);
+        }
+        return probe;
+    }
+
+    /**
+     * Count audio frames handled by the pipeline, captured or received, the unit of
+     * {@link Snapshot#getCallsPerFrame}.
+     */
+    public void addFrames(int frames) {
+        Counter counter = mFrames.mCounter.get();
+        counter.mCalls += frames;
+    }
+
+    private synchronized Counter register(String name) {
+        Counter counter = new Counter(name, Thread.currentThread());
+        mCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * Return the number of audio frames handled since the start.
+     */
+    public long getFrames() {
+        for (Snapshot snapshot : snapshot()) {
+            if (snapshot.getName().equals(mFrames.getName())) {
+                return snapshot.getCalls();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Merge the counters of all the threads, by stage. The counters of the threads which
+     * ended are folded into the totals of their stage.
+     */
+    public synchronized List<Snapshot> snapshot() {
+        for (int i = mCounters.size() - 1; i >= 0; i--) {
+            Counter counter = mCounters.get(i);
+            if (!counter.mThread.isAlive()) {
+                getSnapshot(mRetired, counter.mName).add(counter);
+                mCounters.remove(i);
+            }
+        }
+        LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>();
+        for (String name : mProbes.keySet()) {
+            Snapshot snapshot = getSnapshot(snapshots, name);
+            Snapshot retired = mRetired.get(name);
+            if (retired != null) {
+                snapshot.add(retired);
+            }
+        }
+        for (Counter counter : mCounters) {
+            Snapshot snapshot = getSnapshot(snapshots, counter.mName);
+            snapshot.add(counter);
+            snapshot.mThreads++;
+        }
+        return new ArrayList<Snapshot>(snapshots.values());
+    }
+
+    private static Snapshot getSnapshot(LinkedHashMap<String, Snapshot> snapshots, String name) {
+        Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            snapshot = new Snapshot(name);
+            snapshots.put(name, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write a snapshot to a file, a line per stage, tab separated.
+     */
+    public void dump(File file) throws IOException {
+        List<Snapshot> snapshots = snapshot();
+        long frames = getFrames();
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("stage\tthreads\tcalls\tcalls_per_frame\tcpu_us\twall_us\tbytes_in"
+                    + "\tbytes_out");
+            for (Snapshot snapshot : snapshots) {
+                out.println(snapshot.getName() + "\t" + snapshot.getThreads() + "\t"
+                        + snapshot.getCalls() + "\t" + snapshot.getCallsPerFrame(frames) + "\t"
+                        + snapshot.getCpuUs() + "\t" + snapshot.getWallUs() + "\t"
+                        + snapshot.getBytesIn() + "\t" + snapshot.getBytesOut());
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.nxp.android.bleaudio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Framing of the data exchanged over the L2CAP socket.
+ *
+ * Every packet starts with a 3 bytes header: the packet type followed by the payload length
+ * (big endian). Audio packets carry the presentation timestamp of their first sample, in
+ * microseconds of the sender clock, and the offset of the first frame starting in the packet,
+ * in front of the audio data. Clock sync packets carry the
+ * timestamps of an NTP like exchange, see {@link ClockSync}. Probe packets are synthetic
+ * traffic used to measure the link, see {@link LinkProbe}. Hello and format packets make up
+ * the handshake opening every connection, see {@link FormatNegotiator}. Feedback packets report
+ * the reception quality to the sender, and rate change packets announce the coding of the
+ * audio which follows, see {@link BitrateController}. Parity packets protect groups of audio
+ * packets against loss, see {@link FecEncoder}. Volume packets set the gain of the stream on
+ * the receiver. Heartbeat packets, with no payload, keep an idle link alive, see
+ * {@link LinkMonitor}. Session packets carry the token of the session and a time stamp, so a
+ * connection made again after a drop resumes the session.
+ *
+ * Packet types are multiplexed on the socket with two priorities: audio, probe and parity
+ * packets are bulk traffic, everything else is control traffic. A control packet waits for
+ * the packet being written at most, never for the bulk packets queued behind it, see
+ * {@link Writer}.
+ */
+public class StreamProtocol {
+
+    public static final int TYPE_AUDIO = 1;
+    public static final int TYPE_SYNC_REQUEST = 2;
+    public static final int TYPE_SYNC_RESPONSE = 3;
+    public static final int TYPE_PROBE = 4;
+    public static final int TYPE_PROBE_ECHO = 5;
+    public static final int TYPE_HELLO = 6;
+    public static final int TYPE_FORMAT = 7;
+    public static final int TYPE_FEEDBACK = 8;
+    public static final int TYPE_RATE_CHANGE = 9;
+    public static final int TYPE_FEC_PARITY = 10;
+    public static final int TYPE_VOLUME = 11;
+    public static final int TYPE_HEARTBEAT = 12;
+    public static final int TYPE_SESSION = 13;
+
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_PAYLOAD_SIZE = 0xffff;
+
+    // Presentation timestamp and offset of the first frame start, in front of the audio data
+    public static final int AUDIO_HEADER_SIZE = 10;
+    // Frame offset of an audio packet carrying the middle of a frame only
+    public static final int NO_FRAME_START = 0xffff;
+    // Payloads of the control packets: time stamps of the clock sync exchange, gain,
+    // reception report, and session token with its time stamp
+    public static final int SYNC_REQUEST_SIZE = 8;
+    public static final int SYNC_RESPONSE_SIZE = 24;
+    public static final int VOLUME_SIZE = 4;
+    public static final int FEEDBACK_SIZE = 8;
+    public static final int SESSION_SIZE = 16;
+
+    /**
+     * Return true for the packet types carrying bulk traffic, which yield to control packets.
+     */
+    public static boolean isBulk(int type) {
+        return (type == TYPE_AUDIO) || (type == TYPE_PROBE) || (type == TYPE_PROBE_ECHO)
+                || (type == TYPE_FEC_PARITY);
+    }
+
+    /**
+     * Return the shortest payload a packet of the given type carries. Shorter packets cannot
+     * be parsed and are dropped by the receivers, before any of their fields is read.
+     */
+    public static int getMinPayloadLength(int type) {
+        switch (type) {
+            case TYPE_AUDIO:
+                return AUDIO_HEADER_SIZE;
+            case TYPE_SYNC_REQUEST:
+                return SYNC_REQUEST_SIZE;
+            case TYPE_SYNC_RESPONSE:
+                return SYNC_RESPONSE_SIZE;
+            case TYPE_PROBE:
+            case TYPE_PROBE_ECHO:
+                return LinkProbe.PROBE_HEADER_SIZE;
+            case TYPE_FEC_PARITY:
+                return FecDecoder.PARITY_HEADER_SIZE;
+            case TYPE_VOLUME:
+                return VOLUME_SIZE;
+            case TYPE_FEEDBACK:
+                return FEEDBACK_SIZE;
+            case TYPE_RATE_CHANGE:
+                return BitrateController.Rung.SIZE;
+            case TYPE_SESSION:
+                return SESSION_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    public static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    public static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    public static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    public static int getShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    public static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    public static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Writes packets to the socket. Shared by the threads using the same connection, each
+     * packet goes out in a single write so the header never travels alone.
+     *
+     * Threads take turns on the socket packet by packet. A thread with a control packet goes
+     * first: bulk writers wait while any control packet is pending, so control traffic never
+     * queues behind a burst of audio.
+     */
+    public static class Writer {
+        private final OutputStream mOutStream;
+        private final byte[] mPacket;
+
+        // Turn taking on the socket
+        private final Object mTurnLock = new Object();
+        private boolean mBusy;
+        private int mControlWaiting;
+
+        private long mControlPackets;
+        private long mBulkPackets;
+        private long mMaxControlWaitUs;
+        private volatile long mLastSendUs = ClockSync.now();
+        // Cost of the socket writes, when accounted
+        private StageStats.Probe mProbe;
+
+        public Writer(OutputStream outStream) {
+            mOutStream = outStream;
+            mPacket = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE];
+        }
+
+        /**
+         * Account for the cost of the socket writes in a stage of a {@link StageStats}.
+         */
+        public void setProbe(StageStats.Probe probe) {
+            mProbe = probe;
+        }
+
+        /**
+         * Write a packet of the given type.
+         */
+        public void write(int type, byte[] payload, int offset, int length)
+                throws IOException {
+            acquire(type);
+            try {
+                System.arraycopy(payload, offset, mPacket, HEADER_SIZE, length);
+                send(type, length);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Write an audio packet.
+         *
+         * @param ptsUs       Presentation time of the first sample, in microseconds
+         * @param frameOffset Offset in the data of the first frame starting in the packet,
+         *                    or {@link #NO_FRAME_START}
+         */
+        public void writeAudio(long ptsUs, int frameOffset, byte[] data, int offset,
+                               int length) throws IOException {
+            acquire(TYPE_AUDIO);
+            try {
+                putLong(mPacket, HEADER_SIZE, ptsUs);
+                putShort(mPacket, HEADER_SIZE + 8, frameOffset);
+                System.arraycopy(data, offset, mPacket, HEADER_SIZE + AUDIO_HEADER_SIZE, length);
+                send(TYPE_AUDIO, AUDIO_HEADER_SIZE + length);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Write a clock sync request, stamped with the local time of transmission.
+         */
+        public void writeSyncRequest() throws IOException {
+            acquire(TYPE_SYNC_REQUEST);
+            try {
+                putLong(mPacket, HEADER_SIZE, ClockSync.now());
+                send(TYPE_SYNC_REQUEST, SYNC_REQUEST_SIZE);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Answer a clock sync request, stamped with the local time of transmission.
+         *
+         * @param requestTimeUs Remote transmission time carried by the request
+         * @param receiveTimeUs Local time at which the request was received
+         */
+        public void writeSyncResponse(long requestTimeUs, long receiveTimeUs)
+                throws IOException {
+            acquire(TYPE_SYNC_RESPONSE);
+            try {
+                putLong(mPacket, HEADER_SIZE, requestTimeUs);
+                putLong(mPacket, HEADER_SIZE + 8, receiveTimeUs);
+                // Stamped once the turn is ours, the wait is not part of the exchange
+                putLong(mPacket, HEADER_SIZE + 16, ClockSync.now());
+                send(TYPE_SYNC_RESPONSE, SYNC_RESPONSE_SIZE);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Report the reception quality to the sender.
+         *
+         * @param lossPermille Share of the audio lost since the last report, in 1/1000
+         * @param depthMs      Audio buffered for playout, or -1 when not playing
+         * @param underruns    Playout underruns since the stream start
+         */
+        public void writeFeedback(int lossPermille, int depthMs, int underruns)
+                throws IOException {
+            acquire(TYPE_FEEDBACK);
+            try {
+                mPacket[HEADER_SIZE] = (byte) (lossPermille >> 8);
+                mPacket[HEADER_SIZE + 1] = (byte) lossPermille;
+                mPacket[HEADER_SIZE + 2] = (byte) (depthMs >> 8);
+                mPacket[HEADER_SIZE + 3] = (byte) depthMs;
+                putInt(mPacket, HEADER_SIZE + 4, underruns);
+                send(TYPE_FEEDBACK, FEEDBACK_SIZE);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Set the gain the receiver applies to this stream.
+         *
+         * @param gainQ15 Gain in Q15, {@link AudioMixer#UNITY_GAIN} to leave the stream as is
+         */
+        public void writeVolume(int gainQ15) throws IOException {
+            acquire(TYPE_VOLUME);
+            try {
+                putInt(mPacket, HEADER_SIZE, gainQ15);
+                send(TYPE_VOLUME, VOLUME_SIZE);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Write the token of the session and a time stamp: where the audio starts from the
+         * sender, the last audio received from the receiver.
+         */
+        public void writeSession(long token, long ptsUs) throws IOException {
+            acquire(TYPE_SESSION);
+            try {
+                putLong(mPacket, HEADER_SIZE, token);
+                putLong(mPacket, HEADER_SIZE + 8, ptsUs);
+                send(TYPE_SESSION, SESSION_SIZE);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Write a heartbeat, to show the link is alive when nothing else is sent. Only if the
+         * socket is free: a heartbeat never waits for a write in progress, which may be stuck
+         * on a dead link.
+         *
+         * @return False if the socket was busy and nothing was written
+         */
+        public boolean tryWriteHeartbeat() throws IOException {
+            synchronized (mTurnLock) {
+                if (mBusy || (mControlWaiting > 0)) {
+                    return false;
+                }
+                mBusy = true;
+                mControlPackets++;
+            }
+            try {
+                send(TYPE_HEARTBEAT, 0);
+            } finally {
+                release();
+            }
+            return true;
+        }
+
+        /**
+         * Wait for the turn to write a packet of the given type.
+         */
+        private void acquire(int type) throws IOException {
+            boolean bulk = isBulk(type);
+            long startUs = bulk ? 0 : ClockSync.now();
+            synchronized (mTurnLock) {
+                if (!bulk) {
+                    mControlWaiting++;
+                }
+                try {
+                    while (mBusy || (bulk && (mControlWaiting > 0))) {
+                        mTurnLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for the socket");
+                } finally {
+                    if (!bulk) {
+                        mControlWaiting--;
+                    }
+                }
+                mBusy = true;
+                if (bulk) {
+                    mBulkPackets++;
+                } else {
+                    mControlPackets++;
+                    mMaxControlWaitUs = Math.max(mMaxControlWaitUs, ClockSync.now() - startUs);
+                }
+            }
+        }
+
+        private void release() {
+            synchronized (mTurnLock) {
+                mBusy = false;
+                mTurnLock.notifyAll();
+            }
+        }
+
+        public long getControlPackets() {
+            synchronized (mTurnLock) {
+                return mControlPackets;
+            }
+        }
+
+        public long getBulkPackets() {
+            synchronized (mTurnLock) {
+                return mBulkPackets;
+            }
+        }
+
+        /**
+         * Return the local time the last packet was written.
+         */
+        public long getLastSendUs() {
+            return mLastSendUs;
+        }
+
+        /**
+         * Return the longest time a control packet waited for the socket.
+         */
+        public long getMaxControlWaitUs() {
+            synchronized (mTurnLock) {
+                return mMaxControlWaitUs;
+            }
+        }
+
+        private void send(int type, int length) throws IOException {
+            mPacket[0] = (byte) type;
+            mPacket[1] = (byte) (length >> 8);
+            mPacket[2] = (byte) length;
+            StageStats.Probe probe = mProbe;
+            if (probe != null) {
+                probe.begin();
+            }
+            mOutStream.write(mPacket, 0, HEADER_SIZE + length);
+            if (probe != null) {
+                probe.end(0, HEADER_SIZE + length);
+            }
+            mLastSendUs = ClockSync.now();
+        }
+    }
+
+    /**
+     * Reads whole packets from the socket into a single reusable buffer.
+     */
+    public static class Reader {
+        private final InputStream mInStream;
+        private final byte[] mPacket;
+        private int mPayloadLength;
+
+        public Reader(InputStream inStream) {
+            mInStream = inStream;
+            mPacket = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE];
+        }
+
+        /**
+         * Block until a whole packet is received.
+         *
+         * @return The packet type
+         */
+        public int read() throws IOException {
+            readFully(0, HEADER_SIZE);
+            mPayloadLength = ((mPacket[1] & 0xff) << 8) | (mPacket[2] & 0xff);
+            readFully(HEADER_SIZE, mPayloadLength);
+            return mPacket[0] & 0xff;
+        }
+
+        private void readFully(int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = mInStream.read(mPacket, offset, length);
+                if (count < 0) {
+                    throw new EOFException("L2CAP stream closed");
+                }
+                offset += count;
+                length -= count;
+            }
+        }
+
+        public byte[] getBuffer() {
+            return mPacket;
+        }
+
+        public int getPayloadOffset() {
+            return HEADER_SIZE;
+        }
+
+        public int getPayloadLength() {
+            return mPayloadLength;
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.nxp.android.bleaudio;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Trace of the bytes received on a link, as they arrived, to replay real traffic in tests.
+ *
+ * The {@link Recorder} sits on the input stream of a receiving thread and logs every read:
+ * the bytes, and the time elapsed since the previous read. The {@link Replayer} writes them
+ * back with the same timing, or faster, into a {@link LoopbackTransport}, so the receive
+ * pipeline sees the original traffic, packet boundaries, bursts and gaps included. See
+ * {@link #replayOverLoopback} to benchmark the pipeline on a plain JVM.
+ *
+ * The trace starts with the format of the stream (big endian): [magic:4][version:4]
+ * [sampleRate:4][channels:4][codec:4][frameDurationMs:4][fecGroupSize:4][startMs:8], then
+ * holds a record per read: [delayUs:varint][length:varint][bytes].
+ */
+public class TrafficTrace {
+    private final static String TAG = TrafficTrace.class.getSimpleName();
+
+    private static final int MAGIC = 0x42415452;
+    private static final int VERSION = 1;
+
+    /**
+     * Input stream logging what is read from it to a trace file.
+     */
+    public static class Recorder extends FilterInputStream {
+        private final DataOutputStream mOut;
+        private long mLastReadUs;
+        private long mRecords;
+        private long mBytes;
+        private boolean mFailed;
+
+        /**
+         * @param in      Stream to record
+         * @param file    Trace file, overwritten
+         * @param profile Format of the stream
+         */
+        public Recorder(InputStream in, File file, AudioProfile profile) throws IOException {
+            super(in);
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeInt(profile.getSampleRate());
+            mOut.writeInt(profile.getChannelCount());
+            mOut.writeInt(profile.getCodec());
+            mOut.writeInt(profile.getFrameDurationMs());
+            mOut.writeInt(profile.getFecGroupSize());
+            mOut.writeLong(System.currentTimeMillis());
+            mLastReadUs = ClockSync.now();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                record(b, off, count);
+            }
+            return count;
+        }
+
+        private void record(byte[] b, int off, int count) {
+            if (mFailed) {
+                return;
+            }
+            long now = ClockSync.now();
+            try {
+                writeVarint(mOut, now - mLastReadUs);
+                writeVarint(mOut, count);
+                mOut.write(b, off, count);
+            } catch (IOException e) {
+                // Losing the trace must not lose the link
+                Log.e(TAG, "Trace cannot be written, recording stopped", e);
+                mFailed = true;
+            }
+            mLastReadUs = now;
+            mRecords++;
+            mBytes += count;
+        }
+
+        /**
+         * Close the trace. The stream recorded stays open.
+         */
+        public void closeTrace() throws IOException {
+            mFailed = true;
+            mOut.close();
+        }
+
+        /**
+         * Close the trace, and the stream recorded.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                closeTrace();
+            } finally {
+                super.close();
+            }
+        }
+
+        public long getRecords() {
+            return mRecords;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+
+    /**
+     * Writes a trace back to a stream with its recorded timing, as a task of an
+     * {@link AudioExecutor} or on the caller thread.
+     */
+    public static class Replayer implements AudioExecutor.Task {
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+        private final float mSpeed;
+        private final AudioProfile mProfile;
+        private volatile boolean mCancelled;
+
+        private long mRecords;
+        private long mBytes;
+        private long mMaxLatenessUs;
+
+        /**
+         * @param speed Replay speed, 1 for the recorded timing, 0 for as fast as possible
+         */
+        public Replayer(File file, OutputStream out, float speed) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            mOut = out;
+            mSpeed = speed;
+            try {
+                mProfile = readProfile(mIn, file.getName());
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Return the format of the stream recorded.
+         */
+        public AudioProfile getProfile() {
+            return mProfile;
+        }
+
+        /**
+         * Replay the whole trace, then close the output.
+         */
+        @Override
+        public void run() {
+            byte[] buffer = new byte[StreamProtocol.HEADER_SIZE + StreamProtocol.MAX_PAYLOAD_SIZE];
+            long startUs = ClockSync.now();
+            long traceUs = 0;
+            try {
+                while (!mCancelled && !AudioExecutor.isCancelled()) {
+                    long delayUs;
+                    try {
+                        delayUs = readVarint(mIn);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int length = (int) readVarint(mIn);
+                    if (length > buffer.length) {
+                        buffer = new byte[length];
+                    }
+                    mIn.readFully(buffer, 0, length);
+
+                    if (mSpeed > 0) {
+                        // Keep to the trace time, late writes catch up without waiting
+                        traceUs += delayUs;
+                        long dueUs = startUs + (long) (traceUs / mSpeed);
+                        long waitUs = dueUs - ClockSync.now();
+                        if (waitUs > 0) {
+                            Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+                        }
+                    }
+                    mOut.write(buffer, 0, length);
+                    long latenessUs = (mSpeed > 0)
+                            ? ClockSync.now() - startUs - (long) (traceUs / mSpeed) : 0;
+                    synchronized (this) {
+                        mRecords++;
+                        mBytes += length;
+                        mMaxLatenessUs = Math.max(mMaxLatenessUs, latenessUs);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Replay stopped", e);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Replay interrupted");
+            } finally {
+                try {
+                    mIn.close();
+                    mOut.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Trace cannot be closed", e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public synchronized long getRecords() {
+            return mRecords;
+        }
+
+        public synchronized long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Return the longest delay of a write past its replay time.
+         */
+        public synchronized long getMaxLatenessUs() {
+            return mMaxLatenessUs;
+        }
+    }
+
+    /**
+     * Measurements of the receive pipeline over a replayed trace.
+     */
+    public static class Result {
+        private long mPackets;
+        private long mShortPackets;
+        private long mFrames;
+        private long mAverageDecodeUs;
+        private long mMaxDecodeUs;
+        private long mRecoveredPackets;
+        private long mLostPackets;
+        private long mLostUs;
+        private int mUnderruns;
+        private int mDroppedSamples;
+        private long mMaxLatenessUs;
+
+        public long getPackets() {
+            return mPackets;
+        }
+
+        /**
+         * Return the number of packets too short for their type, dropped.
+         */
+        public long getShortPackets() {
+            return mShortPackets;
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        /**
+         * Return the average time taken to decode a frame and write it to the mixer.
+         */
+        public long getAverageDecodeUs() {
+            return mAverageDecodeUs;
+        }
+
+        public long getMaxDecodeUs() {
+            return mMaxDecodeUs;
+        }
+
+        /**
+         * Return the number of packets rebuilt from the parity.
+         */
+        public long getRecoveredPackets() {
+            return mRecoveredPackets;
+        }
+
+        public long getLostPackets() {
+            return mLostPackets;
+        }
+
+        /**
+         * Return the duration of the audio missing from the stream.
+         */
+        public long getLostUs() {
+            return mLostUs;
+        }
+
+        /**
+         * Return the number of times the jitter buffer ran dry.
+         */
+        public int getUnderruns() {
+            return mUnderruns;
+        }
+
+        public int getDroppedSamples() {
+            return mDroppedSamples;
+        }
+
+        /**
+         * Return the longest delay of the replay behind the trace timing.
+         */
+        public long getMaxLatenessUs() {
+            return mMaxLatenessUs;
+        }
+
+        @Override
+        public String toString() {
+            return mPackets + " packets, " + mShortPackets + " too short, " + mFrames
+                    + " frames decoded in " + getAverageDecodeUs() + "us avg " + mMaxDecodeUs
+                    + "us max, " + mRecoveredPackets + " packets recovered, " + mLostPackets
+                    + " lost, " + mLostUs / 1000 + "ms of audio lost, " + mUnderruns
+                    + " underruns, " + mDroppedSamples + " samples dropped, replay "
+                    + mMaxLatenessUs / 1000 + "ms late at most";
+        }
+    }
+
+    /**
+     * Replay a trace into the receive pipeline of the service over a local loopback:
+     * packet parsing, FEC recovery, frame reassembly and decoding, see {@link RxDecoder}, and
+     * the jitter buffer of the mixer, the frames scheduled on their time stamps as the service
+     * schedules them. The mixer plays out at the frame rate scaled by the replay speed.
+     *
+     * @param speed Replay speed, 1 for the recorded timing
+     */
+    public static Result replayOverLoopback(File trace, float speed)
+            throws IOException, InterruptedException {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(
+                Constants.L2CAP_DEFAULT_MTU, 64 * 1024);
+        final LoopbackTransport sender = pair[0];
+        final LoopbackTransport receiver = pair[1];
+        final Replayer replayer = new Replayer(trace, sender.getOutputStream(), speed);
+        AudioProfile profile = replayer.getProfile();
+        AudioExecutor executor = new AudioExecutor("TraceReplay");
+        AudioExecutor.Stage stage = executor.getStage("Decode",
+                profile.getFrameDurationMs() * 1000L, 0);
+        ReplayPipeline pipeline = new ReplayPipeline(profile, stage, receiver.getInputStream(),
+                speed);
+
+        executor.execute("Replayer", AudioExecutor.PRIORITY_DEFAULT, replayer);
+        executor.execute("Receiver", AudioExecutor.PRIORITY_AUDIO, pipeline);
+        try {
+            // Play out until the trace is consumed, at the pace of the replay. Periods are
+            // played back to back in trace time, as a sound device plays them.
+            short[] out = new short[profile.getSamplesPerFrame() * profile.getChannelCount()];
+            long frameUs = profile.getFrameDurationMs() * 1000L;
+            long periodUs = (long) (frameUs / pipeline.mSpeed);
+            long outUs = pipeline.mStartUs;
+            long nextUs = ClockSync.now();
+            while (!pipeline.mDone) {
+                pipeline.mMixer.mix(out, out.length, outUs);
+                outUs += frameUs;
+                nextUs += periodUs;
+                long waitUs = nextUs - ClockSync.now();
+                if (waitUs > 0) {
+                    Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+                }
+            }
+        } finally {
+            replayer.cancel();
+            sender.close();
+            receiver.close();
+            executor.shutdown(1000);
+        }
+
+        Result result = pipeline.mResult;
+        FecDecoder fecDecoder = pipeline.mDecoder.getFecDecoder();
+        result.mFrames = stage.getRuns();
+        result.mAverageDecodeUs = stage.getAverageRunUs();
+        result.mMaxDecodeUs = stage.getMaxRunUs();
+        result.mRecoveredPackets = fecDecoder.getRecoveredPackets();
+        result.mLostPackets = fecDecoder.getLostPackets();
+        result.mLostUs = pipeline.mDecoder.getLostUs();
+        result.mUnderruns = pipeline.mMixer.getUnderrunCount();
+        result.mDroppedSamples = pipeline.mSource.getDroppedSamples();
+        result.mMaxLatenessUs = replayer.getMaxLatenessUs();
+        return result;
+    }
+
+    /**
+     * The receive path of a talker, as run by the receiving threads of the service, without
+     * the control exchanges. There is no clock sync to replay: the clock of the sender is
+     * anchored on the trace time at which the first frame is decoded.
+     */
+    private static class ReplayPipeline implements AudioExecutor.Task, RxDecoder.PcmListener {
+        private final AudioProfile mProfile;
+        private final InputStream mIn;
+        private final RxDecoder mDecoder;
+        private final AudioMixer mMixer;
+        private final AudioMixer.Source mSource;
+        private final Result mResult = new Result();
+        private volatile boolean mDone;
+
+        // The trace time runs at the replay speed from the start of the replay
+        private final float mSpeed;
+        private final long mStartUs = ClockSync.now();
+        private long mOffsetUs = AudioMixer.NO_TIMESTAMP;
+
+        ReplayPipeline(AudioProfile profile, AudioExecutor.Stage stage, InputStream in,
+                       float speed) {
+            mProfile = profile;
+            mIn = in;
+            mSpeed = Math.max(speed, 0.01f);
+            mDecoder = new RxDecoder(profile, 2, stage, this);
+
+            // Jitter buffer sized as the service sizes it, a frame per period
+            int periodSize = profile.getSamplesPerFrame() * profile.getChannelCount();
+            int depth = BufferTuner.getPeriods(profile.getBufferLevel()) * periodSize;
+            int maxDepth = 2 * BufferTuner.getPeriods(BufferTuner.MAX_LEVEL) * periodSize;
+            mMixer = new AudioMixer(1, profile.getSampleRate(), profile.getChannelCount(),
+                    periodSize, depth, maxDepth, profile.getPlayoutDelayMs(),
+                    Constants.SYNC_TOLERANCE_US);
+            mMixer.setDepth(depth, 2 * depth);
+            mSource = mMixer.addSource();
+        }
+
+        long getTraceTime() {
+            return mStartUs + (long) ((ClockSync.now() - mStartUs) * mSpeed);
+        }
+
+        @Override
+        public void run() {
+            StreamProtocol.Reader reader = new StreamProtocol.Reader(mIn);
+            byte[] packet = reader.getBuffer();
+            try {
+                while (true) {
+                    int type = reader.read();
+                    int offset = reader.getPayloadOffset();
+                    int length = reader.getPayloadLength();
+                    mResult.mPackets++;
+                    if (length < StreamProtocol.getMinPayloadLength(type)) {
+                        mResult.mShortPackets++;
+                        continue;
+                    }
+                    switch (type) {
+                        case StreamProtocol.TYPE_AUDIO:
+                            mDecoder.push(StreamProtocol.getLong(packet, offset),
+                                    StreamProtocol.getShort(packet, offset + 8), packet,
+                                    offset + StreamProtocol.AUDIO_HEADER_SIZE,
+                                    length - StreamProtocol.AUDIO_HEADER_SIZE);
+                            break;
+                        case StreamProtocol.TYPE_FEC_PARITY:
+                            mDecoder.pushParity(packet, offset, length);
+                            break;
+                        case StreamProtocol.TYPE_RATE_CHANGE:
+                            mDecoder.changeRate(BitrateController.Rung.read(packet, offset));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // End of the trace
+            } finally {
+                mDecoder.flush();
+                mDone = true;
+            }
+        }
+
+        @Override
+        public void cancel() {
+            // Unblocked by the loopback closing
+        }
+
+        @Override
+        public void onPcm(FramePool.Frame pcm) {
+            if (mOffsetUs == AudioMixer.NO_TIMESTAMP) {
+                mOffsetUs = getTraceTime() - pcm.getPtsUs();
+            }
+            long timeUs = pcm.getPtsUs() + mOffsetUs + mProfile.getPlayoutDelayMs() * 1000L;
+            mSource.write(pcm.getBuffer(), pcm.getLength(), timeUs);
+        }
+    }
+
+    /**
+     * Read the header of a trace.
+     *
+     * @return The format of the stream recorded
+     */
+    private static AudioProfile readProfile(DataInputStream in, String name)
+            throws IOException {
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+            throw new IOException(name + " is not a traffic trace");
+        }
+        AudioProfile.Builder builder = new AudioProfile.Builder("Trace " + name)
+                .setSampleRate(in.readInt())
+                .setChannelCount(in.readInt())
+                .setCodec(in.readInt())
+                .setFrameDurationMs(in.readInt())
+                .setFecGroupSize(in.readInt());
+        in.readLong();
+        try {
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException(name + " has an unsupported format", e);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted trace");
+    }
+}
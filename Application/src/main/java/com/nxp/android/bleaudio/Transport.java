@@ -0,0 +1,23 @@
+package com.nxp.android.bleaudio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream connection between two peers: the L2CAP socket, or a local loopback to run
+ * the same engines without a radio.
+ */
+public interface Transport {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return the maximum packet size the transport carries in one write.
+     */
+    int getMtu();
+
+    void close() throws IOException;
+}
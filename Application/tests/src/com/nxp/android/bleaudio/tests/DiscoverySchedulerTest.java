@@ -0,0 +1,180 @@
+package com.nxp.android.bleaudio.tests;
+
+import com.nxp.android.bleaudio.DiscoveryScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Runs discovery schedulers on a simulated clock, alone and as two peers looking for each
+ * other: a peer scanning finds the other one advertising, which is found in turn when the
+ * scanner connects to it.
+ */
+public class DiscoverySchedulerTest extends TestCase {
+
+    private static final long CHECK_INTERVAL_MS = 100;
+
+    /**
+     * Clock whose time only moves when told to, running what is due on the way.
+     */
+    private static class SimulatedClock implements DiscoveryScheduler.Clock {
+        private long mNowMs;
+        private long mSequence;
+        private final ArrayList<long[]> mTimes = new ArrayList<long[]>();
+        private final ArrayList<Runnable> mRunnables = new ArrayList<Runnable>();
+
+        @Override
+        public long uptimeMillis() {
+            return mNowMs;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMs) {
+            mTimes.add(new long[] {mNowMs + delayMs, mSequence++});
+            mRunnables.add(runnable);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            for (int i = mRunnables.size() - 1; i >= 0; i--) {
+                if (mRunnables.get(i) == runnable) {
+                    mTimes.remove(i);
+                    mRunnables.remove(i);
+                }
+            }
+        }
+
+        void advance(long durationMs) {
+            long endMs = mNowMs + durationMs;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mTimes.size(); i++) {
+                    long[] time = mTimes.get(i);
+                    if ((time[0] <= endMs) && ((next < 0) || (time[0] < mTimes.get(next)[0])
+                            || ((time[0] == mTimes.get(next)[0])
+                            && (time[1] < mTimes.get(next)[1])))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                mNowMs = mTimes.remove(next)[0];
+                mRunnables.remove(next).run();
+            }
+            mNowMs = endMs;
+        }
+    }
+
+    /**
+     * Radio keeping the state the scheduler puts it in.
+     */
+    private static class SimulatedRadio implements DiscoveryScheduler.Radio {
+        boolean mScanning;
+        boolean mAdvertising;
+        final ArrayList<Integer> mLevels = new ArrayList<Integer>();
+
+        @Override
+        public void startScan(int level) {
+            mScanning = true;
+            mLevels.add(level);
+        }
+
+        @Override
+        public void stopScan() {
+            mScanning = false;
+        }
+
+        @Override
+        public void startAdvertising(int level) {
+            mAdvertising = true;
+            mLevels.add(level);
+        }
+
+        @Override
+        public void stopAdvertising() {
+            mAdvertising = false;
+        }
+    }
+
+    private SimulatedClock mClock;
+
+    @Override
+    protected void setUp() {
+        mClock = new SimulatedClock();
+    }
+
+    public void testEscalatesAgainAfterBackoff() {
+        SimulatedRadio radio = new SimulatedRadio();
+        DiscoveryScheduler scheduler = new DiscoveryScheduler(mClock, radio, new Random(1));
+        scheduler.start();
+        mClock.advance(30 * 60 * 1000);
+
+        // Climbs to the highest level, falls back to the lowest, and climbs again
+        int climbs = 0;
+        int previous = DiscoveryScheduler.LEVEL_LOW;
+        for (int level : radio.mLevels) {
+            if ((level == DiscoveryScheduler.LEVEL_HIGH) && (previous != level)) {
+                climbs++;
+            }
+            previous = level;
+        }
+        assertTrue(climbs + " climbs", climbs >= 3);
+        assertEquals(0, scheduler.getDiscoveryCount());
+    }
+
+    public void testPeersFindEachOther() {
+        DiscoveryScheduler[] peers = startPeers();
+        mClock.advance(2 * 60 * 1000);
+
+        for (DiscoveryScheduler peer : peers) {
+            assertEquals(1, peer.getDiscoveryCount());
+            assertTrue(peer.getMeanLatencyMs() > 0);
+        }
+    }
+
+    public void testLatencyForEveryFind() {
+        DiscoveryScheduler[] peers = startPeers();
+        mClock.advance(2 * 60 * 1000);
+        assertEquals(1, peers[0].getDiscoveryCount());
+
+        // The second peer goes away for a while, then comes back
+        peers[1].stop();
+        mClock.advance(5 * 60 * 1000);
+        peers[1].start();
+        mClock.advance(5 * 60 * 1000);
+
+        assertEquals(2, peers[0].getDiscoveryCount());
+        assertEquals(2, peers[1].getDiscoveryCount());
+        assertTrue(peers[0].getMaxLatencyMs() > peers[0].getMinLatencyMs());
+    }
+
+    /**
+     * Start two peers in range of each other, on the simulated clock.
+     */
+    private DiscoveryScheduler[] startPeers() {
+        final SimulatedRadio[] radios = {new SimulatedRadio(), new SimulatedRadio()};
+        final DiscoveryScheduler[] peers = {
+                new DiscoveryScheduler(mClock, radios[0], new Random(1)),
+                new DiscoveryScheduler(mClock, radios[1], new Random(2))
+        };
+        // The air between them: a scan sees the other peer advertising, and connects to it
+        mClock.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2; i++) {
+                    if (radios[i].mScanning && radios[1 - i].mAdvertising) {
+                        peers[i].onPeerFound();
+                        peers[1 - i].onPeerFound();
+                    }
+                }
+                mClock.postDelayed(this, CHECK_INTERVAL_MS);
+            }
+        }, CHECK_INTERVAL_MS);
+        peers[0].start();
+        peers[1].start();
+        return peers;
+    }
+}
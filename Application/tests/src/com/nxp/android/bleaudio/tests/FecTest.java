@@ -0,0 +1,179 @@
+package com.nxp.android.bleaudio.tests;
+
+import com.nxp.android.bleaudio.FecDecoder;
+import com.nxp.android.bleaudio.FecEncoder;
+import com.nxp.android.bleaudio.StreamProtocol;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Protects audio packets with parity, loses some of them on the way, and checks what the
+ * decoder rebuilds, hands over and counts as lost.
+ */
+public class FecTest extends TestCase {
+
+    private static final int GROUP_SIZE = 4;
+    private static final long PACKET_US = 10000;
+
+    /**
+     * Packet sent on the link, as the receiver reads it.
+     */
+    private static class Packet {
+        final int mType;
+        final byte[] mPayload;
+
+        Packet(int type, byte[] payload) {
+            mType = type;
+            mPayload = payload;
+        }
+
+        boolean isParity() {
+            return mType == StreamProtocol.TYPE_FEC_PARITY;
+        }
+    }
+
+    /**
+     * Keeps the audio packets handed over by the decoder.
+     */
+    private static class Receiver implements FecDecoder.PacketListener {
+        final ArrayList<Long> mPtsUs = new ArrayList<Long>();
+        final ArrayList<byte[]> mData = new ArrayList<byte[]>();
+
+        @Override
+        public void onPacket(long ptsUs, int frameOffset, byte[] payload, int offset,
+                             int length) {
+            mPtsUs.add(ptsUs);
+            mData.add(Arrays.copyOfRange(payload, offset, offset + length));
+        }
+    }
+
+    private Receiver mReceiver;
+    private FecDecoder mDecoder;
+
+    @Override
+    protected void setUp() {
+        mReceiver = new Receiver();
+        mDecoder = new FecDecoder(mReceiver);
+    }
+
+    public void testRebuildsOneLossPerGroup() throws Exception {
+        ArrayList<Packet> packets = send(3 * GROUP_SIZE);
+        // The second packet of every group is lost, once the parity of the first one is in
+        for (int i = 0; i < packets.size(); i++) {
+            if ((i <= GROUP_SIZE) || (i % (GROUP_SIZE + 1) != 1)) {
+                receive(packets.get(i));
+            }
+        }
+        mDecoder.flush();
+
+        assertEquals(2, mDecoder.getRecoveredPackets());
+        assertEquals(0, mDecoder.getLostPackets());
+        assertEquals(3 * GROUP_SIZE, mReceiver.mPtsUs.size());
+        for (int i = 0; i < 3 * GROUP_SIZE; i++) {
+            assertEquals(i * PACKET_US, (long) mReceiver.mPtsUs.get(i));
+            assertTrue(Arrays.equals(makePayload(i), mReceiver.mData.get(i)));
+        }
+    }
+
+    public void testCountsLossesBeyondParity() throws Exception {
+        ArrayList<Packet> packets = send(GROUP_SIZE);
+        for (int i = 0; i < packets.size(); i++) {
+            if ((i != 1) && (i != 2)) {
+                receive(packets.get(i));
+            }
+        }
+        mDecoder.flush();
+
+        assertEquals(0, mDecoder.getRecoveredPackets());
+        assertEquals(2, mDecoder.getLostPackets());
+        assertEquals(GROUP_SIZE - 2, mReceiver.mPtsUs.size());
+    }
+
+    public void testCountsLossesOfLateParity() throws Exception {
+        // The first group goes through before the decoder knows the stream carries parity
+        ArrayList<Packet> packets = send(GROUP_SIZE);
+        for (int i = 0; i < packets.size(); i++) {
+            if (i != 2) {
+                receive(packets.get(i));
+            }
+        }
+
+        assertEquals(0, mDecoder.getRecoveredPackets());
+        assertEquals(1, mDecoder.getLostPackets());
+        assertEquals(GROUP_SIZE - 1, mReceiver.mPtsUs.size());
+    }
+
+    public void testHoldsTwoGroupsWithoutParity() throws Exception {
+        ArrayList<Packet> packets = send(4 * GROUP_SIZE);
+        int received = 0;
+        for (Packet packet : packets) {
+            // The parity of the first group only comes, then the fourth group starts
+            if ((packet.isParity() && (received != GROUP_SIZE))
+                    || (received > 3 * GROUP_SIZE)) {
+                continue;
+            }
+            receive(packet);
+            if (!packet.isParity()) {
+                received++;
+            }
+        }
+
+        // The first group, before the stream is known to carry parity, then a packet of the
+        // second one to make room for the fourth
+        assertEquals(GROUP_SIZE + 1, mReceiver.mPtsUs.size());
+        assertEquals(GROUP_SIZE * PACKET_US, (long) mReceiver.mPtsUs.get(GROUP_SIZE));
+    }
+
+    /**
+     * Send audio packets of varied lengths, with their parity, as the link carries them.
+     */
+    private static ArrayList<Packet> send(int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamProtocol.Writer writer = new StreamProtocol.Writer(out);
+        FecEncoder encoder = new FecEncoder(writer, GROUP_SIZE, 64);
+        for (int i = 0; i < count; i++) {
+            byte[] payload = makePayload(i);
+            writer.writeAudio(i * PACKET_US, 0, payload, 0, payload.length);
+            encoder.add(i * PACKET_US, 0, payload, 0, payload.length);
+        }
+        encoder.flush();
+
+        ArrayList<Packet> packets = new ArrayList<Packet>();
+        StreamProtocol.Reader reader = new StreamProtocol.Reader(
+                new ByteArrayInputStream(out.toByteArray()));
+        byte[] buffer = reader.getBuffer();
+        for (int i = 0; i < count + (count + GROUP_SIZE - 1) / GROUP_SIZE; i++) {
+            int type = reader.read();
+            int offset = reader.getPayloadOffset();
+            packets.add(new Packet(type, Arrays.copyOfRange(buffer, offset,
+                    offset + reader.getPayloadLength())));
+        }
+        return packets;
+    }
+
+    private void receive(Packet packet) {
+        byte[] payload = packet.mPayload;
+        if (packet.isParity()) {
+            mDecoder.pushParity(payload, 0, payload.length);
+        } else {
+            mDecoder.push(StreamProtocol.getLong(payload, 0),
+                    StreamProtocol.getShort(payload, 8), payload,
+                    StreamProtocol.AUDIO_HEADER_SIZE,
+                    payload.length - StreamProtocol.AUDIO_HEADER_SIZE);
+        }
+    }
+
+    private static byte[] makePayload(int index) {
+        byte[] payload = new byte[20 + index % 5];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (index * 31 + i);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,182 @@
+package com.nxp.android.bleaudio.tests;
+
+import com.nxp.android.bleaudio.AudioCodec;
+import com.nxp.android.bleaudio.AudioProfile;
+import com.nxp.android.bleaudio.BitrateController;
+import com.nxp.android.bleaudio.Constants;
+import com.nxp.android.bleaudio.FramePool;
+import com.nxp.android.bleaudio.ImpairedTransport;
+import com.nxp.android.bleaudio.LinkImpairment;
+import com.nxp.android.bleaudio.LoopbackTransport;
+import com.nxp.android.bleaudio.Packetizer;
+import com.nxp.android.bleaudio.RxDecoder;
+import com.nxp.android.bleaudio.StreamProtocol;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Runs traffic through emulated links: the same traffic through the same settings must be
+ * impaired the same way, whatever the timing of the writes, for the pipeline to be
+ * regression tested against known link profiles.
+ */
+public class LinkImpairmentTest extends TestCase {
+
+    private static final int MTU = Constants.L2CAP_DEFAULT_MTU;
+
+    public void testScheduleRepeatsForSeed() throws Exception {
+        LinkImpairment impairment = new LinkImpairment.Builder("Regression",
+                LinkImpairment.WALKING_AWAY)
+                .setQueueBytes(1024 * 1024)
+                .setSeed(42)
+                .build();
+        LinkImpairment.ImpairedOutputStream burst = sendPackets(impairment, false);
+        LinkImpairment.ImpairedOutputStream paced = sendPackets(impairment, true);
+
+        assertTrue(burst.toString(), burst.getStalls() > 0);
+        assertTrue(burst.toString(), burst.getPacketsLost() > 0);
+        assertEquals(burst.getPacketsWritten(), paced.getPacketsWritten());
+        assertEquals(burst.getPacketsLost(), paced.getPacketsLost());
+        assertEquals(burst.getStalls(), paced.getStalls());
+        assertEquals(burst.getStalledUs(), paced.getStalledUs());
+    }
+
+    public void testStallsNeedBandwidth() {
+        try {
+            new LinkImpairment.Builder("Unlimited").setStalls(1000, 100).build();
+            fail("Stalls without a bandwidth");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testPipelineOverFadingLink() throws Exception {
+        AudioProfile profile = new AudioProfile.Builder("Voice with parity",
+                AudioProfile.LOW_BANDWIDTH)
+                .setFecGroupSize(4)
+                .build();
+        Reception first = receiveOver(LinkImpairment.FADING, profile);
+        Reception second = receiveOver(LinkImpairment.FADING, profile);
+
+        // Losses are frequent enough to lose frames, and parity rebuilds some of them
+        assertTrue(first.toString(), first.mLostPackets > 0);
+        assertTrue(first.toString(), first.mRecoveredPackets > 0);
+        assertTrue(first.toString(), first.mFrames < first.mFramesSent);
+        assertEquals(first.toString(), second.toString());
+    }
+
+    /**
+     * Write a run of audio packets through an emulated link, in a burst or paced.
+     */
+    private static LinkImpairment.ImpairedOutputStream sendPackets(LinkImpairment impairment,
+                                                                   boolean paced)
+            throws Exception {
+        LinkImpairment.ImpairedOutputStream link = impairment.wrap(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        byte[] packet = new byte[200];
+        packet[0] = (byte) StreamProtocol.TYPE_AUDIO;
+        for (int i = 0; i < 1000; i++) {
+            link.write(packet, 0, packet.length);
+            if (paced && (i % 10 == 0)) {
+                Thread.sleep(1);
+            }
+        }
+        link.close();
+        return link;
+    }
+
+    /**
+     * Reception of a stream sent through an emulated link, as fast as the link takes it.
+     */
+    private static class Reception implements RxDecoder.PcmListener {
+        int mFramesSent;
+        int mFrames;
+        long mLostPackets;
+        long mRecoveredPackets;
+        long mLostUs;
+
+        @Override
+        public void onPcm(FramePool.Frame pcm) {
+            mFrames++;
+        }
+
+        @Override
+        public String toString() {
+            return mFrames + " of " + mFramesSent + " frames, " + mLostPackets
+                    + " packets lost, " + mRecoveredPackets + " recovered, " + mLostUs / 1000
+                    + "ms lost";
+        }
+    }
+
+    private static Reception receiveOver(LinkImpairment impairment, AudioProfile profile)
+            throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(MTU, 64 * 1024);
+        ImpairedTransport sender = new ImpairedTransport(pair[0], impairment);
+        final InputStream in = pair[1].getInputStream();
+        final Reception reception = new Reception();
+        final RxDecoder decoder = new RxDecoder(profile, 2, null, reception);
+        Thread receive = new Thread("ImpairedReceiver") {
+            @Override
+            public void run() {
+                StreamProtocol.Reader reader = new StreamProtocol.Reader(in);
+                byte[] packet = reader.getBuffer();
+                try {
+                    while (true) {
+                        int type = reader.read();
+                        int offset = reader.getPayloadOffset();
+                        int length = reader.getPayloadLength();
+                        if (type == StreamProtocol.TYPE_AUDIO) {
+                            decoder.push(StreamProtocol.getLong(packet, offset),
+                                    StreamProtocol.getShort(packet, offset + 8), packet,
+                                    offset + StreamProtocol.AUDIO_HEADER_SIZE,
+                                    length - StreamProtocol.AUDIO_HEADER_SIZE);
+                        } else if (type == StreamProtocol.TYPE_FEC_PARITY) {
+                            decoder.pushParity(packet, offset, length);
+                        } else if (type == StreamProtocol.TYPE_RATE_CHANGE) {
+                            decoder.changeRate(BitrateController.Rung.read(packet, offset));
+                        }
+                    }
+                } catch (IOException e) {
+                    // End of the stream
+                }
+                decoder.flush();
+            }
+        };
+        receive.start();
+
+        AudioCodec codec = profile.createCodec();
+        byte[] pcm = new byte[profile.getFrameSize()];
+        byte[] encoded = new byte[codec.getEncodedFrameSize()];
+        Packetizer packetizer = new Packetizer(new StreamProtocol.Writer(
+                sender.getOutputStream()), MTU, profile.getEncodedBytesPerSecond(),
+                profile.getFecGroupSize());
+        packetizer.setMaxDelayMs(Constants.PACKET_MAX_DELAY_MS);
+        reception.mFramesSent = 5000 / profile.getFrameDurationMs();
+        for (int i = 0; i < reception.mFramesSent; i++) {
+            for (int s = 0; s < pcm.length; s += 2) {
+                pcm[s] = (byte) (i + s);
+            }
+            int length = codec.encode(pcm, 0, encoded, 0);
+            packetizer.write(i * profile.getFrameDurationMs() * 1000L, encoded, 0, length);
+        }
+        packetizer.flush();
+        sender.getOutputStream().flush();
+        sender.close();
+        receive.join();
+
+        reception.mLostPackets = decoder.getFecDecoder().getLostPackets();
+        reception.mRecoveredPackets = decoder.getFecDecoder().getRecoveredPackets();
+        reception.mLostUs = decoder.getLostUs();
+        return reception;
+    }
+}
@@ -0,0 +1,42 @@
+package com.nxp.android.bleaudio.tests;
+
+import com.nxp.android.bleaudio.Constants;
+import com.nxp.android.bleaudio.LinkImpairment;
+import com.nxp.android.bleaudio.LinkProbe;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the link probe over a local loopback, clean and through an emulated slow link.
+ */
+public class LinkProbeTest extends TestCase {
+
+    private static final int MTU = Constants.L2CAP_DEFAULT_MTU;
+
+    public void testCleanLoopback() throws Exception {
+        LinkProbe.Result result = LinkProbe.runOverLoopback(MTU, 4 * MTU);
+
+        LinkProbe.Step knee = result.getKnee();
+        assertNotNull("No healthy step", knee);
+        assertEquals(0, knee.getLossRatio(), 0);
+        assertTrue(knee.getGoodput() >= 0.9f * knee.getOfferedRate());
+    }
+
+    public void testSlowLinkFailsFasterSteps() throws Exception {
+        int bandwidth = 100000;
+        LinkImpairment impairment = new LinkImpairment.Builder("Slow")
+                .setBandwidth(bandwidth)
+                .setQueueBytes(4 * MTU)
+                .build();
+        LinkProbe.Result result = LinkProbe.runOverLoopback(MTU, 4 * MTU, impairment);
+
+        // The writes block on the link, the goodput of the faster steps shows it
+        assertNotNull("No healthy step", result.getKnee());
+        assertTrue("Knee at " + result.getKneeRate() + " B/s",
+                result.getKneeRate() <= bandwidth);
+        for (LinkProbe.Step step : result.getSteps()) {
+            assertTrue("Goodput " + step.getGoodput() + " B/s at " + step.getOfferedRate(),
+                    step.getGoodput() <= 1.05f * bandwidth);
+        }
+    }
+}
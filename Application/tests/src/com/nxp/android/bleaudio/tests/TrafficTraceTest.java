@@ -0,0 +1,119 @@
+package com.nxp.android.bleaudio.tests;
+
+import com.nxp.android.bleaudio.AudioCodec;
+import com.nxp.android.bleaudio.AudioProfile;
+import com.nxp.android.bleaudio.ClockSync;
+import com.nxp.android.bleaudio.Constants;
+import com.nxp.android.bleaudio.LoopbackTransport;
+import com.nxp.android.bleaudio.Packetizer;
+import com.nxp.android.bleaudio.StreamProtocol;
+import com.nxp.android.bleaudio.TrafficTrace;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records the traffic of a stream sent in real time, then replays it into the receive
+ * pipeline, as a benchmark of the pipeline and a check that a trace plays back whole.
+ */
+public class TrafficTraceTest extends TestCase {
+
+    private static final int MTU = Constants.L2CAP_DEFAULT_MTU;
+    private static final int DURATION_MS = 2000;
+
+    private File mTrace;
+
+    @Override
+    protected void setUp() throws Exception {
+        mTrace = File.createTempFile("traffic", ".trace");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTrace.delete();
+    }
+
+    public void testReplayPcm() throws Exception {
+        checkReplay(AudioProfile.DEFAULT);
+    }
+
+    public void testReplayAdpcmWithParity() throws Exception {
+        AudioProfile profile = new AudioProfile.Builder("Voice with parity",
+                AudioProfile.LOW_BANDWIDTH)
+                .setFecGroupSize(4)
+                .build();
+        checkReplay(profile);
+    }
+
+    private void checkReplay(AudioProfile profile) throws Exception {
+        int frames = record(profile);
+        TrafficTrace.Result result = TrafficTrace.replayOverLoopback(mTrace, 1);
+
+        assertEquals(result.toString(), frames, result.getFrames());
+        assertEquals(result.toString(), 0, result.getLostPackets());
+        assertEquals(result.toString(), 0, result.getLostUs());
+        assertTrue(result.toString(),
+                result.getMaxDecodeUs() < profile.getFrameDurationMs() * 1000L);
+    }
+
+    /**
+     * Send a tone in real time over a loopback, recording the traffic received.
+     *
+     * @return The number of frames sent
+     */
+    private int record(AudioProfile profile) throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(MTU, 64 * 1024);
+        final TrafficTrace.Recorder recorder = new TrafficTrace.Recorder(
+                pair[1].getInputStream(), mTrace, profile);
+        Thread receive = new Thread("TraceRecorder") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[MTU];
+                try {
+                    while (recorder.read(buffer, 0, buffer.length) >= 0) {
+                        // Recorded on the way
+                    }
+                } catch (IOException e) {
+                    // End of the stream
+                }
+            }
+        };
+        receive.start();
+
+        AudioCodec codec = profile.createCodec();
+        byte[] pcm = new byte[profile.getFrameSize()];
+        byte[] encoded = new byte[codec.getEncodedFrameSize()];
+        Packetizer packetizer = new Packetizer(new StreamProtocol.Writer(pair[0].getOutputStream()),
+                MTU, profile.getEncodedBytesPerSecond(), profile.getFecGroupSize());
+        packetizer.setMaxDelayMs(Constants.PACKET_MAX_DELAY_MS);
+
+        int frames = DURATION_MS / profile.getFrameDurationMs();
+        long frameUs = profile.getFrameDurationMs() * 1000L;
+        long startUs = ClockSync.now();
+        int sample = 0;
+        for (int i = 0; i < frames; i++) {
+            for (int s = 0; s < pcm.length / 2; s += profile.getChannelCount()) {
+                short value = (short) (8000 * Math.sin(2 * Math.PI * 440 * sample++
+                        / profile.getSampleRate()));
+                for (int c = 0; c < profile.getChannelCount(); c++) {
+                    pcm[2 * (s + c)] = (byte) value;
+                    pcm[2 * (s + c) + 1] = (byte) (value >> 8);
+                }
+            }
+            int length = codec.encode(pcm, 0, encoded, 0);
+            packetizer.write(startUs + i * frameUs, encoded, 0, length);
+
+            long waitUs = startUs + (i + 1) * frameUs - ClockSync.now();
+            if (waitUs > 0) {
+                Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+            }
+        }
+        packetizer.flush();
+        pair[0].close();
+        receive.join();
+        recorder.closeTrace();
+        return frames;
+    }
+}